@@ -0,0 +1,167 @@
+package course;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * DAO round trips against an in-process Mongo wire protocol server, so the
+ * numbers cover the driver, BSON encoding and the DAO code without a network
+ * or a mongod. The stand-in's query engine is not mongod's; compare runs with
+ * each other, not with production latencies.
+ *
+ * @author nramanathan
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DaoBenchmark {
+	private static final int POSTS = 500;
+	private static final int COMMENTS_PER_POST = 100;
+	private static final List<String> TAGS = Arrays.asList("java", "mongodb",
+			"web", "performance", "spark");
+
+	private MongoServer server;
+	private MongoClient mongoClient;
+
+	private BlogPostDAO uncachedPostDao;
+	private BlogPostDAO cachedPostDao;
+	private SessionDAO uncachedSessionDao;
+	private SessionDAO cachedSessionDao;
+	private PasswordHashing passwordHashing;
+	private UserDAO userDao;
+	private String sessionId;
+	private int next;
+	private long likers;
+
+	@Setup
+	public void setUp() {
+		server = new MongoServer(new MemoryBackend());
+		InetSocketAddress address = server.bind();
+		mongoClient = new MongoClient(new ServerAddress(address));
+		MongoDatabase blogDatabase = mongoClient.getDatabase("blog_final");
+
+		// a max age of zero means every lookup misses
+		uncachedPostDao = new BlogPostDAO(blogDatabase, new ListingCache(1, 0));
+		cachedPostDao = new BlogPostDAO(blogDatabase);
+		uncachedPostDao.ensureIndexes();
+
+		for (int i = 0; i < POSTS; i++) {
+			String permalink = uncachedPostDao.addPost("Benchmark post " + i,
+					"Body of benchmark post " + i,
+					Arrays.asList(TAGS.get(i % TAGS.size())), "author");
+			for (int c = 0; c < COMMENTS_PER_POST; c++) {
+				uncachedPostDao.addPostComment("commenter" + c, "",
+						"Comment " + c, permalink);
+			}
+		}
+
+		uncachedSessionDao = new SessionDAO(blogDatabase, new SessionCache(1,
+				0, 0));
+		cachedSessionDao = new SessionDAO(blogDatabase);
+		sessionId = uncachedSessionDao.startSession("reader");
+
+		// a cheap cost, this is about the DAO and not the hash
+		passwordHashing = new PasswordHashing(new Pbkdf2PasswordHasher(1000),
+				Executors.newSingleThreadExecutor(),
+				PasswordHashing.DEFAULT_HASHING_TIMEOUT_MILLIS);
+		userDao = new UserDAO(blogDatabase, passwordHashing);
+		userDao.addUser("reader", "secret", "reader@example.com");
+	}
+
+	@TearDown
+	public void tearDown() {
+		passwordHashing.close();
+		mongoClient.close();
+		server.shutdown();
+	}
+
+	private String nextPermalink() {
+		next = (next + 1) % POSTS;
+		return "benchmark_post_" + next;
+	}
+
+	// a new user every time, so every like is applied
+	private String nextLiker() {
+		return "liker" + likers++;
+	}
+
+	@Benchmark
+	public Document findPostByPermalink() {
+		return uncachedPostDao.findPostByPermalink(nextPermalink());
+	}
+
+	@Benchmark
+	public List<Document> findByDateDescending() {
+		return uncachedPostDao.findByDateDescending(10);
+	}
+
+	@Benchmark
+	public List<Document> findByDateDescendingCached() {
+		return cachedPostDao.findByDateDescending(10);
+	}
+
+	@Benchmark
+	public List<Document> findByTagDateDescending() {
+		return uncachedPostDao.findByTagDateDescending(TAGS.get(next++
+				% TAGS.size()));
+	}
+
+	@Benchmark
+	public boolean likePost() {
+		return uncachedPostDao.likePost(nextPermalink(), 7, nextLiker());
+	}
+
+	// after the first round every like is a repeat, which matches nothing
+	@Benchmark
+	public boolean likePostRepeated() {
+		return uncachedPostDao.likePost(nextPermalink(), 8, "reader");
+	}
+
+	@Benchmark
+	public boolean addPostComment() {
+		return uncachedPostDao.addPostComment("benchmark", "", "Another comment",
+				nextPermalink());
+	}
+
+	@Benchmark
+	public String findUserNameBySessionId() {
+		return uncachedSessionDao.findUserNameBySessionId(sessionId);
+	}
+
+	@Benchmark
+	public String findUserNameBySessionIdCached() {
+		return cachedSessionDao.findUserNameBySessionId(sessionId);
+	}
+
+	@Benchmark
+	public Document validateLogin() {
+		return userDao.validateLogin("reader", "secret");
+	}
+}
@@ -0,0 +1,127 @@
+package course;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop HTTP load generator for comparing blog.server.threads=platform
+ * with virtual against a running BlogController. Each of the given number of
+ * clients requests the paths in turn as fast as the server answers, on its
+ * own virtual thread, so the client side is not the bottleneck at high
+ * concurrency.
+ *
+ * <pre>
+ * java -cp ... course.LoadTest http://localhost:8082 500 30 / /post/some-permalink
+ * </pre>
+ *
+ * Anything but a 200 is counted as an error, including the redirect to
+ * /post_not_found, so the permalinks must exist. Requests made during the
+ * first {@link #WARMUP_SECONDS} seconds are not counted.
+ *
+ * @author nramanathan
+ *
+ */
+public class LoadTest {
+	private static final long WARMUP_SECONDS = 5;
+
+	private static final class PathStats {
+		final String path;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+
+		PathStats(final String path) {
+			this.path = path;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: LoadTest <base url> <clients> "
+					+ "<seconds> <path>...");
+			System.exit(1);
+		}
+		final String baseUrl = args[0];
+		int clients = Integer.parseInt(args[1]);
+		long seconds = Long.parseLong(args[2]);
+
+		final List<PathStats> stats = new ArrayList<PathStats>();
+		for (int i = 3; i < args.length; i++) {
+			stats.add(new PathStats(args[i]));
+		}
+
+		final HttpClient client = HttpClient.newBuilder()
+				.connectTimeout(Duration.ofSeconds(10)).build();
+		final long warmupEnd = System.nanoTime()
+				+ TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+		final long end = warmupEnd + TimeUnit.SECONDS.toNanos(seconds);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int c = 0; c < clients; c++) {
+			final int first = c;
+			threads.add(Thread.ofVirtual().start(new Runnable() {
+				public void run() {
+					int next = first;
+					while (System.nanoTime() < end) {
+						PathStats path = stats.get(next++ % stats.size());
+						request(client, baseUrl, path, warmupEnd);
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		System.out.println(String.format(Locale.ROOT,
+				"%-40s %10s %8s %10s %10s %10s %10s", "path", "requests",
+				"errors", "req/s", "p50 ms", "p99 ms", "max ms"));
+		long total = 0;
+		for (PathStats path : stats) {
+			long count = path.latency.getCount();
+			total += count;
+			System.out.println(String.format(Locale.ROOT,
+					"%-40s %10d %8d %10.1f %10.2f %10.2f %10.2f", path.path,
+					count, path.errors.get(), count / (double) seconds,
+					millis(path.latency.getValueAtQuantile(0.5)),
+					millis(path.latency.getValueAtQuantile(0.99)),
+					millis(path.latency.getMaxNanos())));
+		}
+		System.out.println(String.format(Locale.ROOT,
+				"%d clients, %.1f req/s in total", clients, total
+						/ (double) seconds));
+	}
+
+	private static void request(final HttpClient client, final String baseUrl,
+			final PathStats path, final long warmupEnd) {
+		HttpRequest request = HttpRequest
+				.newBuilder(URI.create(baseUrl + path.path))
+				.timeout(Duration.ofSeconds(30)).build();
+		long start = System.nanoTime();
+		boolean ok;
+		try {
+			ok = client.send(request, HttpResponse.BodyHandlers.discarding())
+					.statusCode() == 200;
+		} catch (Exception e) {
+			ok = false;
+		}
+		if (start < warmupEnd) {
+			return;
+		}
+		path.latency.record(System.nanoTime() - start);
+		if (!ok) {
+			path.errors.incrementAndGet();
+		}
+	}
+
+	private static double millis(final long nanos) {
+		return nanos / 1e6;
+	}
+}
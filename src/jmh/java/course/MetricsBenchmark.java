@@ -0,0 +1,50 @@
+package course;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What the metrics cost per request: a route with one Mongo call and one
+ * template render, recorded from several threads at once.
+ *
+ * @author nramanathan
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class MetricsBenchmark {
+
+	private final Metrics.RouteMetrics route = Metrics.route("GET",
+			"/benchmark");
+	private final Metrics.MongoOperation operation = Metrics.mongoOperation(
+			"MetricsBenchmark", "find");
+
+	@Benchmark
+	public void recordRequest() {
+		long start = Metrics.startRequest();
+		operation.stop(operation.start());
+		Metrics.addRenderNanos(1000);
+		route.stop(start);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public String scrape() {
+		return Metrics.toPrometheusText();
+	}
+}
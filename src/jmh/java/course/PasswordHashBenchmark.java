@@ -0,0 +1,57 @@
+package course;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency distribution of one password hash at a range of PBKDF2 costs. Pick
+ * the largest blog.password.iterations whose p0.99, multiplied by the number
+ * of logins expected to queue behind each hashing thread, still fits the
+ * login latency budget.
+ *
+ * mvn -Pbenchmarks verify -Djmh.args=PasswordHash
+ *
+ * @author nramanathan
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordHashBenchmark {
+
+	@Param({ "10000", "50000", "100000", "200000", "400000" })
+	public int iterations;
+
+	private Pbkdf2PasswordHasher hasher;
+	private String storedHash;
+
+	@Setup
+	public void setUp() {
+		hasher = new Pbkdf2PasswordHasher(iterations);
+		storedHash = hasher.hash("correct horse battery staple");
+	}
+
+	@Benchmark
+	public String hash() {
+		return hasher.hash("correct horse battery staple");
+	}
+
+	@Benchmark
+	public boolean verify() {
+		return hasher.verify("correct horse battery staple", storedHash);
+	}
+}
@@ -0,0 +1,119 @@
+package course;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freemarker.template.Configuration;
+import freemarker.template.SimpleHash;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+/**
+ * Rendering cost of the home page and the post page for synthetic posts with
+ * a varying number of comments.
+ *
+ * @author nramanathan
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark {
+
+	@Param({ "0", "10", "100", "1000" })
+	public int commentCount;
+
+	private Template blogTemplate;
+	private Template entryTemplate;
+	private SimpleHash blogRoot;
+	private SimpleHash entryRoot;
+
+	@Setup
+	public void setUp() throws IOException {
+		Configuration configuration = new Configuration();
+		configuration.setClassForTemplateLoading(BlogController.class,
+				"/freemarker");
+		blogTemplate = configuration.getTemplate("blog_template.ftl");
+		entryTemplate = configuration.getTemplate("entry_template.ftl");
+
+		List<Document> posts = new ArrayList<Document>();
+		for (int i = 0; i < 10; i++) {
+			// list queries project the comments away
+			Document post = syntheticPost(i, commentCount);
+			post.remove("comments");
+			posts.add(post);
+		}
+		blogRoot = new SimpleHash();
+		blogRoot.put("myposts", posts);
+		blogRoot.put("username", "reader");
+
+		SimpleHash newComment = new SimpleHash();
+		newComment.put("name", "");
+		newComment.put("email", "");
+		newComment.put("body", "");
+		entryRoot = new SimpleHash();
+		entryRoot.put("post", syntheticPost(0, commentCount));
+		entryRoot.put("comment", newComment);
+		entryRoot.put("comment_offset", 0);
+		entryRoot.put("comment_page", 1);
+		entryRoot.put("has_previous_comments", false);
+		entryRoot.put("has_next_comments", false);
+	}
+
+	static Document syntheticPost(final int n, final int commentCount) {
+		List<Document> comments = new ArrayList<Document>();
+		for (int i = 0; i < commentCount; i++) {
+			Document comment = new Document("author", "commenter" + i)
+					.append("body", "Comment number " + i
+							+ " with a sentence or two of text in it.");
+			if (i % 3 == 0) {
+				comment.append("num_likes", i);
+			}
+			comments.add(comment);
+		}
+		return new Document("title", "Synthetic post " + n)
+				.append("author", "author" + n)
+				.append("body", "Lorem ipsum dolor sit amet.<p>Consectetur "
+						+ "adipiscing elit, sed do eiusmod tempor.")
+				.append("permalink", "synthetic_post_" + n)
+				.append("tags", Arrays.asList("java", "mongodb", "tag" + n))
+				.append("comments", comments)
+				.append("num_comments", commentCount)
+				.append("date", new Date());
+	}
+
+	@Benchmark
+	public String renderBlogTemplate() throws IOException, TemplateException {
+		StringWriter writer = new StringWriter();
+		blogTemplate.process(blogRoot, writer);
+		return writer.toString();
+	}
+
+	@Benchmark
+	public String renderEntryTemplate() throws IOException, TemplateException {
+		StringWriter writer = new StringWriter();
+		entryTemplate.process(entryRoot, writer);
+		return writer.toString();
+	}
+}
@@ -0,0 +1,59 @@
+package course;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The request parsing done on signup and when a new post is submitted.
+ *
+ * @author nramanathan
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextProcessingBenchmark {
+
+	public String tags = " java, mongodb ,java,\tweb , performance,, mongodb, "
+			+ "spark, freemarker, java , caching";
+	public String title = "Ten Things I Learned Tuning a Java & MongoDB Blog (Part 2)";
+	public String body = "First paragraph of the post.\r\nSecond one, "
+			+ "with a bit more text in it.\n\nThird paragraph after a blank "
+			+ "line.\r\nAnd a last one without a trailing break.";
+
+	@Benchmark
+	public List<String> extractTags() {
+		return BlogController.extractTags(tags);
+	}
+
+	@Benchmark
+	public boolean validateSignup() {
+		HashMap<String, String> errors = new HashMap<String, String>();
+		return BlogController.validateSignup("some_user-42", "s3cret!",
+				"s3cret!", "some.user@example.com", errors);
+	}
+
+	@Benchmark
+	public String makePermalink() {
+		return BlogPostDAO.makePermalink(title);
+	}
+
+	@Benchmark
+	public String toParagraphs() {
+		return BlogController.toParagraphs(body);
+	}
+}
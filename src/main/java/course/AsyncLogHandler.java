@@ -0,0 +1,157 @@
+package course;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * java.util.logging handler that hands records to a background thread through
+ * a bounded ring buffer. Publishing never blocks: when the buffer is full the
+ * record is dropped and counted, and the writer thread reports how many were
+ * lost. Formatting, including redaction by {@link LogfmtFormatter}, happens
+ * on the writer thread as well.
+ * 
+ * After {@link #close()} records are written synchronously, so that messages
+ * logged by other shutdown hooks are not lost.
+ * 
+ * Final, since the constructor sets the formatter and starts the writer
+ * thread, neither of which a subclass could see fully constructed.
+ * 
+ * @author nramanathan
+ * 
+ */
+public final class AsyncLogHandler extends Handler {
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	private static final int MAX_BATCH = 256;
+
+	private final ArrayBlockingQueue<LogRecord> buffer;
+	private final Writer out;
+	private final Thread writerThread;
+	private final AtomicLong dropped = new AtomicLong();
+	private final Object writeLock = new Object();
+	private volatile boolean closed;
+
+	public AsyncLogHandler(final OutputStream out, final int capacity) {
+		try {
+			this.out = new OutputStreamWriter(out, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		this.buffer = new ArrayBlockingQueue<LogRecord>(capacity);
+		setFormatter(new LogfmtFormatter());
+
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainUntilClosed();
+			}
+		}, "async-log-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	@Override
+	public void publish(final LogRecord record) {
+		if (!isLoggable(record)) {
+			return;
+		}
+		if (closed) {
+			List<LogRecord> single = new ArrayList<LogRecord>(1);
+			single.add(record);
+			write(single);
+			return;
+		}
+		if (!buffer.offer(record)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Records are written by the background thread as soon as it gets to
+	 * them; this does not wait for that.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Stop the writer thread and write whatever is still buffered.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		writerThread.interrupt();
+		try {
+			writerThread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		List<LogRecord> rest = new ArrayList<LogRecord>();
+		buffer.drainTo(rest);
+		write(rest);
+	}
+
+	/**
+	 * @return number of records dropped because the buffer was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public int getBuffered() {
+		return buffer.size();
+	}
+
+	private void drainUntilClosed() {
+		List<LogRecord> batch = new ArrayList<LogRecord>(MAX_BATCH);
+		while (!closed) {
+			try {
+				LogRecord first = buffer.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				buffer.drainTo(batch, MAX_BATCH - 1);
+				write(batch);
+				batch.clear();
+			} catch (InterruptedException e) {
+				// close() drains the rest
+				return;
+			}
+		}
+	}
+
+	private void write(final List<LogRecord> records) {
+		synchronized (writeLock) {
+			try {
+				long lost = dropped.getAndSet(0);
+				if (lost > 0) {
+					LogRecord report = new LogRecord(Level.WARNING, "Dropped "
+							+ lost + " log records, buffer full");
+					report.setLoggerName(AsyncLogHandler.class.getName());
+					out.write(getFormatter().format(report));
+				}
+				for (LogRecord record : records) {
+					out.write(getFormatter().format(record));
+				}
+				out.flush();
+			} catch (IOException e) {
+				reportError(null, e, ErrorManager.WRITE_FAILURE);
+			} catch (RuntimeException e) {
+				reportError(null, e, ErrorManager.FORMAT_FAILURE);
+			}
+		}
+	}
+}
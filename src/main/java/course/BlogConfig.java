@@ -0,0 +1,119 @@
+package course;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Properties;
+
+/**
+ * Configuration lookup for the blog application. A key such as
+ * <code>blog.session.mode</code> is read from the system property of the same
+ * name, falling back to the environment variable
+ * <code>BLOG_SESSION_MODE</code>, then to the properties file named by
+ * <code>blog.config</code> (or <code>BLOG_CONFIG</code>) if there is one, then
+ * to the supplied default.
+ *
+ * @author nramanathan
+ *
+ */
+public class BlogConfig {
+	private final Properties file;
+
+	public BlogConfig() {
+		this(load(lookup("blog.config")));
+	}
+
+	/**
+	 * @param file
+	 *            settings to use when neither a system property nor an
+	 *            environment variable is set
+	 */
+	public BlogConfig(final Properties file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param key
+	 * @param defaultValue
+	 *
+	 * @return configured value of the key, or the default if it is not set
+	 */
+	public String get(final String key, final String defaultValue) {
+		String value = lookup(key);
+		if (value == null) {
+			value = file.getProperty(key);
+		}
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
+	public int getInt(final String key, final int defaultValue) {
+		String value = get(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Configuration " + key
+					+ " is not an integer: " + value, e);
+		}
+	}
+
+	public long getLong(final String key, final long defaultValue) {
+		String value = get(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Configuration " + key
+					+ " is not a number: " + value, e);
+		}
+	}
+
+	public boolean getBoolean(final String key, final boolean defaultValue) {
+		String value = get(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value);
+	}
+
+	private static String lookup(final String key) {
+		String value = System.getProperty(key);
+		if (value == null) {
+			value = System.getenv(toEnvironmentName(key));
+		}
+		return value;
+	}
+
+	private static Properties load(final String path) {
+		Properties properties = new Properties();
+		if (path == null || path.trim().isEmpty()) {
+			return properties;
+		}
+		try {
+			Reader reader = new InputStreamReader(new FileInputStream(
+					path.trim()), "UTF-8");
+			try {
+				properties.load(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException(
+					"Cannot read configuration file " + path, e);
+		}
+		return properties;
+	}
+
+	// blog.session.mode -> BLOG_SESSION_MODE
+	static String toEnvironmentName(final String key) {
+		return key.toUpperCase().replace('.', '_').replace('-', '_');
+	}
+}
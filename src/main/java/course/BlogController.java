@@ -1,29 +1,49 @@
 package course;
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadConcernLevel;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.MongoDatabase;
 import freemarker.template.Configuration;
 import freemarker.template.SimpleHash;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.bson.Document;
 import spark.Request;
 import spark.Response;
 import spark.Route;
+import spark.Spark;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-
-import static spark.Spark.get;
-import static spark.Spark.post;
-import static spark.Spark.setPort;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * BlogController class encapsulates the controllers for the blog web application.
@@ -37,36 +57,137 @@ import static spark.Spark.setPort;
  * 
  */
 public class BlogController {
+	private static final Logger logger = Logger.getLogger(BlogController.class
+			.getName());
+
+	private static final Pattern USER_RE = Pattern
+			.compile("^[a-zA-Z0-9_-]{3,20}$");
+	private static final Pattern PASS_RE = Pattern.compile("^.{3,20}$");
+	private static final Pattern EMAIL_RE = Pattern
+			.compile("^[\\S]+@[\\S]+\\.[\\S]+$");
+
+	private static final int SEARCH_RESULTS = 20;
+	// smaller pages are sent as they are, compressing them gains nothing
+	private static final int MIN_GZIP_CHARS = 1024;
+	private static final int TAG_CLOUD_SIZE = 30;
+	// font sizes of the least and the most used tag in the cloud, in percent
+	private static final int TAG_CLOUD_MIN_SIZE = 80;
+	private static final int TAG_CLOUD_MAX_SIZE = 200;
+
 	private final Configuration configuration;
-	private final BlogPostDAO blogPostDao;
-	private final UserDAO userDao;
-	private final SessionDAO sessionDao;
+	private final BlogPostStore blogPostDao;
+	private final UserStore userDao;
+	private final SessionStore sessionDao;
+	private final boolean streamingRender;
+	private final boolean metricsLocalOnly;
 
 	public static void main(String[] args) throws IOException {
 		if (args.length == 0) {
-			new BlogController("mongodb://localhost");
+			new BlogController(new BlogConfig().get("blog.mongo.uri",
+					"mongodb://localhost"));
 		} else {
 			new BlogController(args[0]);
 		}
 	}
 
 	public BlogController(String mongoURIString) throws IOException {
-		final MongoClient mongoClient = new MongoClient(new MongoClientURI(
-				mongoURIString));
-		final MongoDatabase blogDatabase = mongoClient
-				.getDatabase("blog_final");
+		final BlogConfig config = new BlogConfig();
+		configureLogging(config);
+		final PasswordHashing passwordHashing = createPasswordHashing(config);
+
+		// platform or virtual, see VirtualThreadPool
+		String serverThreads = config.get("blog.server.threads", "platform");
+		boolean virtualThreads;
+		if (serverThreads.equals("virtual")) {
+			virtualThreads = true;
+		} else if (serverThreads.equals("platform")) {
+			virtualThreads = false;
+		} else {
+			throw new IllegalArgumentException("Unknown blog.server.threads: "
+					+ serverThreads);
+		}
 
-		blogPostDao = new BlogPostDAO(blogDatabase);
-		userDao = new UserDAO(blogDatabase);
-		sessionDao = new SessionDAO(blogDatabase);
+		// blog.storage=memory runs the web tier without a mongod, e.g. for
+		// load tests
+		String storage = config.get("blog.storage", "mongo");
+		if (storage.equals("memory")) {
+			blogPostDao = new InMemoryBlogPostStore();
+			userDao = new InMemoryUserStore(passwordHashing);
+			sessionDao = new InMemorySessionStore(TimeUnit.DAYS.toMillis(config
+					.getLong("blog.session.maxAgeDays", 30)));
+		} else if (storage.equals("mongo")) {
+			final MongoClient mongoClient = new MongoClient(new MongoClientURI(
+					mongoURIString, createMongoClientOptions(config,
+							virtualThreads)));
+			final MongoDatabase blogDatabase = mongoClient
+					.getDatabase("blog_final");
+			// post and comment finds may go to secondaries; users, sessions
+			// and every write stay on the client's defaults
+			final MongoDatabase readDatabase = blogDatabase
+					.withReadPreference(
+							ReadPreference.valueOf(config.get(
+									"blog.mongo.read.preference", "primary")))
+					.withReadConcern(
+							readConcern(config.get("blog.mongo.read.concern",
+									"default")));
+
+			// embedded or bucketed, see CommentBuckets
+			boolean bucketedComments = config.get("blog.comments.layout",
+					"embedded").equals("bucketed");
+			BlogPostDAO mongoBlogPostDao = new BlogPostDAO(blogDatabase,
+					readDatabase, new ListingCache(), bucketedComments);
+			SessionDAO mongoSessionDao = createSessionDao(blogDatabase, config);
+
+			// users are only looked up by _id, which is always indexed
+			mongoBlogPostDao.ensureIndexes();
+			mongoBlogPostDao.backfillTagStats();
+			mongoBlogPostDao.backfillMissingCommentCounts();
+			mongoBlogPostDao.recoverPendingLikes();
+			mongoSessionDao.ensureIndexes(config.getLong(
+					"blog.session.maxAgeDays", 30));
+			exportSessionCacheMetrics(mongoSessionDao.getSessionCache());
+			if (config.getBoolean("blog.verifyQueryPlans", false)) {
+				mongoBlogPostDao.verifyQueryPlans();
+			}
+			mongoBlogPostDao.buildSearchIndex();
+			// the index only sees writes made through this instance
+			long searchRefreshMinutes = config.getLong(
+					"blog.search.refreshMinutes", 0);
+			if (searchRefreshMinutes > 0) {
+				mongoBlogPostDao.startSearchIndexRefresh(TimeUnit.MINUTES
+						.toMillis(searchRefreshMinutes));
+			}
+			if (config.getBoolean("blog.writeBehind.enabled", false)) {
+				if (bucketedComments) {
+					logger.warning("Write-behind only supports embedded "
+							+ "comments, not starting it");
+				} else {
+					startWriteBehind(mongoBlogPostDao, config);
+				}
+			}
+
+			blogPostDao = mongoBlogPostDao;
+			userDao = new UserDAO(blogDatabase, passwordHashing);
+			sessionDao = mongoSessionDao;
+		} else {
+			throw new IllegalArgumentException("Unknown blog.storage: "
+					+ storage);
+		}
+
+		streamingRender = config.getBoolean("blog.render.streaming", false);
+		metricsLocalOnly = config.getBoolean("blog.metrics.localOnly", true);
 
 		configuration = createFreemarkerConfiguration();
-		setPort(8082);
+		configureServer(config, virtualThreads);
 		initializeRoutes();
 	}
 
-	abstract class FreemarkerBasedRoute extends Route {
+	abstract class FreemarkerBasedRoute implements Route {
 		final Template template;
+		private final String path;
+		// by HTTP method, since GET and POST share some paths
+		private final ConcurrentHashMap<String, Metrics.RouteMetrics> metrics =
+				new ConcurrentHashMap<String, Metrics.RouteMetrics>();
 
 		/**
 		 * Constructor
@@ -77,26 +198,354 @@ public class BlogController {
 		 */
 		protected FreemarkerBasedRoute(final String path,
 				final String templateName) throws IOException {
-			super(path);
+			this.path = path;
 			template = configuration.getTemplate(templateName);
 		}
 
-		@Override
 		public Object handle(Request request, Response response) {
+			Metrics.RouteMetrics routeMetrics = routeMetrics(request
+					.requestMethod());
+			long start = Metrics.startRequest();
+			try {
+				// every page may be sent compressed or not
+				response.raw().addHeader("Vary", "Accept-Encoding");
+				boolean gzip = acceptsGzip(request);
+				if (streamingRender) {
+					return handleStreaming(request, response, gzip);
+				}
+				return handleBuffered(request, response, gzip);
+			} finally {
+				routeMetrics.stop(start);
+			}
+		}
+
+		private Object handleBuffered(Request request, Response response,
+				boolean gzip) {
 			StringWriter writer = new StringWriter();
 			try {
 				doHandle(request, response, writer);
 			} catch (Exception e) {
-				e.printStackTrace();
+				Metrics.requestFailed();
+				logger.log(Level.SEVERE, "Request to " + path + " failed", e);
 				response.redirect("/internal_error");
+				return writer;
+			}
+			// Spark compresses the body once the header says gzip; a route
+			// that wrote precompressed bytes has committed the response
+			if (gzip && !response.raw().isCommitted()
+					&& response.status() == HttpServletResponse.SC_OK
+					&& writer.getBuffer().length() >= MIN_GZIP_CHARS) {
+				response.header("Content-Encoding", "gzip");
 			}
 			return writer;
 		}
 
+		private Metrics.RouteMetrics routeMetrics(final String method) {
+			Metrics.RouteMetrics routeMetrics = metrics.get(method);
+			if (routeMetrics == null) {
+				routeMetrics = Metrics.route(method, path);
+				metrics.put(method, routeMetrics);
+			}
+			return routeMetrics;
+		}
+
+		/**
+		 * Render straight into the servlet output stream instead of buffering
+		 * the page in a String. If rendering fails before the container has
+		 * committed the response, the partial page is thrown away and the
+		 * user is redirected as usual; after that point the best we can do
+		 * is cut the page short.
+		 */
+		private Object handleStreaming(Request request, Response response,
+				boolean gzip) {
+			HttpServletResponse raw = response.raw();
+			raw.setContentType("text/html; charset=utf-8");
+
+			// the size is not known up front, so any page is compressed
+			Utf8ResponseWriter writer = Utf8ResponseWriter.acquire(raw, gzip);
+			try {
+				doHandle(request, response, writer);
+				writer.finish();
+			} catch (Exception e) {
+				Metrics.requestFailed();
+				logger.log(Level.SEVERE, "Request to " + path + " failed", e);
+				writer.discard();
+				if (!raw.isCommitted()) {
+					raw.resetBuffer();
+					// the writer may have declared a gzip body already; a
+					// null value removes the header
+					raw.setHeader("Content-Encoding", null);
+					response.redirect("/internal_error");
+				}
+			} finally {
+				writer.release();
+			}
+			// already written; an empty body keeps Spark from answering 404
+			return "";
+		}
+
 		protected abstract void doHandle(final Request request,
 				final Response response, final Writer writer)
 				throws IOException, TemplateException;
 
+		/**
+		 * @param request
+		 * @param response
+		 * @param version
+		 *            of what the page shows, e.g. of the post
+		 * @param lastModified
+		 *            when that last changed, null if unknown
+		 * @param username
+		 *            the page shows who is logged in, so the ETag is per user
+		 * Answer a conditional GET before doing the work of the page. Sends
+		 * the ETag, and for anonymous visitors Last-Modified, which cannot
+		 * tell users apart; If-None-Match takes precedence over
+		 * If-Modified-Since as in RFC 7232.
+		 *
+		 * @return true if a 304 was sent and the page must not be rendered
+		 */
+		protected boolean notModified(final Request request,
+				final Response response, final String version,
+				final Date lastModified, final String username) {
+			String etag = "W/\"" + version;
+			if (username != null) {
+				etag += "-" + DigestUtils.sha1Hex(username).substring(0, 16);
+			}
+			etag += "\"";
+			response.header("ETag", etag);
+			// revalidate every time, and never share a logged in page
+			response.header("Cache-Control", username == null ? "no-cache"
+					: "private, no-cache");
+			response.raw().addHeader("Vary", "Cookie");
+			if (lastModified != null && username == null) {
+				response.raw().setDateHeader("Last-Modified",
+						lastModified.getTime());
+			}
+
+			boolean matches;
+			String ifNoneMatch = request.headers("If-None-Match");
+			if (ifNoneMatch != null) {
+				matches = etagMatches(ifNoneMatch, etag);
+			} else if (lastModified != null && username == null) {
+				matches = notModifiedSince(request, lastModified);
+			} else {
+				matches = false;
+			}
+			if (matches) {
+				response.status(HttpServletResponse.SC_NOT_MODIFIED);
+			}
+			return matches;
+		}
+
+		/**
+		 * @param root
+		 * @param writer
+		 * Process the route's template, counting the time towards the render
+		 * phase of the request
+		 */
+		protected void renderTemplate(final Object root, final Writer writer)
+				throws IOException, TemplateException {
+			long start = System.nanoTime();
+			try {
+				template.process(root, writer);
+			} finally {
+				Metrics.addRenderNanos(System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * @param request
+		 * @param response
+		 * @param listing
+		 * @param path
+		 *            the page the listing is on, without a query string
+		 * @param before
+		 *            cursor the listing was read after, null on the first page
+		 * @param tagCloudVersion
+		 *            of the tags to show above the posts, null for none
+		 * @param username
+		 * @param writer
+		 * Render a list of posts. The page only differs per user in the
+		 * username header, so the anonymous rendering is kept on the cached
+		 * listing and reused until a write invalidates it or the tag cloud
+		 * changes, compressed once for the clients that accept gzip. The
+		 * cloud is only built when the page is actually rendered.
+		 */
+		protected void renderListing(final Request request,
+				final Response response, final ListingCache.Listing listing,
+				final String path, final PageCursor before,
+				final String tagCloudVersion, final String username,
+				final Writer writer) throws IOException, TemplateException {
+			if (username != null) {
+				SimpleHash root = listingRoot(listing, path, before,
+						tagCloudVersion != null);
+				root.put("username", username);
+				renderTemplate(root, writer);
+				return;
+			}
+
+			String variant = tagCloudVersion == null ? "" : tagCloudVersion;
+			String html = listing.getAnonymousHtml(variant);
+			if (html == null) {
+				StringWriter rendered = new StringWriter();
+				renderTemplate(listingRoot(listing, path, before,
+						tagCloudVersion != null), rendered);
+				html = rendered.toString();
+				listing.setAnonymousHtml(variant, html);
+			}
+			if (!acceptsGzip(request)) {
+				writer.write(html);
+				return;
+			}
+
+			byte[] gzipped = listing.getAnonymousGzip(variant);
+			if (gzipped == null) {
+				gzipped = gzip(html);
+				listing.setAnonymousGzip(variant, gzipped);
+			}
+			HttpServletResponse raw = response.raw();
+			raw.setContentType("text/html; charset=utf-8");
+			raw.setHeader("Content-Encoding", "gzip");
+			raw.setContentLength(gzipped.length);
+			raw.getOutputStream().write(gzipped);
+			// committed, so neither Spark nor the streaming writer add to it
+			raw.flushBuffer();
+		}
+
+		private SimpleHash listingRoot(final ListingCache.Listing listing,
+				final String path, final PageCursor before,
+				final boolean withTagCloud) {
+			SimpleHash root = new SimpleHash();
+			root.put("myposts", listing.getPosts());
+			if (withTagCloud) {
+				root.put("tag_cloud", tagCloud());
+			}
+			if (listing.getNextCursor() != null) {
+				root.put("next_page", path + "?before="
+						+ listing.getNextCursor());
+			}
+			if (before != null) {
+				root.put("first_page", path);
+			}
+			return root;
+		}
+
+	}
+
+	/**
+	 * @param request
+	 * Check whether the client takes gzip, i.e. Accept-Encoding names gzip
+	 * without q=0. A bare * is not enough: Spark only compresses for gzip.
+	 * 
+	 * @return true if the response may be gzip compressed
+	 */
+	static boolean acceptsGzip(final Request request) {
+		String accept = request.headers("Accept-Encoding");
+		if (accept == null) {
+			return false;
+		}
+		for (String coding : accept.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim();
+			if (!name.equalsIgnoreCase("gzip")) {
+				continue;
+			}
+			float q = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						q = Float.parseFloat(param.substring(2));
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			return q > 0;
+		}
+		return false;
+	}
+
+	private static byte[] gzip(final String html) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				html.length() / 4);
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		try {
+			out.write(html.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	// weak comparison, the only one If-None-Match uses
+	private static boolean etagMatches(final String ifNoneMatch,
+			final String etag) {
+		String opaque = etag.substring(2);
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*")) {
+				return true;
+			}
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals(opaque)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean notModifiedSince(final Request request,
+			final Date lastModified) {
+		long since;
+		try {
+			since = request.raw().getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		// HTTP dates have whole seconds
+		return since >= 0 && lastModified.getTime() / 1000 <= since / 1000;
+	}
+
+	// Spark 2 takes the path separately from the route
+	private static void get(final FreemarkerBasedRoute route) {
+		Spark.get(route.path, route);
+	}
+
+	private static void post(final FreemarkerBasedRoute route) {
+		Spark.post(route.path, route);
+	}
+
+	// the most used tags in alphabetical order, each with a font size that
+	// grows with the log of its count
+	private List<Document> tagCloud() {
+		List<Document> popular = blogPostDao.findPopularTags(TAG_CLOUD_SIZE);
+		List<Document> cloud = new ArrayList<Document>(popular.size());
+		if (popular.isEmpty()) {
+			return cloud;
+		}
+		double most = Math.log(popular.get(0).getInteger("count"));
+		double least = Math.log(popular.get(popular.size() - 1).getInteger(
+				"count"));
+		for (Document tag : popular) {
+			// all the same size when every tag has the same count
+			int size = 100;
+			if (most > least) {
+				size = TAG_CLOUD_MIN_SIZE
+						+ (int) Math.round((TAG_CLOUD_MAX_SIZE - TAG_CLOUD_MIN_SIZE)
+								* (Math.log(tag.getInteger("count")) - least)
+								/ (most - least));
+			}
+			cloud.add(new Document(tag).append("size", size));
+		}
+		Collections.sort(cloud, new Comparator<Document>() {
+			public int compare(Document a, Document b) {
+				return a.getString("tag").compareTo(b.getString("tag"));
+			}
+		});
+		return cloud;
 	}
 
 	private void initializeRoutes() throws IOException {
@@ -108,15 +557,31 @@ public class BlogController {
 				String username = sessionDao
 						.findUserNameBySessionId(getSessionCookie(request));
 
-				List<Document> posts = blogPostDao.findByDateDescending(10);
-				SimpleHash root = new SimpleHash();
-
-				root.put("myposts", posts);
-				if (username != null) {
-					root.put("username", username);
+				// an unreadable cursor just shows the newest posts
+				PageCursor before = PageCursor.parse(request
+						.queryParams("before"));
+				// the version is read first, so a conditional GET is
+				// answered without finding the listing
+				Document listingVersion = blogPostDao.findListingVersion(
+						null, before);
+				// only the first page has the cloud, which can change
+				// without the posts when another instance adds a post
+				String tagCloudVersion = before == null ? blogPostDao
+						.findPopularTagsVersion() : null;
+				String version = listingVersion.getString("version");
+				if (tagCloudVersion != null) {
+					version += "." + tagCloudVersion.substring(0, 16);
+				}
+				if (notModified(request, response, version,
+						listingVersion.getDate("last_modified"), username)) {
+					return;
 				}
 
-				template.process(root, writer);
+				ListingCache.Listing listing = blogPostDao
+						.findListingByDateDescending(BlogPostDAO.PAGE_SIZE,
+								before);
+				renderListing(request, response, listing, "/", before,
+						tagCloudVersion, username, writer);
 			}
 		});
 
@@ -127,12 +592,38 @@ public class BlogController {
 					Writer writer) throws IOException, TemplateException {
 				String permalink = request.params(":permalink");
 
-				System.out.println("/post: get " + permalink);
+				logger.log(Level.FINE, "/post: get {0}", permalink);
+
+				int commentPage = parsePageNumber(request.queryParams("cpage"));
+				int commentOffset = (commentPage - 1)
+						* BlogPostDAO.COMMENTS_PAGE_SIZE;
+
+				// a conditional GET is answered from the version alone; any
+				// other gets the version with the post. The page is the same
+				// for everyone, so no username.
+				boolean conditional = request.headers("If-None-Match") != null
+						|| request.headers("If-Modified-Since") != null;
+				if (conditional) {
+					Document version = blogPostDao.findPostVersion(permalink,
+							commentOffset, BlogPostDAO.COMMENTS_PAGE_SIZE);
+					if (version != null
+							&& notModified(request, response,
+									version.getString("version"),
+									version.getDate("last_modified"), null)) {
+						return;
+					}
+				}
 
-				Document post = blogPostDao.findPostByPermalink(permalink);
+				Document post = blogPostDao.findPostByPermalink(permalink,
+						commentOffset, BlogPostDAO.COMMENTS_PAGE_SIZE);
 				if (post == null) {
 					response.redirect("/post_not_found");
 				} else {
+					if (!conditional) {
+						notModified(request, response,
+								post.getString("page_version"),
+								post.getDate("page_last_modified"), null);
+					}
 					// empty comment to hold new comment in form at bottom of
 					// blog entry detail page
 					SimpleHash newComment = new SimpleHash();
@@ -145,7 +636,16 @@ public class BlogController {
 					root.put("post", post);
 					root.put("comment", newComment);
 
-					template.process(root, writer);
+					// paging through comments; ordinals for likes stay
+					// absolute positions in the comments array, or are the
+					// comment ids for bucketed comments
+					root.put("comment_offset", commentOffset);
+					root.put("comment_page", commentPage);
+					root.put("has_previous_comments", commentPage > 1);
+					root.put("has_next_comments",
+							hasMoreComments(post, commentOffset));
+
+					renderTemplate(root, writer);
 				}
 			}
 		});
@@ -166,17 +666,16 @@ public class BlogController {
 
 				if (validateSignup(username, password, verify, email, root)) {
 					// good user
-					System.out.println("Signup: Creating user with: "
-							+ username + " " + password);
+					logger.log(Level.INFO, "Signup: creating user {0}",
+							username);
 					if (!userDao.addUser(username, password, email)) {
 						// duplicate user
 						root.put("username_error",
 								"Username already in use, Please choose another");
-						template.process(root, writer);
+						renderTemplate(root, writer);
 					} else {
 						// good user, let's start a session
 						String sessionID = sessionDao.startSession(username);
-						System.out.println("Session ID is" + sessionID);
 
 						response.raw().addCookie(
 								new Cookie("session", sessionID));
@@ -184,8 +683,8 @@ public class BlogController {
 					}
 				} else {
 					// bad signup
-					System.out.println("User Registration did not validate");
-					template.process(root, writer);
+					logger.fine("User Registration did not validate");
+					renderTemplate(root, writer);
 				}
 			}
 		});
@@ -207,7 +706,7 @@ public class BlogController {
 				root.put("email_error", "");
 				root.put("verify_error", "");
 
-				template.process(root, writer);
+				renderTemplate(root, writer);
 			}
 		});
 
@@ -229,7 +728,7 @@ public class BlogController {
 					SimpleHash root = new SimpleHash();
 					root.put("username", username);
 
-					template.process(root, writer);
+					renderTemplate(root, writer);
 				}
 			}
 		});
@@ -262,13 +761,13 @@ public class BlogController {
 					root.put("username", username);
 					root.put("tags", tags);
 					root.put("body", post);
-					template.process(root, writer);
+					renderTemplate(root, writer);
 				} else {
 					// extract tags
 					ArrayList<String> tagsArray = extractTags(tags);
 
 					// substitute some <p> for the paragraph breaks
-					post = post.replaceAll("\\r?\\n", "<p>");
+					post = toParagraphs(post);
 
 					String permalink = blogPostDao.addPost(title, post,
 							tagsArray, username);
@@ -288,8 +787,7 @@ public class BlogController {
 				String username = sessionDao.findUserNameBySessionId(cookie);
 
 				if (username == null) {
-					System.out
-							.println("welcome() can't identify the user, redirecting to signup");
+					logger.fine("welcome() can't identify the user, redirecting to signup");
 					response.redirect("/signup");
 
 				} else {
@@ -297,7 +795,7 @@ public class BlogController {
 
 					root.put("username", username);
 
-					template.process(root, writer);
+					renderTemplate(root, writer);
 				}
 			}
 		});
@@ -316,27 +814,31 @@ public class BlogController {
 						.queryParams("commentBody"));
 				String permalink = request.queryParams("permalink");
 
-				Document post = blogPostDao.findPostByPermalink(permalink);
-				if (post == null) {
-					response.redirect("/post_not_found");
-				}
 				// check that comment is good
-				else if (name.equals("") || body.equals("")) {
-					// bounce this back to the user for correction
-					SimpleHash root = new SimpleHash();
-					SimpleHash comment = new SimpleHash();
-
-					comment.put("name", name);
-					comment.put("email", email);
-					comment.put("body", body);
-					root.put("comment", comment);
-					root.put("post", post);
-					root.put("errors",
-							"Post must contain your name and an actual comment");
-
-					template.process(root, writer);
+				if (name.equals("") || body.equals("")) {
+					// the post is only needed to re-render the page
+					Document post = blogPostDao.findPostByPermalink(permalink);
+					if (post == null) {
+						response.redirect("/post_not_found");
+					} else {
+						// bounce this back to the user for correction
+						SimpleHash root = new SimpleHash();
+						SimpleHash comment = new SimpleHash();
+
+						comment.put("name", name);
+						comment.put("email", email);
+						comment.put("body", body);
+						root.put("comment", comment);
+						root.put("post", post);
+						root.put("errors",
+								"Post must contain your name and an actual comment");
+
+						renderTemplate(root, writer);
+					}
+				} else if (!blogPostDao.addPostComment(name, email, body,
+						permalink)) {
+					response.redirect("/post_not_found");
 				} else {
-					blogPostDao.addPostComment(name, email, body, permalink);
 					response.redirect("/post/" + permalink);
 				}
 			}
@@ -352,7 +854,7 @@ public class BlogController {
 				root.put("username", "");
 				root.put("login_error", "");
 
-				template.process(root, writer);
+				renderTemplate(root, writer);
 			}
 		});
 
@@ -369,8 +871,7 @@ public class BlogController {
 				String username = request.queryParams("username");
 				String password = request.queryParams("password");
 
-				System.out.println("Login: User submitted: " + username + "  "
-						+ password);
+				logger.log(Level.FINE, "Login: user submitted {0}", username);
 
 				Document user = userDao.validateLogin(username, password);
 
@@ -396,7 +897,7 @@ public class BlogController {
 							StringEscapeUtils.escapeHtml4(username));
 					root.put("password", "");
 					root.put("login_error", "Invalid Login");
-					template.process(root, writer);
+					renderTemplate(root, writer);
 				}
 			}
 		});
@@ -409,18 +910,66 @@ public class BlogController {
 
 				String username = sessionDao
 						.findUserNameBySessionId(getSessionCookie(request));
-				SimpleHash root = new SimpleHash();
 
 				String tag = StringEscapeUtils.escapeHtml4(request
 						.params(":thetag"));
-				List<Document> posts = blogPostDao.findByTagDateDescending(tag);
+				PageCursor before = PageCursor.parse(request
+						.queryParams("before"));
+				Document listingVersion = blogPostDao.findListingVersion(tag,
+						before);
+				if (notModified(request, response,
+						listingVersion.getString("version"),
+						listingVersion.getDate("last_modified"), username)) {
+					return;
+				}
+
+				ListingCache.Listing listing = blogPostDao
+						.findListingByTagDateDescending(tag, before);
+
+				renderListing(request, response, listing, "/tag/" + tag,
+						before, null, username, writer);
+			}
+		});
+
+		// This API lists every tag with the number of posts filed under it
+		get(new FreemarkerBasedRoute("/tags", "tags_template.ftl") {
+			@Override
+			protected void doHandle(Request request, Response response,
+					Writer writer) throws IOException, TemplateException {
+				String username = sessionDao
+						.findUserNameBySessionId(getSessionCookie(request));
 
-				root.put("myposts", posts);
+				SimpleHash root = new SimpleHash();
+				root.put("tags", blogPostDao.findPopularTags(Integer.MAX_VALUE));
 				if (username != null) {
 					root.put("username", username);
 				}
 
-				template.process(root, writer);
+				renderTemplate(root, writer);
+			}
+		});
+
+		// This API searches the titles, tags, bodies and comments of all posts
+		get(new FreemarkerBasedRoute("/search", "search_template.ftl") {
+			@Override
+			protected void doHandle(Request request, Response response,
+					Writer writer) throws IOException, TemplateException {
+				String username = sessionDao
+						.findUserNameBySessionId(getSessionCookie(request));
+
+				String query = request.queryParams("q");
+				if (query == null) {
+					query = "";
+				}
+
+				SimpleHash root = new SimpleHash();
+				root.put("q", StringEscapeUtils.escapeHtml4(query));
+				root.put("results", blogPostDao.search(query, SEARCH_RESULTS));
+				if (username != null) {
+					root.put("username", username);
+				}
+
+				renderTemplate(root, writer);
 			}
 		});
 
@@ -434,21 +983,19 @@ public class BlogController {
 				String commentOrdinalStr = request
 						.queryParams("comment_ordinal");
 
-				// look up the post in question
-
 				int ordinal = Integer.parseInt(commentOrdinalStr);
 
-				// TODO: check return or have checkSession throw
 				String username = sessionDao
 						.findUserNameBySessionId(getSessionCookie(request));
-				Document post = blogPostDao.findPostByPermalink(permalink);
 
-				// if post not found, redirect to post not found error
-				if (post == null) {
+				// likes are counted once per user, so only logged in users
+				// can like
+				if (username == null) {
+					response.redirect("/login");
+				} else if (!blogPostDao.likePost(permalink, ordinal, username)) {
+					// if post not found, redirect to post not found error
 					response.redirect("/post_not_found");
 				} else {
-					blogPostDao.likePost(permalink, ordinal);
-
 					response.redirect("/post/" + permalink);
 				}
 			}
@@ -460,7 +1007,7 @@ public class BlogController {
 			protected void doHandle(Request request, Response response,
 					Writer writer) throws IOException, TemplateException {
 				SimpleHash root = new SimpleHash();
-				template.process(root, writer);
+				renderTemplate(root, writer);
 			}
 		});
 
@@ -498,11 +1045,42 @@ public class BlogController {
 				SimpleHash root = new SimpleHash();
 
 				root.put("error", "System has encountered an error.");
-				template.process(root, writer);
+				renderTemplate(root, writer);
+			}
+		});
+
+		// Request and Mongo timings for Prometheus; only answers on the
+		// loopback interface unless blog.metrics.localOnly is false
+		Spark.get("/metrics", new Route() {
+			public Object handle(Request request, Response response) {
+				if (metricsLocalOnly && !isLoopback(request.raw().getRemoteAddr())) {
+					response.status(HttpServletResponse.SC_NOT_FOUND);
+					return "";
+				}
+				response.type("text/plain; version=0.0.4; charset=utf-8");
+				return Metrics.toPrometheusText();
 			}
 		});
 	}
 
+	/**
+	 * @param address
+	 * Check whether a remote address is this machine
+	 * 
+	 * @return true for 127.0.0.0/8 and ::1
+	 */
+	static boolean isLoopback(final String address) {
+		if (address == null) {
+			return false;
+		}
+		try {
+			// an IP literal is parsed, never looked up
+			return InetAddress.getByName(address).isLoopbackAddress();
+		} catch (UnknownHostException e) {
+			return false;
+		}
+	}
+
 	/**
 	 * @param request
 	 * helper function to get session cookie as string
@@ -539,27 +1117,117 @@ public class BlogController {
 		return null;
 	}
 
+	/**
+	 * @param page
+	 * helper function to read a 1-based page number from a query parameter
+	 * 
+	 * @return page number, 1 if missing or invalid
+	 */
+	private int parsePageNumber(final String page) {
+		if (page == null) {
+			return 1;
+		}
+		try {
+			// cap so the offset cannot overflow
+			return Math.min(Math.max(Integer.parseInt(page), 1), 100000);
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * @param post
+	 * @param commentOffset
+	 * helper function to tell whether comments follow the page that was loaded
+	 * 
+	 * @return true if there is a next page of comments
+	 */
+	private boolean hasMoreComments(final Document post, final int commentOffset) {
+		List<?> comments = (List<?>) post.get("comments");
+		int loaded = comments == null ? 0 : comments.size();
+
+		Number nextId = (Number) post.get("next_comment_id");
+		if (nextId != null) {
+			// bucketed, where the comment ids are the offsets and a comment
+			// that failed to be written can leave a gap
+			return commentOffset + BlogPostDAO.COMMENTS_PAGE_SIZE < nextId
+					.longValue();
+		}
+		Number total = (Number) post.get("num_comments");
+		if (total == null) {
+			// not backfilled yet, assume a full page means there is more
+			return loaded == BlogPostDAO.COMMENTS_PAGE_SIZE;
+		}
+		return commentOffset + loaded < total.intValue();
+	}
+
 	/**
 	 * @param tags
 	 * Parse the string object and obtains the tags and form an arraylist of tags
 	 * 
 	 * @return ArrayList of Tags
 	 */
-	private ArrayList<String> extractTags(String tags) {
-		tags = tags.replaceAll("\\s", "");
-		String tagArray[] = tags.split(",");
-
-		// let's clean it up, removing the empty string and removing dups
+	static ArrayList<String> extractTags(String tags) {
 		ArrayList<String> cleaned = new ArrayList<String>();
-		for (String tag : tagArray) {
-			if (!tag.equals("") && !cleaned.contains(tag)) {
-				cleaned.add(tag);
+		HashSet<String> seen = new HashSet<String>();
+		StringBuilder tag = new StringBuilder();
+
+		// one pass: drop whitespace, cut at commas, skip empty and dup tags
+		for (int i = 0, n = tags.length(); i <= n; i++) {
+			char c = i < n ? tags.charAt(i) : ',';
+			if (c == ',') {
+				if (tag.length() > 0) {
+					String cleanTag = tag.toString();
+					if (seen.add(cleanTag)) {
+						cleaned.add(cleanTag);
+					}
+					tag.setLength(0);
+				}
+			} else if (!isRegexWhitespace(c)) {
+				tag.append(c);
 			}
 		}
 
 		return cleaned;
 	}
 
+	/**
+	 * @param body
+	 * Substitute a <p> for every line break, like replaceAll("\\r?\\n", "<p>")
+	 * 
+	 * @return body with paragraph breaks
+	 */
+	static String toParagraphs(String body) {
+		if (body.indexOf('\n') < 0) {
+			return body;
+		}
+
+		StringBuilder paragraphs = new StringBuilder(body.length() + 32);
+		for (int i = 0, n = body.length(); i < n; i++) {
+			char c = body.charAt(i);
+			if (c == '\n') {
+				paragraphs.append("<p>");
+			} else if (c == '\r' && i + 1 < n && body.charAt(i + 1) == '\n') {
+				paragraphs.append("<p>");
+				i++;
+			} else {
+				paragraphs.append(c);
+			}
+		}
+		return paragraphs.toString();
+	}
+
+	/**
+	 * @param c
+	 * Same set of characters as \s in a java.util.regex pattern
+	 * 
+	 * @return true if c is whitespace
+	 */
+	static boolean isRegexWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+				|| c == '\f' || c == '\r';
+	}
+
 	/**
 	 * @param username
 	 * @param password
@@ -570,24 +1238,20 @@ public class BlogController {
 	 * 
 	 * @return Status of the validation
 	 */
-	public boolean validateSignup(String username, String password,
+	public static boolean validateSignup(String username, String password,
 			String verify, String email, HashMap<String, String> errors) {
-		String USER_RE = "^[a-zA-Z0-9_-]{3,20}$";
-		String PASS_RE = "^.{3,20}$";
-		String EMAIL_RE = "^[\\S]+@[\\S]+\\.[\\S]+$";
-
 		errors.put("username_error", "");
 		errors.put("password_error", "");
 		errors.put("verify_error", "");
 		errors.put("email_error", "");
 
-		if (!username.matches(USER_RE)) {
+		if (!USER_RE.matcher(username).matches()) {
 			errors.put("username_error",
 					"invalid username. try just letters and numbers");
 			return false;
 		}
 
-		if (!password.matches(PASS_RE)) {
+		if (!PASS_RE.matcher(password).matches()) {
 			errors.put("password_error", "invalid password.");
 			return false;
 		}
@@ -598,7 +1262,7 @@ public class BlogController {
 		}
 
 		if (!email.equals("")) {
-			if (!email.matches(EMAIL_RE)) {
+			if (!EMAIL_RE.matcher(email).matches()) {
 				errors.put("email_error", "Invalid Email Address");
 				return false;
 			}
@@ -607,6 +1271,260 @@ public class BlogController {
 		return true;
 	}
 
+	/**
+	 * @param config
+	 * Send all java.util.logging output, the Mongo driver's included, through
+	 * an AsyncLogHandler at the level set by blog.log.level, and flush it
+	 * when the JVM shuts down
+	 */
+	private static void configureLogging(final BlogConfig config) {
+		Level level = Level.parse(config.get("blog.log.level", "INFO"));
+		final AsyncLogHandler handler = new AsyncLogHandler(System.out,
+				config.getInt("blog.log.bufferSize",
+						AsyncLogHandler.DEFAULT_CAPACITY));
+		handler.setLevel(level);
+
+		Logger root = Logger.getLogger("");
+		for (Handler existing : root.getHandlers()) {
+			root.removeHandler(existing);
+		}
+		root.setLevel(level);
+		root.addHandler(handler);
+
+		Runtime.getRuntime().addShutdownHook(new Thread("async-log-shutdown") {
+			@Override
+			public void run() {
+				handler.close();
+			}
+		});
+	}
+
+	/**
+	 * @param config
+	 * @param virtualThreads
+	 * Set the embedded Jetty's port and thread pool. Platform threads come
+	 * from Jetty's pool, capped by blog.server.maxThreads if set; virtual
+	 * threads are started per request by a VirtualThreadPool.
+	 */
+	private static void configureServer(final BlogConfig config,
+			final boolean virtualThreads) {
+		if (virtualThreads) {
+			EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY,
+					new EmbeddedJettyFactory()
+							.withThreadPool(new VirtualThreadPool("blog-request")));
+		} else {
+			int maxThreads = config.getInt("blog.server.maxThreads", 0);
+			if (maxThreads > 0) {
+				Spark.threadPool(maxThreads);
+			}
+		}
+		Spark.port(config.getInt("blog.server.port", 8082));
+	}
+
+	/**
+	 * @param config
+	 * @param virtualThreads
+	 * Size the Mongo connection pool and set its timeouts from blog.mongo.*
+	 * settings, defaulting to the driver's values; options given in the
+	 * connection string take precedence. With virtual threads nothing but the
+	 * pool limits how many requests reach Mongo at once, so by default many
+	 * more of them may wait for a connection.
+	 * 
+	 * @return options builder for the MongoClientURI
+	 */
+	private static MongoClientOptions.Builder createMongoClientOptions(
+			final BlogConfig config, final boolean virtualThreads) {
+		return MongoClientOptions
+				.builder()
+				.connectionsPerHost(config.getInt("blog.mongo.maxPoolSize", 100))
+				.minConnectionsPerHost(
+						config.getInt("blog.mongo.minPoolSize", 0))
+				.threadsAllowedToBlockForConnectionMultiplier(
+						config.getInt("blog.mongo.waitQueueMultiple",
+								virtualThreads ? 100 : 5))
+				.maxWaitTime(config.getInt("blog.mongo.maxWaitTimeMs", 120000))
+				.maxConnectionIdleTime(
+						config.getInt("blog.mongo.maxConnectionIdleTimeMs", 0))
+				.maxConnectionLifeTime(
+						config.getInt("blog.mongo.maxConnectionLifeTimeMs", 0))
+				.connectTimeout(
+						config.getInt("blog.mongo.connectTimeoutMs", 10000))
+				.socketTimeout(config.getInt("blog.mongo.socketTimeoutMs", 0))
+				.serverSelectionTimeout(
+						config.getInt("blog.mongo.serverSelectionTimeoutMs",
+								30000));
+	}
+
+	/**
+	 * @param level
+	 *            "default" for the server's default, or "local" or "majority"
+	 * 
+	 * @return ReadConcern
+	 */
+	static ReadConcern readConcern(final String level) {
+		if (level.equals("default")) {
+			return ReadConcern.DEFAULT;
+		}
+		return new ReadConcern(ReadConcernLevel.fromString(level));
+	}
+
+	/**
+	 * @param config
+	 * Build the password hasher and its bounded executor from
+	 * blog.password.* settings
+	 * 
+	 * @return PasswordHashing shared by the user store
+	 */
+	private PasswordHashing createPasswordHashing(final BlogConfig config) {
+		return new PasswordHashing(new Pbkdf2PasswordHasher(config.getInt(
+				"blog.password.iterations",
+				Pbkdf2PasswordHasher.DEFAULT_ITERATIONS)),
+				PasswordHashing.newHashingExecutor(config.getInt(
+						"blog.password.hashingThreads", Runtime.getRuntime()
+								.availableProcessors()), config.getInt(
+						"blog.password.hashingQueueSize", 64)),
+				PasswordHashing.DEFAULT_HASHING_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param blogPostDao
+	 * @param config
+	 * Start the write-behind pipeline for comments and likes, export its queue
+	 * depths and failures on /metrics and flush it when the JVM shuts down
+	 */
+	private void startWriteBehind(final BlogPostDAO blogPostDao,
+			final BlogConfig config) {
+		final PostWriteBehind writeBehind = blogPostDao.startWriteBehind(
+				config.getLong("blog.writeBehind.flushIntervalMillis", 100),
+				config.getInt("blog.writeBehind.maxPendingComments", 10000),
+				config.getInt("blog.writeBehind.maxPendingLikes", 100000));
+		Metrics.register("blog_write_behind_pending_comments", "gauge",
+				"Comments waiting for the next write-behind flush.",
+				new Metrics.Gauge() {
+					public long getValue() {
+						return writeBehind.getPendingComments();
+					}
+				});
+		Metrics.register("blog_write_behind_pending_likes", "gauge",
+				"Comments with likes waiting for the next write-behind flush.",
+				new Metrics.Gauge() {
+					public long getValue() {
+						return writeBehind.getPendingLikes();
+					}
+				});
+		Metrics.register("blog_write_behind_retrying_writes", "gauge",
+				"Write-behind writes that failed and will be retried.",
+				new Metrics.Gauge() {
+					public long getValue() {
+						return writeBehind.getRetryingWrites();
+					}
+				});
+		Metrics.register("blog_write_behind_rejected_writes_total", "counter",
+				"Writes made synchronously because a write-behind buffer was full.",
+				new Metrics.Gauge() {
+					public long getValue() {
+						return writeBehind.getRejectedWrites();
+					}
+				});
+		Metrics.register("blog_write_behind_flush_failures_total", "counter",
+				"Write-behind bulk writes that failed in whole or in part.",
+				new Metrics.Gauge() {
+					public long getValue() {
+						return writeBehind.getFlushFailures();
+					}
+				});
+		Metrics.register("blog_write_behind_dropped_writes_total", "counter",
+				"Write-behind writes given up on after repeated failures.",
+				new Metrics.Gauge() {
+					public long getValue() {
+						return writeBehind.getDroppedWrites();
+					}
+				});
+		Metrics.register("blog_write_behind_flush_duration_seconds",
+				"Time of each write-behind flush, from draining the buffers "
+						+ "to the last write.", writeBehind.getFlushLatency());
+		Runtime.getRuntime().addShutdownHook(
+				new Thread("post-write-behind-shutdown") {
+					@Override
+					public void run() {
+						writeBehind.close();
+						logger.info("Write-behind closed: " + writeBehind);
+					}
+				});
+	}
+
+	/**
+	 * @param sessionCache
+	 * Export the hit, miss and eviction counters of the session cache and its
+	 * size on /metrics
+	 */
+	private static void exportSessionCacheMetrics(
+			final SessionCache sessionCache) {
+		Metrics.register("blog_session_cache_hits_total", "counter",
+				"Session lookups answered by the session cache.",
+				new Metrics.Gauge() {
+					public long getValue() {
+						return sessionCache.getHitCount();
+					}
+				});
+		Metrics.register("blog_session_cache_misses_total", "counter",
+				"Session lookups that went to the sessions collection.",
+				new Metrics.Gauge() {
+					public long getValue() {
+						return sessionCache.getMissCount();
+					}
+				});
+		Metrics.register("blog_session_cache_evictions_total", "counter",
+				"Session cache entries dropped as expired or to make room.",
+				new Metrics.Gauge() {
+					public long getValue() {
+						return sessionCache.getEvictionCount();
+					}
+				});
+		Metrics.register("blog_session_cache_entries", "gauge",
+				"Session lookups held by the session cache.",
+				new Metrics.Gauge() {
+					public long getValue() {
+						return sessionCache.size();
+					}
+				});
+	}
+
+	/**
+	 * @param blogDatabase
+	 * @param config
+	 * Build the SessionDAO for the configured blog.session.mode, either
+	 * "mongo" (default) or "token" for stateless signed session cookies
+	 * 
+	 * @return SessionDAO
+	 */
+	private SessionDAO createSessionDao(final MongoDatabase blogDatabase,
+			final BlogConfig config) throws UnsupportedEncodingException {
+		String mode = config.get("blog.session.mode", "mongo");
+
+		if (mode.equals("mongo")) {
+			return new SessionDAO(blogDatabase);
+		} else if (mode.equals("token")) {
+			String secret = config.get("blog.session.secret", null);
+			byte secretBytes[];
+			if (secret == null) {
+				logger.warning("blog.session.secret is not set, "
+						+ "sessions will not survive a restart");
+				secretBytes = SessionTokenSigner.randomSecret();
+			} else {
+				secretBytes = secret.getBytes("UTF-8");
+			}
+			long ttlMillis = TimeUnit.MINUTES.toMillis(config.getLong(
+					"blog.session.tokenTtlMinutes", TimeUnit.DAYS.toMinutes(7)));
+
+			return new SessionDAO(blogDatabase, new SessionCache(),
+					new SessionTokenSigner(secretBytes, ttlMillis));
+		} else {
+			throw new IllegalArgumentException("Unknown blog.session.mode: "
+					+ mode);
+		}
+	}
+
 	private Configuration createFreemarkerConfiguration() {
 		Configuration retVal = new Configuration();
 		retVal.setClassForTemplateLoading(BlogController.class, "/freemarker");
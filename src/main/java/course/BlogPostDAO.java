@@ -1,51 +1,490 @@
 package course;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.exclude;
+import static com.mongodb.client.model.Projections.excludeId;
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Projections.slice;
+import static com.mongodb.client.model.Sorts.ascending;
 import static com.mongodb.client.model.Sorts.descending;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.result.UpdateResult;
 
 /**
  * @author nramanathan
  * 
  */
-public class BlogPostDAO {
+public class BlogPostDAO implements BlogPostStore {
+	private static final Logger logger = Logger.getLogger(BlogPostDAO.class
+			.getName());
+
+	public static final int COMMENTS_PAGE_SIZE = 50;
+	// posts on a home or tag page, and the most a caller may ask for
+	public static final int PAGE_SIZE = 10;
+	public static final int MAX_PAGE_SIZE = 50;
+
+	// list pages only show the comment count, kept in num_comments
+	private static final Bson LISTING_PROJECTION = exclude("comments");
+	private static final Bson VERSION_PROJECTION = include("version",
+			"last_modified", "date", CommentBuckets.LAYOUT_FIELD);
+
+	private static final int DUPLICATE_KEY = 11000;
+	// how long a like may stay pending before it is taken for lost to a
+	// crash, well past a write-behind flush and its retries
+	private static final long PENDING_LIKE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+	private static final int MAX_PERMALINK_ATTEMPTS = 10;
+
+	private static final Metrics.MongoOperation FIND_POST = Metrics
+			.mongoOperation("BlogPostDAO", "findPostByPermalink");
+	private static final Metrics.MongoOperation FIND_POST_VERSION = Metrics
+			.mongoOperation("BlogPostDAO", "findPostVersion");
+	private static final Metrics.MongoOperation FIND_BY_DATE = Metrics
+			.mongoOperation("BlogPostDAO", "findByDateDescending");
+	private static final Metrics.MongoOperation FIND_BY_TAG = Metrics
+			.mongoOperation("BlogPostDAO", "findByTagDateDescending");
+	private static final Metrics.MongoOperation FIND_LISTING_VERSION = Metrics
+			.mongoOperation("BlogPostDAO", "findListingVersion");
+	private static final Metrics.MongoOperation INSERT_POST = Metrics
+			.mongoOperation("BlogPostDAO", "addPost");
+	private static final Metrics.MongoOperation ADD_COMMENT = Metrics
+			.mongoOperation("BlogPostDAO", "addPostComment");
+	private static final Metrics.MongoOperation LIKE_COMMENT = Metrics
+			.mongoOperation("BlogPostDAO", "likePost");
+
+	private final MongoDatabase blogDatabase;
 	private final MongoCollection<Document> postsCollection;
+	// the same collection with the read preference and concern for finds
+	private final MongoCollection<Document> readPostsCollection;
+	private final ListingCache listingCache;
+	private volatile SearchIndex searchIndex = new SearchIndex();
+	// the index a rebuild is filling, which writes also go to so that it
+	// has those made after the rebuild read past their post
+	private volatile SearchIndex nextSearchIndex;
+	private final TagStats tagStats;
+	private final SlugAllocator slugAllocator;
+	private final CommentBuckets commentBuckets;
+	private final CommentLikes commentLikes;
+	// whether new posts keep their comments in buckets
+	private final boolean bucketedComments;
+	private volatile PostWriteBehind writeBehind;
 
 	public BlogPostDAO(final MongoDatabase blogDatabase) {
+		this(blogDatabase, new ListingCache());
+	}
+
+	public BlogPostDAO(final MongoDatabase blogDatabase,
+			final ListingCache listingCache) {
+		this(blogDatabase, listingCache, false);
+	}
+
+	/**
+	 * @param blogDatabase
+	 * @param listingCache
+	 * @param bucketedComments
+	 *            true to store the comments of new posts in the comments
+	 *            collection rather than embedded in the post
+	 */
+	public BlogPostDAO(final MongoDatabase blogDatabase,
+			final ListingCache listingCache, final boolean bucketedComments) {
+		this(blogDatabase, blogDatabase, listingCache, bucketedComments);
+	}
+
+	/**
+	 * @param blogDatabase
+	 * @param readDatabase
+	 *            the same database with the read preference and read concern
+	 *            for the find methods, e.g. to spread page views over
+	 *            secondaries; writes always go through blogDatabase
+	 * @param listingCache
+	 * @param bucketedComments
+	 */
+	public BlogPostDAO(final MongoDatabase blogDatabase,
+			final MongoDatabase readDatabase, final ListingCache listingCache,
+			final boolean bucketedComments) {
+		this.blogDatabase = blogDatabase;
 		postsCollection = blogDatabase.getCollection("posts");
+		readPostsCollection = readDatabase.getCollection("posts");
+		this.listingCache = listingCache;
+		this.slugAllocator = new SlugAllocator(blogDatabase);
+		this.commentBuckets = new CommentBuckets(blogDatabase, readDatabase);
+		this.commentLikes = new CommentLikes(blogDatabase);
+		this.tagStats = new TagStats(blogDatabase, readDatabase);
+		this.bucketedComments = bucketedComments;
+	}
+
+	/**
+	 * @param flushIntervalMillis
+	 * @param maxPendingComments
+	 * @param maxPendingLikes
+	 * Route addPostComment and likePost through a write-behind pipeline that
+	 * batches them into periodic bulk writes
+	 * 
+	 * @return the pipeline, to read its metrics and close it on shutdown
+	 */
+	public PostWriteBehind startWriteBehind(long flushIntervalMillis,
+			int maxPendingComments, int maxPendingLikes) {
+		writeBehind = new PostWriteBehind(postsCollection, commentBuckets,
+				commentLikes, listingCache, flushIntervalMillis, maxPendingComments,
+				maxPendingLikes);
+		return writeBehind;
+	}
+
+	/**
+	 * Create the indexes behind findPostByPermalink, findByTagDateDescending
+	 * and findByDateDescending. Creating an index that already exists is a
+	 * no-op, so this is called on every startup.
+	 */
+	public void ensureIndexes() {
+		try {
+			postsCollection.createIndex(new Document("permalink", 1),
+					new IndexOptions().unique(true));
+		} catch (MongoCommandException e) {
+			if (e.getCode() != DUPLICATE_KEY) {
+				throw e;
+			}
+			// existing data has duplicate permalinks; index it anyway so
+			// lookups don't scan the collection
+			logger.warning("Duplicate permalinks found, "
+					+ "creating a non-unique permalink index");
+			postsCollection.createIndex(new Document("permalink", 1));
+		}
+		// _id breaks ties between posts of the same millisecond, so a page
+		// cursor always names a single position in these
+		postsCollection.createIndex(new Document("tags", 1).append("date", -1)
+				.append("_id", -1));
+		postsCollection.createIndex(new Document("date", -1).append("_id", -1));
+		// the latest change for the ETag of a listing, see findListingVersion
+		postsCollection.createIndex(new Document("tags", 1).append(
+				"last_modified", -1));
+		postsCollection.createIndex(new Document("last_modified", -1));
+		commentBuckets.ensureIndexes();
+		commentLikes.ensureIndexes();
+	}
+
+	/**
+	 * Fill tag_stats from the existing posts if it is empty, see
+	 * {@link TagStats#backfill()}
+	 */
+	public void backfillTagStats() {
+		tagStats.backfill();
+	}
+
+	/**
+	 * Index every post and comment for search, replacing the index once it
+	 * is built. Called at startup, and periodically if the search index is
+	 * refreshed; posts and comments added through this DAO are indexed as
+	 * they are.
+	 */
+	public synchronized void buildSearchIndex() {
+		SearchIndex index = new SearchIndex();
+		nextSearchIndex = index;
+		try {
+			// oldest first, so a tie in score goes to the newer post
+			for (Document post : readPostsCollection
+					.find()
+					.projection(
+							include("permalink", "title", "author", "date",
+									"tags", "body", "comments.body"))
+					.sort(ascending("date", "_id"))) {
+				index.addPost(post);
+			}
+			for (Document bucket : commentBuckets.findAllCommentBodies()) {
+				String permalink = bucket.getString("permalink");
+				for (Object comment : (List<?>) bucket.get("comments")) {
+					index.addComment(permalink,
+							((Document) comment).getString("body"));
+				}
+			}
+			// before the writes stop going to both, so none is missed
+			searchIndex = index;
+		} finally {
+			nextSearchIndex = null;
+		}
+		logger.info("Indexed " + index.size() + " posts for search");
+	}
+
+	/**
+	 * @param intervalMillis
+	 * Rebuild the search index periodically, so that it finds the posts and
+	 * comments written through other instances
+	 */
+	public void startSearchIndexRefresh(final long intervalMillis) {
+		ScheduledExecutorService refresher = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "search-index-refresh");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					buildSearchIndex();
+				} catch (RuntimeException e) {
+					// keep the current index and try again next time
+					logger.log(Level.WARNING, "Search index refresh failed", e);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// a comment written while a rebuild runs may be indexed twice by it,
+	// which only adds to the weight of its terms until the next rebuild
+	private void indexPost(final Document post) {
+		// the rebuild first: once it is cleared searchIndex is the new one
+		SearchIndex next = nextSearchIndex;
+		SearchIndex current = searchIndex;
+		if (next != null && next != current) {
+			next.addPost(post);
+		}
+		current.addPost(post);
+	}
+
+	private void indexComment(final String permalink, final String body) {
+		SearchIndex next = nextSearchIndex;
+		SearchIndex current = searchIndex;
+		if (next != null && next != current) {
+			next.addComment(permalink, body);
+		}
+		current.addComment(permalink, body);
+	}
+
+	/**
+	 * Explain the queries issued on every page view and fail if any of them
+	 * would scan the whole collection or sort in memory.
+	 * 
+	 * @throws IllegalStateException
+	 *             naming the offending queries
+	 */
+	public void verifyQueryPlans() {
+		Map<String, Document> queries = new LinkedHashMap<String, Document>();
+		queries.put("findPostByPermalink", new Document("find", "posts")
+				.append("filter", new Document("permalink", "")));
+		queries.put("findByTagDateDescending", new Document("find", "posts")
+				.append("filter", new Document("tags", ""))
+				.append("sort", new Document("date", -1).append("_id", -1))
+				.append("limit", PAGE_SIZE + 1));
+		queries.put("findByDateDescending", new Document("find", "posts")
+				.append("sort", new Document("date", -1).append("_id", -1))
+				.append("limit", PAGE_SIZE + 1));
+		Date before = new Date(0);
+		queries.put("findByDateDescending before", new Document("find",
+				"posts")
+				.append("filter", new Document("date", new Document("$lte",
+						before)).append("$or", Arrays.asList(new Document(
+						"date", new Document("$lt", before)), new Document(
+						"_id", new Document("$lt", new ObjectId(before, 0))))))
+				.append("sort", new Document("date", -1).append("_id", -1))
+				.append("limit", PAGE_SIZE + 1));
+		// a later tag page must stay on {tags, date, _id}, not fall back to
+		// the date index and filter the tags
+		queries.put("findByTagDateDescending before", new Document("find",
+				"posts")
+				.append("filter", new Document("tags", "").append("date",
+						new Document("$lte", before)).append("$or", Arrays
+						.asList(new Document("date", new Document("$lt",
+								before)), new Document("_id", new Document(
+								"$lt", new ObjectId(before, 0))))))
+				.append("sort", new Document("date", -1).append("_id", -1))
+				.append("limit", PAGE_SIZE + 1));
+		queries.put("findListingVersion", new Document("find", "posts")
+				.append("sort", new Document("last_modified", -1))
+				.append("limit", 1));
+		queries.put("findListingVersion tag", new Document("find", "posts")
+				.append("filter", new Document("tags", ""))
+				.append("sort", new Document("last_modified", -1))
+				.append("limit", 1));
+
+		List<String> failures = new ArrayList<String>();
+		for (Map.Entry<String, Document> query : queries.entrySet()) {
+			Document explain = blogDatabase.runCommand(new Document("explain",
+					query.getValue()).append("verbosity", "queryPlanner"));
+			Document queryPlanner = (Document) explain.get("queryPlanner");
+			String stage = findUnindexedStage((Document) queryPlanner
+					.get("winningPlan"));
+			if (stage != null) {
+				failures.add(query.getKey() + " uses " + stage);
+			}
+		}
+
+		if (!failures.isEmpty()) {
+			throw new IllegalStateException("Unindexed queries: " + failures);
+		}
+	}
+
+	// walks a winning plan looking for a collection scan or in-memory sort
+	private String findUnindexedStage(final Document plan) {
+		if (plan == null) {
+			return null;
+		}
+		String stage = plan.getString("stage");
+		if ("COLLSCAN".equals(stage) || "SORT".equals(stage)) {
+			return stage;
+		}
+
+		String found = findUnindexedStage((Document) plan.get("inputStage"));
+		if (found == null && plan.get("inputStages") != null) {
+			for (Object input : (List<?>) plan.get("inputStages")) {
+				found = findUnindexedStage((Document) input);
+				if (found != null) {
+					break;
+				}
+			}
+		}
+		return found;
 	}
 
 	/**
 	 * @param permalink
 	 * 
-	 * Find a post by using permalink
+	 * Find a post by using permalink, with the first page of its comments
 	 * @return Document of the Post object
 	 */
 	public Document findPostByPermalink(String permalink) {
-		Document post = postsCollection.find(eq("permalink", permalink))
-				.first();
-
-		// fix up if a post has no likes
-		if (post != null) {
-			List<Document> comments = (List<Document>) post.get("comments");
-			for (Document comment : comments) {
-				if (!comment.containsKey("num_likes")) {
-					comment.put("num_likes", 0);
-				}
-			}
+		return findPostByPermalink(permalink, 0, COMMENTS_PAGE_SIZE);
+	}
+
+	/**
+	 * @param permalink
+	 * @param commentSkip
+	 * @param commentLimit
+	 * 
+	 * Find a post by using permalink. Only the requested slice of the
+	 * comments array is sent back by the server, or for a bucketed post only
+	 * the buckets holding that slice are read; comments without likes are
+	 * defaulted to zero by the template rather than here. The post carries
+	 * page_version and page_last_modified, what findPostVersion would return
+	 * for the same page, so an unconditional GET needs no second lookup.
+	 * 
+	 * A post that a secondary does not have yet, typically the one the author
+	 * is redirected to right after creating it, is looked up again on the
+	 * primary.
+	 * @return Document of the Post object
+	 */
+	public Document findPostByPermalink(String permalink, int commentSkip,
+			int commentLimit) {
+		Document post = findPost(readPostsCollection, permalink, commentSkip,
+				commentLimit);
+		if (post == null
+				&& !readPostsCollection.getReadPreference().equals(
+						ReadPreference.primary())) {
+			post = findPost(postsCollection, permalink, commentSkip,
+					commentLimit);
+		}
+		if (post == null) {
+			return null;
 		}
+		Document buckets = null;
+		if (isBucketed(post)) {
+			buckets = commentBuckets.findPage(permalink, commentSkip,
+					commentLimit);
+			post.put("comments", buckets.get("comments"));
+		}
+		Document version = pageVersion(post, buckets);
+		post.put("page_version", version.get("version"));
+		post.put("page_last_modified", version.get("last_modified"));
 		return post;
 	}
 
+	/**
+	 * @param permalink
+	 * @param commentSkip
+	 * @param commentLimit
+	 * Read only the version of a post and of the page of its comments, to
+	 * answer a conditional GET without fetching the post
+	 * 
+	 * @return Document with a version string and last_modified, null if no
+	 *         post has the permalink
+	 */
+	public Document findPostVersion(final String permalink,
+			final int commentSkip, final int commentLimit) {
+		Document post;
+		long start = FIND_POST_VERSION.start();
+		try {
+			post = readPostsCollection.find(eq("permalink", permalink))
+					.projection(VERSION_PROJECTION).first();
+		} finally {
+			FIND_POST_VERSION.stop(start);
+		}
+		if (post == null) {
+			return null;
+		}
+		return pageVersion(post, isBucketed(post) ? commentBuckets.findVersion(
+				permalink, commentSkip, commentLimit) : null);
+	}
+
+	// the version string and last_modified of a post page, from the post and
+	// for a bucketed post the buckets of the page
+	private static Document pageVersion(final Document post,
+			final Document buckets) {
+		// posts written before versions existed count as version 0, last
+		// modified when they were posted
+		Number postVersion = (Number) post.get("version");
+		String version = String.valueOf(postVersion == null ? 0 : postVersion
+				.longValue());
+		Date lastModified = post.getDate("last_modified");
+		if (lastModified == null) {
+			lastModified = post.getDate("date");
+		}
+		if (buckets != null) {
+			version += "." + buckets.getLong("version");
+			Date bucketModified = buckets.getDate("last_modified");
+			if (bucketModified != null && bucketModified.after(lastModified)) {
+				lastModified = bucketModified;
+			}
+		}
+		return new Document("version", version).append("last_modified",
+				lastModified);
+	}
+
+	private static Document findPost(
+			final MongoCollection<Document> collection, final String permalink,
+			final int commentSkip, final int commentLimit) {
+		long start = FIND_POST.start();
+		try {
+			return collection.find(eq("permalink", permalink))
+					.projection(slice("comments", commentSkip, commentLimit))
+					.first();
+		} finally {
+			FIND_POST.stop(start);
+		}
+	}
+
 	/**
 	 * @param limit
 	 * Obtain a list of posts sorted by date in descending order limited to a particular number
@@ -53,8 +492,32 @@ public class BlogPostDAO {
 	 * @return list of Post objects
 	 */
 	public List<Document> findByDateDescending(int limit) {
-		return postsCollection.find().sort(descending("date")).limit(limit)
-				.into(new ArrayList<Document>());
+		return findListingByDateDescending(limit).getPosts();
+	}
+
+	/**
+	 * @param limit
+	 * Same as findByDateDescending, served from the listing cache when possible
+	 * 
+	 * @return cached Listing of Post objects
+	 */
+	public ListingCache.Listing findListingByDateDescending(int limit) {
+		return findListingByDateDescending(limit, null);
+	}
+
+	/**
+	 * @param limit
+	 * @param before
+	 *            cursor of the previous page, null for the first page
+	 * Obtain the page of posts that sort after the cursor
+	 * 
+	 * @return Listing of Post objects, cached if it is the first page
+	 */
+	public ListingCache.Listing findListingByDateDescending(int limit,
+			final PageCursor before) {
+		limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+		return findListing(ListingCache.homeKey(limit), null, limit, before,
+				FIND_BY_DATE);
 	}
 
 	/**
@@ -64,8 +527,140 @@ public class BlogPostDAO {
 	 * @return
 	 */
 	public List<Document> findByTagDateDescending(final String tag) {
-		return postsCollection.find(eq("tags", tag)).sort(descending("date"))
-				.limit(10).into(new ArrayList<Document>());
+		return findListingByTagDateDescending(tag).getPosts();
+	}
+
+	/**
+	 * @param tag
+	 * Same as findByTagDateDescending, served from the listing cache when possible
+	 * 
+	 * @return cached Listing of Post objects
+	 */
+	public ListingCache.Listing findListingByTagDateDescending(final String tag) {
+		return findListingByTagDateDescending(tag, null);
+	}
+
+	/**
+	 * @param tag
+	 * @param before
+	 *            cursor of the previous page, null for the first page
+	 * Obtain the page of posts filed under a tag that sort after the cursor
+	 * 
+	 * @return Listing of Post objects, cached if it is the first page
+	 */
+	public ListingCache.Listing findListingByTagDateDescending(
+			final String tag, final PageCursor before) {
+		return findListing(ListingCache.tagKey(tag), eq("tags", tag),
+				PAGE_SIZE, before, FIND_BY_TAG);
+	}
+
+	/**
+	 * @param tag
+	 *            null for the home page
+	 * @param before
+	 *            cursor of the previous page, null for the first page
+	 * Derive the version of a listing page from the listing cache generation,
+	 * which every write through this DAO that changes a listing bumps, and
+	 * the latest last_modified of the posts it is drawn from, which those
+	 * through other instances set, read from the head of an index. A cached
+	 * first page read before that changed is dropped, see
+	 * {@link ListingCache#validate(String, Date)}.
+	 * 
+	 * @return Document with a version string and last_modified, the latter
+	 *         null if no post has one
+	 */
+	public Document findListingVersion(final String tag,
+			final PageCursor before) {
+		long generation = listingCache.generation();
+		Document latest;
+		long start = FIND_LISTING_VERSION.start();
+		try {
+			latest = readPostsCollection
+					.find(tag == null ? new Document() : eq("tags", tag))
+					.projection(fields(include("last_modified"), excludeId()))
+					.sort(descending("last_modified")).first();
+		} finally {
+			FIND_LISTING_VERSION.stop(start);
+		}
+		Date lastModified = latest == null ? null : latest
+				.getDate("last_modified");
+		if (before == null) {
+			listingCache.validate(tag == null ? ListingCache
+					.homeKey(PAGE_SIZE) : ListingCache.tagKey(tag),
+					lastModified);
+		}
+		return new Document("version", generation + "."
+				+ (lastModified == null ? 0 : lastModified.getTime())
+				+ (before == null ? "" : "." + before)).append(
+				"last_modified", lastModified);
+	}
+
+	private ListingCache.Listing findListing(final String key,
+			final Bson filter, final int limit, final PageCursor before,
+			final Metrics.MongoOperation operation) {
+		ListingCache.Listing listing = before == null ? listingCache.get(key)
+				: null;
+		if (listing != null) {
+			return listing;
+		}
+
+		List<Bson> conditions = new ArrayList<Bson>();
+		if (filter != null) {
+			conditions.add(filter);
+		}
+		if (before != null) {
+			// the range on date bounds the index scan, the $or only breaks
+			// ties between posts of the same millisecond
+			conditions.add(lte("date", before.getDate()));
+			conditions.add(or(lt("date", before.getDate()),
+					lt("_id", before.getId())));
+		}
+
+		long generation = listingCache.generation();
+		// right after a write a secondary may still have the old listing,
+		// which would then be cached for the max age
+		MongoCollection<Document> collection = before == null
+				&& listingCache.needsPrimaryRead(key) ? postsCollection
+				: readPostsCollection;
+		List<Document> posts;
+		long start = operation.start();
+		try {
+			// a negative limit asks for a single batch and has the server
+			// close the cursor; with a positive one the driver kills it from
+			// a second pooled connection while still holding the first,
+			// which deadlocks once every connection is held by a listing
+			// query. One post more than the page tells whether there is a
+			// next one.
+			posts = collection
+					.find(conditions.isEmpty() ? new Document() : and(conditions))
+					.projection(LISTING_PROJECTION)
+					.sort(descending("date", "_id")).limit(-(limit + 1))
+					.into(new ArrayList<Document>());
+		} finally {
+			operation.stop(start);
+		}
+
+		PageCursor nextCursor = null;
+		if (posts.size() > limit) {
+			posts = new ArrayList<Document>(posts.subList(0, limit));
+			nextCursor = PageCursor.after(posts.get(limit - 1));
+		}
+		if (before != null) {
+			return new ListingCache.Listing(posts, nextCursor);
+		}
+		return listingCache.put(key, posts, nextCursor, generation);
+	}
+
+	public List<Document> search(final String query, final int limit) {
+		return searchIndex.search(query, limit);
+	}
+
+	public List<Document> findPopularTags(final int limit) {
+		return tagStats.findPopular(limit);
+	}
+
+	public String findPopularTagsVersion() {
+		return tagStats.getVersion();
 	}
 
 	/**
@@ -73,24 +668,72 @@ public class BlogPostDAO {
 	 * @param body
 	 * @param tags
 	 * @param username
-	 * Add a new Post object to the posts collection
+	 * Add a new Post object to the posts collection, under a permalink from
+	 * the SlugAllocator
 	 * 
 	 * @return permalink of the post object
 	 */
-	public String addPost(String title, String body, List tags, String username) {
-		String permalink = title.replaceAll("\\s", "_"); // whitespace becomes _
-		permalink = permalink.replaceAll("\\W", ""); // get rid of non
-														// alphanumeric
-		permalink = permalink.toLowerCase();
+	public String addPost(String title, String body, List<String> tags,
+			String username) {
+		String basePermalink = makePermalink(title);
 
 		Document post = new Document("title", title).append("author", username)
-				.append("body", body).append("permalink", permalink)
-				.append("tags", tags).append("comments", new ArrayList())
-				.append("date", new Date());
+				.append("body", body).append("tags", tags)
+				.append("num_comments", 0);
+		// last_modified too, for the version of the listings it joins
+		Date date = new Date();
+		post.append("date", date).append("last_modified", date);
+		if (bucketedComments) {
+			post.append(CommentBuckets.LAYOUT_FIELD, CommentBuckets.BUCKETED)
+					.append("next_comment_id", 0L);
+		} else {
+			post.append("comments", new ArrayList<Document>());
+		}
 
-		postsCollection.insertOne(post);
+		for (int attempt = 1;; attempt++) {
+			String permalink = slugAllocator.allocate(basePermalink);
+			post.put("permalink", permalink);
+			long start = INSERT_POST.start();
+			try {
+				postsCollection.insertOne(post);
+			} catch (MongoWriteException e) {
+				// only posts written before the allocator existed can hold a
+				// permalink it has not handed out; skip past them
+				if (!e.getError().getCategory()
+						.equals(ErrorCategory.DUPLICATE_KEY)
+						|| attempt == MAX_PERMALINK_ATTEMPTS) {
+					throw e;
+				}
+				post.remove("_id");
+				continue;
+			} finally {
+				INSERT_POST.stop(start);
+			}
+			tagStats.increment(tags);
+			listingCache.invalidateForNewPost(tags);
+			indexPost(post);
+			return permalink;
+		}
+	}
 
-		return permalink;
+	/**
+	 * @param title
+	 * Derive the permalink of a post from its title
+	 * 
+	 * @return permalink
+	 */
+	static String makePermalink(String title) {
+		StringBuilder permalink = new StringBuilder(title.length());
+		for (int i = 0, n = title.length(); i < n; i++) {
+			char c = title.charAt(i);
+			if (BlogController.isRegexWhitespace(c)) {
+				permalink.append('_'); // whitespace becomes _
+			} else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || c == '_') {
+				permalink.append(c); // get rid of non alphanumeric
+			}
+		}
+		return permalink.toString().toLowerCase();
 	}
 
 	/**
@@ -100,8 +743,10 @@ public class BlogPostDAO {
 	 * @param permalink
 	 * Add a comment to a particular post uniquely identified by the permalink
 	 * 
+	 * @return false if no post has the permalink. A comment buffered by the
+	 *         write-behind pipeline is reported as added.
 	 */
-	public void addPostComment(final String name, final String email,
+	public boolean addPostComment(final String name, final String email,
 			final String body, final String permalink) {
 		Document comment = new Document("author", name).append("body", body);
 
@@ -109,17 +754,65 @@ public class BlogPostDAO {
 			comment.append("email", email);
 		}
 
-		postsCollection.updateOne(eq("permalink", permalink), new Document(
-				"$push", new Document("comments", comment)));
+		PostWriteBehind pipeline = writeBehind;
+		if (pipeline != null && pipeline.addComment(permalink, comment)) {
+			// the listing cache is invalidated when the batch is flushed
+			indexComment(permalink, body);
+			return true;
+		}
+
+		// try the layout most posts are expected to have first
+		boolean added;
+		if (bucketedComments) {
+			added = commentBuckets.addComment(permalink, comment)
+					|| addEmbeddedComment(permalink, comment);
+		} else {
+			added = addEmbeddedComment(permalink, comment)
+					|| commentBuckets.addComment(permalink, comment);
+		}
+		if (!added) {
+			return false;
+		}
+		// listings show the comment count
+		listingCache.invalidatePost(permalink);
+		indexComment(permalink, body);
+		return true;
+	}
+
+	private boolean addEmbeddedComment(final String permalink,
+			final Document comment) {
+		long start = ADD_COMMENT.start();
+		try {
+			return postsCollection.updateOne(
+					embeddedFilter(permalink),
+					versioned(new Document("$push", new Document("comments",
+							comment)).append("$inc", new Document(
+							"num_comments", 1)))).getMatchedCount() > 0;
+		} finally {
+			ADD_COMMENT.stop(start);
+		}
 	}
 
 	/**
 	 * @param permalink
 	 * @param ordinal
-	 * Update the likes of a comment on a particular post pointed uniquely by the permalink
+	 * @param username
+	 * Update the likes of a comment on a particular post pointed uniquely by the permalink.
+	 * For a bucketed post ordinal is the comment id, which for migrated
+	 * comments is the position they had in the embedded array. Each user
+	 * counts once: the like is recorded in CommentLikes, pending, and only an
+	 * insert that succeeds increments the counter, so a repeat costs one
+	 * failed insert and nothing else. The like is confirmed once the
+	 * increment is applied and removed again if it can not be, so the user
+	 * may like the comment later; one caught pending by a crash is counted by
+	 * {@link #recoverPendingLikes()}.
 	 * 
+	 * @return false if no post has the permalink or it has no such comment.
+	 *         A repeated like is reported as applied, and so is a like whose
+	 *         count is buffered by the write-behind pipeline.
 	 */
-	public void likePost(final String permalink, final int ordinal) {
+	public boolean likePost(final String permalink, final int ordinal,
+			final String username) {
 		//
 		//
 		// XXX Final Question 4 - work here
@@ -128,8 +821,201 @@ public class BlogPostDAO {
 		// on the post identified by `permalink`.
 		//
 		//
-		postsCollection.updateOne(new Document("permalink", permalink),
-				new Document("$inc", new Document("comments." + ordinal
-						+ ".num_likes", 1)));
+		if (!commentLikes.add(permalink, ordinal, username)) {
+			return true;
+		}
+
+		PostWriteBehind pipeline = writeBehind;
+		if (pipeline != null && pipeline.like(permalink, ordinal, username)) {
+			return true;
+		}
+
+		List<Document> keys = CommentLikes.keys(permalink, ordinal,
+				Collections.singletonList(username));
+		boolean counted;
+		try {
+			counted = countLikes(permalink, ordinal, 1);
+		} catch (RuntimeException e) {
+			// the increment may have been applied all the same; a like the
+			// user can repeat is preferred to one never counted
+			commentLikes.remove(keys);
+			throw e;
+		}
+		if (counted) {
+			commentLikes.confirm(keys);
+		} else {
+			// nothing to like; the user may like the comment if it appears
+			commentLikes.remove(keys);
+		}
+		return counted;
+	}
+
+	/**
+	 * Count the likes left pending for longer than
+	 * PENDING_LIKE_TIMEOUT_MILLIS, which the process that recorded them did
+	 * not live to count. Called on startup.
+	 * 
+	 * @return the number of likes counted
+	 */
+	public int recoverPendingLikes() {
+		return recoverPendingLikes(PENDING_LIKE_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param olderThanMillis
+	 * Count the likes left pending for longer, see
+	 * {@link CommentLikes#claimPending(long)}
+	 * 
+	 * @return the number of likes counted
+	 */
+	public int recoverPendingLikes(final long olderThanMillis) {
+		int counted = 0;
+		for (Document key : commentLikes.claimPending(olderThanMillis)) {
+			String permalink = key.getString("permalink");
+			long comment = ((Number) key.get("comment")).longValue();
+			if (countLikes(permalink, (int) comment, 1)) {
+				counted++;
+			} else {
+				commentLikes.remove(Collections.singletonList(key));
+			}
+		}
+		if (counted > 0) {
+			logger.warning("Counted " + counted
+					+ " likes left pending by an earlier process");
+		}
+		return counted;
+	}
+
+	// likes are only shown on the post page, so no listing is affected
+	private boolean countLikes(final String permalink, final int ordinal,
+			final long likes) {
+		if (bucketedComments) {
+			return commentBuckets.like(permalink, ordinal, likes)
+					|| likeEmbeddedComment(permalink, ordinal, likes);
+		}
+		return likeEmbeddedComment(permalink, ordinal, likes)
+				|| commentBuckets.like(permalink, ordinal, likes);
+	}
+
+	private boolean likeEmbeddedComment(final String permalink,
+			final int ordinal, final long likes) {
+		long start = LIKE_COMMENT.start();
+		try {
+			// a missing position would otherwise be padded with nulls
+			UpdateResult result = postsCollection.updateOne(
+					and(embeddedFilter(permalink),
+							exists("comments." + ordinal)),
+					versioned(new Document("$inc", new Document("comments."
+							+ ordinal + ".num_likes", likes))));
+			return result.getMatchedCount() > 0;
+		} finally {
+			LIKE_COMMENT.stop(start);
+		}
+	}
+
+	/**
+	 * Move the embedded comments of all posts into the comments collection.
+	 * Safe to run while the blog is serving, with the write-behind pipeline
+	 * off.
+	 * 
+	 * @return number of posts migrated
+	 */
+	public long migrateCommentsToBuckets() {
+		return commentBuckets.migrateAll();
+	}
+
+	/**
+	 * @param update
+	 * Add the version bump and last_modified stamp to an update that changes
+	 * what the post page shows, which is what conditional GETs of the page
+	 * are answered from
+	 * 
+	 * @return the update
+	 */
+	static Document versioned(final Document update) {
+		Document inc = (Document) update.get("$inc");
+		if (inc == null) {
+			inc = new Document();
+			update.append("$inc", inc);
+		}
+		inc.append("version", 1L);
+		Document set = (Document) update.get("$set");
+		if (set == null) {
+			set = new Document();
+			update.append("$set", set);
+		}
+		set.append("last_modified", new Date());
+		return update;
+	}
+
+	// the embedded updates must never touch a bucketed post, which has no
+	// comments array to push onto
+	private static Bson embeddedFilter(final String permalink) {
+		return and(eq("permalink", permalink),
+				exists(CommentBuckets.LAYOUT_FIELD, false));
+	}
+
+	private static boolean isBucketed(final Document post) {
+		return CommentBuckets.BUCKETED.equals(post
+				.get(CommentBuckets.LAYOUT_FIELD));
+	}
+
+	/**
+	 * Run {@link #backfillCommentCounts()} if a post with embedded comments
+	 * has no num_comments, as posts written before the counter existed do;
+	 * the listings would show them with no comments. Called on startup, when
+	 * finding no such post costs one scan of the posts, as building the
+	 * search index does.
+	 * 
+	 * @return number of posts updated
+	 */
+	public long backfillMissingCommentCounts() {
+		if (postsCollection
+				.find(and(exists(CommentBuckets.LAYOUT_FIELD, false),
+						exists("num_comments", false)))
+				.projection(include("_id")).first() == null) {
+			return 0;
+		}
+		long updated = backfillCommentCounts();
+		listingCache.clear();
+		logger.info("Backfilled num_comments on " + updated + " posts");
+		return updated;
+	}
+
+	/**
+	 * Set num_comments on every post where it is missing or does not match
+	 * the size of the comments array. Each update is conditional on the array
+	 * size it was computed from, so it is safe to run against a live
+	 * database; a post that got a comment in the meantime is fixed by the
+	 * next run.
+	 * 
+	 * @return number of posts updated
+	 */
+	public long backfillCommentCounts() {
+		List<Document> pipeline = Arrays.asList(
+				// bucketed posts have no comments array to count
+				new Document("$match", new Document(
+						CommentBuckets.LAYOUT_FIELD, new Document("$exists",
+								false))),
+				new Document("$project", new Document("actual", new Document(
+						"$size", new Document("$ifNull", Arrays.asList(
+								"$comments", new ArrayList<Object>()))))
+						.append("stored", "$num_comments")),
+				new Document("$project", new Document("actual", 1).append(
+						"matches",
+						new Document("$eq", Arrays.asList("$actual",
+								"$stored")))),
+				new Document("$match", new Document("matches", false)));
+
+		long updated = 0;
+		for (Document post : postsCollection.aggregate(pipeline)) {
+			Integer actual = post.getInteger("actual");
+			updated += postsCollection.updateOne(
+					new Document("_id", post.get("_id")).append("comments",
+							new Document("$size", actual)),
+					new Document("$set", new Document("num_comments", actual)))
+					.getModifiedCount();
+		}
+		return updated;
 	}
 }
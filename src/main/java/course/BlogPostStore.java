@@ -0,0 +1,184 @@
+package course;
+
+import java.util.List;
+
+import org.bson.Document;
+
+/**
+ * Storage for blog posts and their comments. Posts are returned as Documents
+ * shaped like the posts collection, since that is what the templates render.
+ * 
+ * @author nramanathan
+ * 
+ */
+public interface BlogPostStore {
+
+	/**
+	 * @param permalink
+	 * 
+	 * Find a post by using permalink, with the first page of its comments
+	 * @return Document of the Post object, null if there is none
+	 */
+	Document findPostByPermalink(String permalink);
+
+	/**
+	 * @param permalink
+	 * @param commentSkip
+	 * @param commentLimit
+	 * 
+	 * Find a post by using permalink, with a page of its comments. The post
+	 * also carries page_version and page_last_modified, the values
+	 * findPostVersion returns for that page.
+	 * @return Document of the Post object, null if there is none
+	 */
+	Document findPostByPermalink(String permalink, int commentSkip,
+			int commentLimit);
+
+	/**
+	 * @param permalink
+	 * @param commentSkip
+	 * @param commentLimit
+	 * 
+	 * Read only the version of a post and of a page of its comments, which
+	 * changes whenever a comment or like changes that page
+	 * @return Document with a version string and a last_modified Date, null
+	 *         if there is no post
+	 */
+	Document findPostVersion(String permalink, int commentSkip,
+			int commentLimit);
+
+	/**
+	 * @param limit
+	 * Obtain a list of posts sorted by date in descending order limited to a
+	 * particular number, without their comments
+	 * 
+	 * @return list of Post objects
+	 */
+	List<Document> findByDateDescending(int limit);
+
+	/**
+	 * @param limit
+	 * Same as findByDateDescending, along with the cached anonymous rendering
+	 * 
+	 * @return Listing of Post objects
+	 */
+	ListingCache.Listing findListingByDateDescending(int limit);
+
+	/**
+	 * @param limit
+	 * @param before
+	 *            cursor of the previous page, null for the first page
+	 * Obtain the page of posts that sort after the cursor by date and then
+	 * _id, both descending
+	 * 
+	 * @return Listing of Post objects and the cursor of the next page
+	 */
+	ListingCache.Listing findListingByDateDescending(int limit,
+			PageCursor before);
+
+	/**
+	 * @param tag
+	 * Obtain the newest posts filed under a tag, without their comments
+	 * 
+	 * @return list of Post objects
+	 */
+	List<Document> findByTagDateDescending(String tag);
+
+	/**
+	 * @param tag
+	 * Same as findByTagDateDescending, along with the cached anonymous
+	 * rendering
+	 * 
+	 * @return Listing of Post objects
+	 */
+	ListingCache.Listing findListingByTagDateDescending(String tag);
+
+	/**
+	 * @param tag
+	 * @param before
+	 *            cursor of the previous page, null for the first page
+	 * Obtain the page of posts filed under a tag that sort after the cursor
+	 * 
+	 * @return Listing of Post objects and the cursor of the next page
+	 */
+	ListingCache.Listing findListingByTagDateDescending(String tag,
+			PageCursor before);
+
+	/**
+	 * @param tag
+	 *            null for the home page
+	 * @param before
+	 *            cursor of the previous page, null for the first page
+	 * 
+	 * Read only the version of a page of the home page or of a tag page,
+	 * which changes whenever a post is added to the listing or one of its
+	 * posts changes, to answer a conditional GET before finding the listing
+	 * @return Document with a version string and a last_modified Date, null
+	 *         if no post has one
+	 */
+	Document findListingVersion(String tag, PageCursor before);
+
+	/**
+	 * @param query
+	 * @param limit
+	 * Full text search over the titles, tags, bodies and comments of the
+	 * posts
+	 * 
+	 * @return up to limit Documents with permalink, title, author and date,
+	 *         best match first
+	 */
+	List<Document> search(String query, int limit);
+
+	/**
+	 * @param limit
+	 * Obtain the tags with the most posts, from counters kept up to date as
+	 * posts are added
+	 * 
+	 * @return up to limit Documents with tag and count, most used first
+	 */
+	List<Document> findPopularTags(int limit);
+
+	/**
+	 * Cheaper than findPopularTags when only a change needs to be noticed,
+	 * e.g. for the ETag of a page with the tag cloud
+	 * 
+	 * @return a digest of the tag counts, which changes whenever
+	 *         findPopularTags would return something else
+	 */
+	String findPopularTagsVersion();
+
+	/**
+	 * @param title
+	 * @param body
+	 * @param tags
+	 * @param username
+	 * Add a new Post. Its permalink is derived from the title and suffixed
+	 * if another post already has it
+	 * 
+	 * @return permalink of the post object
+	 */
+	String addPost(String title, String body, List<String> tags,
+			String username);
+
+	/**
+	 * @param name
+	 * @param email
+	 * @param body
+	 * @param permalink
+	 * Add a comment to a particular post uniquely identified by the permalink
+	 * 
+	 * @return false if no post has the permalink
+	 */
+	boolean addPostComment(String name, String email, String body,
+			String permalink);
+
+	/**
+	 * @param permalink
+	 * @param ordinal
+	 * @param username
+	 * Like the comment in position ordinal of the post, once per user
+	 * 
+	 * @return false if no post has the permalink or it has no such comment
+	 */
+	boolean likePost(String permalink, int ordinal, String username);
+}
@@ -0,0 +1,36 @@
+package course;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+
+/**
+ * Moves the comments embedded in posts into the bucketed comments collection,
+ * one post at a time. The blog keeps serving while it runs; posts not
+ * migrated yet keep using their embedded comments, and writes the
+ * write-behind pipeline queued for a post before it moved are replayed onto
+ * its buckets. Safe to re-run.
+ * 
+ * mvn compile exec:java -Dexec.mainClass=course.CommentBucketMigration
+ * 
+ * @author nramanathan
+ * 
+ */
+public class CommentBucketMigration {
+
+	public static void main(String[] args) {
+		String mongoURIString = args.length == 0 ? "mongodb://localhost"
+				: args[0];
+		MongoClient mongoClient = new MongoClient(new MongoClientURI(
+				mongoURIString));
+		try {
+			BlogPostDAO blogPostDao = new BlogPostDAO(
+					mongoClient.getDatabase("blog_final"));
+			blogPostDao.ensureIndexes();
+			long migrated = blogPostDao.migrateCommentsToBuckets();
+			System.out.println("Moved the comments of " + migrated
+					+ " posts into buckets");
+		} finally {
+			mongoClient.close();
+		}
+	}
+}
@@ -0,0 +1,445 @@
+package course;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Sorts.ascending;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * Comments stored outside the post, in the comments collection, in buckets of
+ * {@link #BUCKET_SIZE} keyed by (permalink, bucket). Every comment gets an id
+ * from the post's next_comment_id counter that never changes, and comment id
+ * lands in bucket id / BUCKET_SIZE, so a like is a point update on one small
+ * document however many comments the post has.
+ *
+ * Posts are moved over one at a time by {@link #migratePost(Object)}; a post
+ * carries comments_layout: "bucketed" once its comments live here. Until then
+ * BlogPostDAO keeps using the embedded comments array for it, which is what
+ * lets the migration run while the blog is serving.
+ *
+ * @author nramanathan
+ *
+ */
+public class CommentBuckets {
+	public static final int BUCKET_SIZE = 100;
+	public static final String LAYOUT_FIELD = "comments_layout";
+	public static final String BUCKETED = "bucketed";
+	public static final int MAX_MIGRATION_ATTEMPTS = 10;
+	private static final long MIGRATION_BACKOFF_MILLIS = 20;
+
+	private static final Logger logger = Logger.getLogger(CommentBuckets.class
+			.getName());
+
+	private static final Metrics.MongoOperation ADD_COMMENT = Metrics
+			.mongoOperation("CommentBuckets", "addComment");
+	private static final Metrics.MongoOperation LIKE_COMMENT = Metrics
+			.mongoOperation("CommentBuckets", "like");
+	private static final Metrics.MongoOperation FIND_COMMENTS = Metrics
+			.mongoOperation("CommentBuckets", "findComments");
+	private static final Metrics.MongoOperation FIND_VERSION = Metrics
+			.mongoOperation("CommentBuckets", "findVersion");
+
+	private static final FindOneAndUpdateOptions NEXT_ID_OPTIONS = new FindOneAndUpdateOptions()
+			.returnDocument(ReturnDocument.AFTER).projection(
+					Projections.include("next_comment_id"));
+
+	private final MongoCollection<Document> postsCollection;
+	private final MongoCollection<Document> commentsCollection;
+	private final MongoCollection<Document> readCommentsCollection;
+
+	public CommentBuckets(final MongoDatabase blogDatabase) {
+		this(blogDatabase, blogDatabase);
+	}
+
+	/**
+	 * @param blogDatabase
+	 * @param readDatabase
+	 *            the same database with the read preference and read concern
+	 *            for findComments; writes and the migration use blogDatabase
+	 */
+	public CommentBuckets(final MongoDatabase blogDatabase,
+			final MongoDatabase readDatabase) {
+		postsCollection = blogDatabase.getCollection("posts");
+		commentsCollection = blogDatabase.getCollection("comments");
+		readCommentsCollection = readDatabase.getCollection("comments");
+	}
+
+	/**
+	 * Create the index that every bucket read and write goes through
+	 */
+	public void ensureIndexes() {
+		commentsCollection.createIndex(
+				new Document("permalink", 1).append("bucket", 1),
+				new IndexOptions().unique(true));
+	}
+
+	/**
+	 * @return every bucket, with only its permalink and the bodies of its
+	 *         comments, for building the search index
+	 */
+	public FindIterable<Document> findAllCommentBodies() {
+		return readCommentsCollection.find().projection(
+				Projections.include("permalink", "comments.body"));
+	}
+
+	/**
+	 * @param permalink
+	 * @param comment
+	 * Give the comment the post's next comment id and push it onto its bucket
+	 *
+	 * @return false if there is no bucketed post with the permalink
+	 */
+	public boolean addComment(final String permalink, final Document comment) {
+		long start = ADD_COMMENT.start();
+		try {
+			return pushComment(permalink, comment);
+		} finally {
+			ADD_COMMENT.stop(start);
+		}
+	}
+
+	private boolean pushComment(final String permalink, final Document comment) {
+		Document post = postsCollection.findOneAndUpdate(
+				and(eq("permalink", permalink), eq(LAYOUT_FIELD, BUCKETED)),
+				BlogPostDAO.versioned(new Document("$inc", new Document(
+						"next_comment_id", 1L).append("num_comments", 1))),
+				NEXT_ID_OPTIONS);
+		if (post == null) {
+			return false;
+		}
+
+		long id = post.getLong("next_comment_id") - 1;
+		Document bucketed = new Document("_id", id);
+		bucketed.putAll(comment);
+
+		// comments that raced for the same bucket are kept in id order
+		Document update = new Document("$push", new Document("comments",
+				new Document("$each", Arrays.asList(bucketed))
+						.append("$sort", new Document("_id", 1)))).append(
+				"$inc", new Document("count", 1));
+		try {
+			try {
+				commentsCollection.updateOne(bucketFilter(permalink, id),
+						update, new UpdateOptions().upsert(true));
+			} catch (MongoWriteException e) {
+				if (!e.getError().getCategory()
+						.equals(ErrorCategory.DUPLICATE_KEY)) {
+					throw e;
+				}
+				// two upserts raced to create the bucket; it exists now
+				commentsCollection.updateOne(bucketFilter(permalink, id), update);
+			}
+		} catch (RuntimeException e) {
+			try {
+				uncount(permalink, id);
+			} catch (RuntimeException compensation) {
+				e.addSuppressed(compensation);
+			}
+			throw e;
+		}
+		return true;
+	}
+
+	// undo the counting of a comment whose bucket write failed; the id is
+	// given back unless a later comment has taken the next one, which leaves
+	// a gap in the ids
+	private void uncount(final String permalink, final long id) {
+		long givenBack = postsCollection.updateOne(
+				and(eq("permalink", permalink), eq("next_comment_id", id + 1)),
+				BlogPostDAO.versioned(new Document("$inc", new Document(
+						"next_comment_id", -1L).append("num_comments", -1))))
+				.getMatchedCount();
+		if (givenBack == 0) {
+			postsCollection.updateOne(eq("permalink", permalink),
+					BlogPostDAO.versioned(new Document("$inc", new Document(
+							"num_comments", -1))));
+		}
+	}
+
+	/**
+	 * @param permalink
+	 * @param commentId
+	 * Increment the likes of one comment. The version bumped is the bucket's,
+	 * not the post's, so likes stay off the post document.
+	 *
+	 * @return false if the post is not bucketed or has no such comment
+	 */
+	public boolean like(final String permalink, final long commentId) {
+		return like(permalink, commentId, 1);
+	}
+
+	/**
+	 * @param permalink
+	 * @param commentId
+	 * @param likes
+	 * Add a number of likes to one comment, e.g. a batch coalesced by the
+	 * write-behind pipeline
+	 *
+	 * @return false if the post is not bucketed or has no such comment
+	 */
+	public boolean like(final String permalink, final long commentId,
+			final long likes) {
+		long start = LIKE_COMMENT.start();
+		try {
+			return commentsCollection.updateOne(
+					and(bucketFilter(permalink, commentId),
+							eq("comments._id", commentId)),
+					BlogPostDAO.versioned(new Document("$inc", new Document(
+							"comments.$.num_likes", likes)))).getMatchedCount() > 0;
+		} finally {
+			LIKE_COMMENT.stop(start);
+		}
+	}
+
+	/**
+	 * @param permalink
+	 * @param writeId
+	 *            the write_id PostWriteBehind gave a comment it queued
+	 *
+	 * @return true if the post has the comment in its buckets
+	 */
+	public boolean containsWrite(final String permalink, final Object writeId) {
+		return commentsCollection.count(and(eq("permalink", permalink),
+				eq("comments." + PostWriteBehind.WRITE_ID, writeId))) > 0;
+	}
+
+	/**
+	 * @param permalink
+	 * @param skip
+	 * @param limit
+	 * Read the comments with ids from skip up to skip + limit, which only
+	 * touches the one or two buckets holding them
+	 *
+	 * @return comments in id order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Document> findComments(final String permalink, final int skip,
+			final int limit) {
+		return (List<Document>) findPage(permalink, skip, limit).get(
+				"comments");
+	}
+
+	/**
+	 * @param permalink
+	 * @param skip
+	 * @param limit
+	 * Read the comments findComments reads along with the versions of their
+	 * buckets, in the same round trip
+	 *
+	 * @return Document with the comments in id order, and the version and
+	 *         last_modified findVersion would return for them
+	 */
+	public Document findPage(final String permalink, final int skip,
+			final int limit) {
+		List<Document> comments = new ArrayList<Document>();
+		long version = 0;
+		Date lastModified = null;
+		if (limit <= 0) {
+			return new Document("comments", comments).append("version",
+					version).append("last_modified", lastModified);
+		}
+		long first = Math.max(skip, 0);
+		long last = first + limit - 1;
+
+		List<Document> buckets;
+		long start = FIND_COMMENTS.start();
+		try {
+			buckets = readCommentsCollection
+					.find(and(eq("permalink", permalink),
+							gte("bucket", first / BUCKET_SIZE),
+							lte("bucket", last / BUCKET_SIZE)))
+					.projection(
+							Projections.include("comments", "version",
+									"last_modified"))
+					.sort(ascending("bucket")).into(new ArrayList<Document>());
+		} finally {
+			FIND_COMMENTS.stop(start);
+		}
+
+		for (Document bucket : buckets) {
+			Number bucketVersion = (Number) bucket.get("version");
+			if (bucketVersion != null) {
+				version += bucketVersion.longValue();
+			}
+			Date modified = bucket.getDate("last_modified");
+			if (modified != null
+					&& (lastModified == null || modified.after(lastModified))) {
+				lastModified = modified;
+			}
+			for (Object o : (List<?>) bucket.get("comments")) {
+				Document comment = (Document) o;
+				long id = ((Number) comment.get("_id")).longValue();
+				if (id >= first && id <= last) {
+					comments.add(comment);
+				}
+			}
+		}
+		return new Document("comments", comments).append("version", version)
+				.append("last_modified", lastModified);
+	}
+
+	/**
+	 * @param permalink
+	 * @param skip
+	 * @param limit
+	 * Read only the versions of the buckets findComments would read
+	 *
+	 * @return Document with the sum of their versions and the latest
+	 *         last_modified, null if none has one
+	 */
+	public Document findVersion(final String permalink, final int skip,
+			final int limit) {
+		long first = Math.max(skip, 0);
+		long last = first + Math.max(limit, 1) - 1;
+
+		long version = 0;
+		Date lastModified = null;
+		long start = FIND_VERSION.start();
+		try {
+			for (Document bucket : readCommentsCollection
+					.find(and(eq("permalink", permalink),
+							gte("bucket", first / BUCKET_SIZE),
+							lte("bucket", last / BUCKET_SIZE)))
+					.projection(
+							Projections.include("version", "last_modified"))) {
+				Number bucketVersion = (Number) bucket.get("version");
+				if (bucketVersion != null) {
+					version += bucketVersion.longValue();
+				}
+				Date modified = bucket.getDate("last_modified");
+				if (modified != null
+						&& (lastModified == null || modified.after(lastModified))) {
+					lastModified = modified;
+				}
+			}
+		} finally {
+			FIND_VERSION.stop(start);
+		}
+		return new Document("version", version).append("last_modified",
+				lastModified);
+	}
+
+	/**
+	 * Move the embedded comments of every post that still has them into
+	 * buckets. Safe to run against a live database and to re-run, which also
+	 * picks up posts that were too busy to switch over.
+	 *
+	 * @return number of posts migrated
+	 */
+	public long migrateAll() {
+		long migrated = 0;
+		for (Document post : postsCollection.find(exists(LAYOUT_FIELD, false))
+				.projection(Projections.include("_id"))) {
+			if (migratePost(post.get("_id"))) {
+				migrated++;
+			}
+		}
+		return migrated;
+	}
+
+	/**
+	 * @param postId
+	 * Copy the embedded comments of one post into buckets, using each
+	 * comment's position as its id, then switch the post over. The switch
+	 * only happens if the post's version is still the one that was copied; a
+	 * comment or like that arrived meanwhile bumps it and makes the copy start
+	 * over, after a pause that grows with each attempt. A post that keeps
+	 * changing is left embedded after {@link #MAX_MIGRATION_ATTEMPTS}.
+	 *
+	 * @return true if the post was switched by this call
+	 */
+	public boolean migratePost(final Object postId) {
+		for (int attempt = 1; attempt <= MAX_MIGRATION_ATTEMPTS; attempt++) {
+			if (attempt > 1) {
+				try {
+					Thread.sleep(MIGRATION_BACKOFF_MILLIS * (attempt - 1));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			Document post = postsCollection
+					.find(and(eq("_id", postId), exists(LAYOUT_FIELD, false)))
+					.projection(
+							Projections.include("permalink", "comments",
+									"version")).first();
+			if (post == null) {
+				return false;
+			}
+
+			String permalink = post.getString("permalink");
+			List<?> embedded = (List<?>) post.get("comments");
+			if (embedded == null) {
+				embedded = new ArrayList<Object>();
+			}
+
+			List<Document> bucket = new ArrayList<Document>();
+			for (int i = 0; i < embedded.size(); i++) {
+				Document comment = new Document("_id", (long) i);
+				comment.putAll((Document) embedded.get(i));
+				bucket.add(comment);
+				if (bucket.size() == BUCKET_SIZE || i == embedded.size() - 1) {
+					// replacing keeps a re-run from duplicating comments
+					long number = i / BUCKET_SIZE;
+					commentsCollection.replaceOne(
+							and(eq("permalink", permalink), eq("bucket", number)),
+							new Document("permalink", permalink)
+									.append("bucket", number)
+									.append("count", bucket.size())
+									.append("comments", bucket),
+							new UpdateOptions().upsert(true));
+					bucket = new ArrayList<Document>();
+				}
+			}
+
+			// every comment and like bumps the version, see
+			// BlogPostDAO.versioned; posts from before versions have none
+			Object version = post.get("version");
+			Document unchanged = new Document("_id", postId).append(
+					LAYOUT_FIELD, new Document("$exists", false)).append(
+					"version",
+					version == null ? new Document("$exists", false) : version);
+			long switched = postsCollection.updateOne(
+					unchanged,
+					BlogPostDAO.versioned(new Document("$set", new Document(
+							LAYOUT_FIELD, BUCKETED).append("next_comment_id",
+							(long) embedded.size()).append("num_comments",
+							embedded.size())).append("$unset", new Document(
+							"comments", "")))).getModifiedCount();
+			if (switched > 0) {
+				return true;
+			}
+		}
+		logger.warning("Post " + postId + " kept changing during "
+				+ MAX_MIGRATION_ATTEMPTS + " attempts to migrate it, "
+				+ "leaving its comments embedded");
+		return false;
+	}
+
+	private static Document bucketFilter(final String permalink,
+			final long commentId) {
+		return new Document("permalink", permalink).append("bucket", commentId
+				/ BUCKET_SIZE);
+	}
+}
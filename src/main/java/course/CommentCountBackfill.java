@@ -0,0 +1,34 @@
+package course;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+
+/**
+ * One-off job that fills in the num_comments counter on posts written before
+ * the home and tag pages stopped fetching comment bodies. Safe to re-run.
+ * The blog runs the same backfill on startup when a post has no num_comments;
+ * this job also corrects counts that are present but wrong.
+ * 
+ * mvn compile exec:java -Dexec.mainClass=course.CommentCountBackfill
+ * 
+ * @author nramanathan
+ * 
+ */
+public class CommentCountBackfill {
+
+	public static void main(String[] args) {
+		String mongoURIString = args.length == 0 ? "mongodb://localhost"
+				: args[0];
+		MongoClient mongoClient = new MongoClient(new MongoClientURI(
+				mongoURIString));
+		try {
+			BlogPostDAO blogPostDao = new BlogPostDAO(
+					mongoClient.getDatabase("blog_final"));
+			long updated = blogPostDao.backfillCommentCounts();
+			System.out.println("Backfilled num_comments on " + updated
+					+ " posts");
+		} finally {
+			mongoClient.close();
+		}
+	}
+}
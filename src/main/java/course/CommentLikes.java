@@ -0,0 +1,185 @@
+package course;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.Document;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+
+/**
+ * Who liked which comment, one document per like in the comment_likes
+ * collection: { _id: { permalink, comment, user }, date, pending }. The
+ * unique _id index is what makes a like count once per user; recording one is
+ * a single insert, and a repeat fails on the duplicate key instead of having
+ * to be looked up first.
+ *
+ * Each document is small and written once, so a comment can collect any
+ * number of likes without its post or bucket growing; those only keep the
+ * num_likes counter. The comment is its position in the embedded array or its
+ * id in the buckets, which the migration keeps equal, so likes survive it.
+ *
+ * A like is recorded pending and confirmed once its increment of num_likes
+ * has been applied, by BlogPostDAO or by a write-behind flush. One that can
+ * not be counted, because the comment does not exist or the write-behind gave
+ * up on it, is removed again so the user can like the comment later. A like
+ * still pending long after it was made was caught by a crash between the two
+ * writes; {@link #claimPending(long)} hands it to BlogPostDAO to count.
+ *
+ * @author nramanathan
+ *
+ */
+public class CommentLikes {
+	private static final Metrics.MongoOperation ADD = Metrics.mongoOperation(
+			"CommentLikes", "add");
+	private static final Metrics.MongoOperation CONFIRM = Metrics
+			.mongoOperation("CommentLikes", "confirm");
+	private static final Metrics.MongoOperation REMOVE = Metrics
+			.mongoOperation("CommentLikes", "remove");
+
+	private final MongoCollection<Document> likesCollection;
+
+	public CommentLikes(final MongoDatabase blogDatabase) {
+		likesCollection = blogDatabase.getCollection("comment_likes");
+	}
+
+	/**
+	 * Create the index claimPending finds pending likes with. It is sparse,
+	 * so it only holds the few likes not confirmed yet.
+	 */
+	public void ensureIndexes() {
+		likesCollection.createIndex(new Document("pending", 1),
+				new IndexOptions().sparse(true));
+	}
+
+	/**
+	 * @param permalink
+	 * @param commentId
+	 * @param username
+	 * Record that the user likes the comment, pending until it is counted
+	 *
+	 * @return false if the user already did
+	 */
+	public boolean add(final String permalink, final long commentId,
+			final String username) {
+		long start = ADD.start();
+		try {
+			likesCollection.insertOne(new Document("_id", key(permalink,
+					commentId, username)).append("date", new Date()).append(
+					"pending", true));
+			return true;
+		} catch (MongoWriteException e) {
+			if (!e.getError().getCategory().equals(ErrorCategory.DUPLICATE_KEY)) {
+				throw e;
+			}
+			return false;
+		} finally {
+			ADD.stop(start);
+		}
+	}
+
+	/**
+	 * @param keys
+	 *            of likes whose increment has been applied, see
+	 *            {@link #keys(String, long, Collection)}
+	 * Mark the likes as counted, in one round trip
+	 */
+	public void confirm(final List<Document> keys) {
+		if (keys.isEmpty()) {
+			return;
+		}
+		long start = CONFIRM.start();
+		try {
+			likesCollection.updateMany(in("_id", keys), new Document("$unset",
+					new Document("pending", "")));
+		} finally {
+			CONFIRM.stop(start);
+		}
+	}
+
+	/**
+	 * @param keys
+	 *            of likes that could not be counted, e.g. on a comment that
+	 *            does not exist
+	 * Take the likes back, so the users may like the comments again
+	 */
+	public void remove(final List<Document> keys) {
+		if (keys.isEmpty()) {
+			return;
+		}
+		long start = REMOVE.start();
+		try {
+			likesCollection.deleteMany(in("_id", keys));
+		} finally {
+			REMOVE.stop(start);
+		}
+	}
+
+	/**
+	 * @param olderThanMillis
+	 *            how long a like may stay pending before it is taken for
+	 *            lost; longer than a write-behind flush takes with its
+	 *            retries
+	 * Confirm the likes that have been pending for longer, each one only if
+	 * no other caller confirmed it first. The caller counts them: whether
+	 * their increment was applied before the crash can not be told, and
+	 * counting one twice is preferred to never counting it.
+	 *
+	 * @return the keys of the likes claimed
+	 */
+	public List<Document> claimPending(final long olderThanMillis) {
+		Date cutoff = new Date(System.currentTimeMillis() - olderThanMillis);
+		List<Document> claimed = new ArrayList<Document>();
+		for (Document like : likesCollection.find(
+				and(eq("pending", true), lt("date", cutoff))).projection(
+				new Document("_id", 1))) {
+			Object key = like.get("_id");
+			long start = CONFIRM.start();
+			try {
+				if (likesCollection.updateOne(
+						and(eq("_id", key), eq("pending", true)),
+						new Document("$unset", new Document("pending", "")))
+						.getModifiedCount() > 0) {
+					claimed.add((Document) key);
+				}
+			} finally {
+				CONFIRM.stop(start);
+			}
+		}
+		return claimed;
+	}
+
+	/**
+	 * @param permalink
+	 * @param commentId
+	 * @param usernames
+	 *
+	 * @return the keys of the likes of the users on the comment
+	 */
+	public static List<Document> keys(final String permalink,
+			final long commentId, final Collection<String> usernames) {
+		List<Document> keys = new ArrayList<Document>(usernames.size());
+		for (String username : usernames) {
+			keys.add(key(permalink, commentId, username));
+		}
+		return keys;
+	}
+
+	// always built in the same field order, which _id equality depends on
+	private static Document key(final String permalink, final long commentId,
+			final String username) {
+		return new Document("permalink", permalink).append("comment",
+				commentId).append("user", username);
+	}
+}
@@ -0,0 +1,396 @@
+package course;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Posts held in memory behind the same interface as BlogPostDAO, for running
+ * and load testing the web tier without a mongod.
+ *
+ * Three concurrent indexes mirror the Mongo ones: a hash map on permalink, a
+ * skip list ordered by date descending, and a skip list per tag. Each stored
+ * post is only mutated while holding its own lock, and callers always get
+ * copies, so readers never see a half-applied comment.
+ *
+ * @author nramanathan
+ *
+ */
+public class InMemoryBlogPostStore implements BlogPostStore {
+	private final ConcurrentHashMap<String, Document> postsByPermalink = new ConcurrentHashMap<String, Document>();
+	private final ConcurrentSkipListMap<DateKey, Document> postsByDate = new ConcurrentSkipListMap<DateKey, Document>();
+	private final ConcurrentHashMap<String, ConcurrentSkipListMap<DateKey, Document>> postsByTag = new ConcurrentHashMap<String, ConcurrentSkipListMap<DateKey, Document>>();
+	private final ConcurrentHashMap<String, AtomicLong> slugCounters = new ConcurrentHashMap<String, AtomicLong>();
+	private final ListingCache listingCache;
+	private final SearchIndex searchIndex = new SearchIndex();
+	private final ConcurrentHashMap<String, AtomicLong> tagCounts = new ConcurrentHashMap<String, AtomicLong>();
+	// sorted tagCounts, dropped by addPost; the generation keeps a sort that
+	// raced with addPost from being kept
+	private volatile PopularTags popularTags;
+	private final AtomicLong tagGeneration = new AtomicLong();
+	// permalink, ordinal and username of every like
+	private final ConcurrentHashMap<String, Boolean> commentLikes = new ConcurrentHashMap<String, Boolean>();
+
+	public InMemoryBlogPostStore() {
+		this(new ListingCache());
+	}
+
+	public InMemoryBlogPostStore(final ListingCache listingCache) {
+		this.listingCache = listingCache;
+	}
+
+	/**
+	 * Newest first, then highest _id first, the order of a PageCursor.
+	 */
+	private static final class DateKey implements Comparable<DateKey> {
+		final long date;
+		final ObjectId id;
+
+		DateKey(final long date, final ObjectId id) {
+			this.date = date;
+			this.id = id;
+		}
+
+		@Override
+		public int compareTo(DateKey other) {
+			if (date != other.date) {
+				return date > other.date ? -1 : 1;
+			}
+			return other.id.compareTo(id);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof DateKey && compareTo((DateKey) o) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (date ^ (date >>> 32)) ^ id.hashCode();
+		}
+	}
+
+	public Document findPostByPermalink(String permalink) {
+		return findPostByPermalink(permalink, 0,
+				BlogPostDAO.COMMENTS_PAGE_SIZE);
+	}
+
+	public Document findPostByPermalink(String permalink, int commentSkip,
+			int commentLimit) {
+		Document post = postsByPermalink.get(permalink);
+		if (post == null) {
+			return null;
+		}
+		synchronized (post) {
+			Document copy = new Document(post);
+			List<Document> comments = comments(post);
+			int from = Math.min(Math.max(commentSkip, 0), comments.size());
+			int to = Math.min(from + Math.max(commentLimit, 0), comments.size());
+			List<Document> page = new ArrayList<Document>(to - from);
+			for (Document comment : comments.subList(from, to)) {
+				page.add(new Document(comment));
+			}
+			copy.put("comments", page);
+			copy.put("page_version", pageVersion(post, from, to));
+			copy.put("page_last_modified", post.get("last_modified"));
+			return copy;
+		}
+	}
+
+	public Document findPostVersion(String permalink, int commentSkip,
+			int commentLimit) {
+		Document post = postsByPermalink.get(permalink);
+		if (post == null) {
+			return null;
+		}
+		synchronized (post) {
+			int size = comments(post).size();
+			int from = Math.min(Math.max(commentSkip, 0), size);
+			int to = Math.min(from + Math.max(commentLimit, 0), size);
+			return new Document("version", pageVersion(post, from, to))
+					.append("last_modified", post.get("last_modified"));
+		}
+	}
+
+	// like a bucketed post in BlogPostDAO: the version of the post, which
+	// comments bump, and then of the page, which its likes bump; likes only
+	// ever go up, so their sum serves
+	private static String pageVersion(final Document post, final int from,
+			final int to) {
+		long likes = 0;
+		for (Document comment : comments(post).subList(from, to)) {
+			Integer commentLikes = comment.getInteger("num_likes");
+			if (commentLikes != null) {
+				likes += commentLikes;
+			}
+		}
+		return post.get("version") + "." + likes;
+	}
+
+	public List<Document> findByDateDescending(int limit) {
+		return findListingByDateDescending(limit).getPosts();
+	}
+
+	public ListingCache.Listing findListingByDateDescending(int limit) {
+		return findListingByDateDescending(limit, null);
+	}
+
+	public ListingCache.Listing findListingByDateDescending(int limit,
+			PageCursor before) {
+		limit = Math.max(1, Math.min(limit, BlogPostDAO.MAX_PAGE_SIZE));
+		return findListing(ListingCache.homeKey(limit), postsByDate, limit,
+				before);
+	}
+
+	public List<Document> findByTagDateDescending(String tag) {
+		return findListingByTagDateDescending(tag).getPosts();
+	}
+
+	public ListingCache.Listing findListingByTagDateDescending(String tag) {
+		return findListingByTagDateDescending(tag, null);
+	}
+
+	public ListingCache.Listing findListingByTagDateDescending(String tag,
+			PageCursor before) {
+		return findListing(ListingCache.tagKey(tag), postsByTag.get(tag),
+				BlogPostDAO.PAGE_SIZE, before);
+	}
+
+	public Document findListingVersion(String tag, PageCursor before) {
+		// every write that changes a listing bumps the generation
+		long generation = listingCache.generation();
+		ListingCache.Listing listing = tag == null ? findListingByDateDescending(
+				BlogPostDAO.PAGE_SIZE, before) : findListingByTagDateDescending(
+				tag, before);
+		return new Document("version", generation
+				+ (before == null ? "" : "." + before)).append(
+				"last_modified", listing.getLastModified());
+	}
+
+	public List<Document> search(String query, int limit) {
+		return searchIndex.search(query, limit);
+	}
+
+	public List<Document> findPopularTags(int limit) {
+		List<Document> tags = popularTags().tags;
+		return tags.size() <= limit ? tags : tags.subList(0, limit);
+	}
+
+	public String findPopularTagsVersion() {
+		return popularTags().version;
+	}
+
+	private static final class PopularTags {
+		final List<Document> tags;
+		final String version;
+
+		PopularTags(final List<Document> tags) {
+			this.tags = Collections.unmodifiableList(tags);
+			this.version = DigestUtils.sha1Hex(tags.toString());
+		}
+	}
+
+	private PopularTags popularTags() {
+		PopularTags current = popularTags;
+		if (current != null) {
+			return current;
+		}
+		long generation = tagGeneration.get();
+		List<Map.Entry<String, AtomicLong>> counts = new ArrayList<Map.Entry<String, AtomicLong>>(
+				tagCounts.entrySet());
+		// by count, most used first, then by tag, the order of TagStats
+		Collections.sort(counts,
+				new Comparator<Map.Entry<String, AtomicLong>>() {
+					public int compare(Map.Entry<String, AtomicLong> a,
+							Map.Entry<String, AtomicLong> b) {
+						long countA = a.getValue().get();
+						long countB = b.getValue().get();
+						if (countA != countB) {
+							return countA > countB ? -1 : 1;
+						}
+						return a.getKey().compareTo(b.getKey());
+					}
+				});
+		List<Document> tags = new ArrayList<Document>();
+		for (Map.Entry<String, AtomicLong> count : counts) {
+			tags.add(new Document("tag", count.getKey()).append("count",
+					(int) count.getValue().get()));
+		}
+		current = new PopularTags(tags);
+		if (tagGeneration.get() == generation) {
+			popularTags = current;
+		}
+		return current;
+	}
+
+	public String addPost(String title, String body, List<String> tags,
+			String username) {
+		String basePermalink = BlogPostDAO.makePermalink(title);
+		Date date = new Date();
+
+		Document post = new Document("_id", new ObjectId())
+				.append("title", title).append("author", username)
+				.append("body", body).append("tags", new ArrayList<Object>(tags))
+				.append("comments", new ArrayList<Document>())
+				.append("num_comments", 0).append("date", date)
+				.append("version", 0L).append("last_modified", date);
+
+		// same numbering as SlugAllocator
+		String permalink = SlugAllocator.withSuffix(basePermalink,
+				slugCounter(basePermalink).incrementAndGet());
+		post.put("permalink", permalink);
+		// indexed before a comment can find it
+		searchIndex.addPost(post);
+		postsByPermalink.put(permalink, post);
+
+		DateKey key = new DateKey(date.getTime(), post.getObjectId("_id"));
+		postsByDate.put(key, post);
+		for (Object tag : tags) {
+			ConcurrentSkipListMap<DateKey, Document> tagged = postsByTag
+					.get(tag.toString());
+			if (tagged == null) {
+				postsByTag.putIfAbsent(tag.toString(),
+						new ConcurrentSkipListMap<DateKey, Document>());
+				tagged = postsByTag.get(tag.toString());
+			}
+			tagged.put(key, post);
+		}
+
+		for (Object tag : new HashSet<Object>(tags)) {
+			tagCounter(tag.toString()).incrementAndGet();
+		}
+		tagGeneration.incrementAndGet();
+		popularTags = null;
+		listingCache.invalidateForNewPost(tags);
+		return permalink;
+	}
+
+	public boolean addPostComment(String name, String email, String body,
+			String permalink) {
+		Document post = postsByPermalink.get(permalink);
+		if (post == null) {
+			return false;
+		}
+
+		Document comment = new Document("author", name).append("body", body);
+		if (email != null && !email.isEmpty()) {
+			comment.append("email", email);
+		}
+
+		synchronized (post) {
+			comments(post).add(comment);
+			post.put("num_comments", post.getInteger("num_comments") + 1);
+			touch(post);
+		}
+		listingCache.invalidatePost(permalink);
+		searchIndex.addComment(permalink, body);
+		return true;
+	}
+
+	public boolean likePost(String permalink, int ordinal, String username) {
+		Document post = postsByPermalink.get(permalink);
+		if (post == null) {
+			return false;
+		}
+		synchronized (post) {
+			List<Document> comments = comments(post);
+			if (ordinal < 0 || ordinal >= comments.size()) {
+				return false;
+			}
+			// kept apart from the post, like the comment_likes collection
+			if (commentLikes.putIfAbsent(permalink + '\n' + ordinal + '\n'
+					+ username, Boolean.TRUE) == null) {
+				Document comment = comments.get(ordinal);
+				Integer likes = comment.getInteger("num_likes");
+				comment.put("num_likes", likes == null ? 1 : likes + 1);
+				// changes the version of its page only
+				post.put("last_modified", new Date());
+			}
+		}
+		return true;
+	}
+
+	public int size() {
+		return postsByPermalink.size();
+	}
+
+	private AtomicLong slugCounter(final String basePermalink) {
+		AtomicLong counter = slugCounters.get(basePermalink);
+		if (counter == null) {
+			slugCounters.putIfAbsent(basePermalink, new AtomicLong());
+			counter = slugCounters.get(basePermalink);
+		}
+		return counter;
+	}
+
+	private AtomicLong tagCounter(final String tag) {
+		AtomicLong counter = tagCounts.get(tag);
+		if (counter == null) {
+			tagCounts.putIfAbsent(tag, new AtomicLong());
+			counter = tagCounts.get(tag);
+		}
+		return counter;
+	}
+
+	// the equivalent of BlogPostDAO.versioned, called holding the post's lock
+	private static void touch(final Document post) {
+		post.put("version", post.getLong("version") + 1);
+		post.put("last_modified", new Date());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Document> comments(final Document post) {
+		return (List<Document>) post.get("comments");
+	}
+
+	private ListingCache.Listing findListing(final String key,
+			final ConcurrentNavigableMap<DateKey, Document> index,
+			final int limit, final PageCursor before) {
+		ListingCache.Listing listing = before == null ? listingCache.get(key)
+				: null;
+		if (listing != null) {
+			return listing;
+		}
+
+		long generation = listingCache.generation();
+		List<Document> posts = new ArrayList<Document>();
+		PageCursor nextCursor = null;
+		if (index != null) {
+			ConcurrentNavigableMap<DateKey, Document> page = before == null ? index
+					: index.tailMap(new DateKey(before.getDate().getTime(),
+							before.getId()), false);
+			for (Document post : page.values()) {
+				if (posts.size() >= limit) {
+					nextCursor = PageCursor.after(posts.get(limit - 1));
+					break;
+				}
+				posts.add(withoutComments(post));
+			}
+		}
+		if (before != null) {
+			return new ListingCache.Listing(posts, nextCursor);
+		}
+		return listingCache.put(key, posts, nextCursor, generation);
+	}
+
+	// the listing equivalent of the comments projection in BlogPostDAO
+	private static Document withoutComments(final Document post) {
+		synchronized (post) {
+			Document copy = new Document(post);
+			copy.remove("comments");
+			return copy;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package course;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Sessions held in memory, keyed by the same kind of random id that SessionDAO
+ * hands out. Sessions do not survive a restart, and expire a fixed time after
+ * they were started, as the TTL index does for the sessions collection.
+ * 
+ * An expired session is dropped when it is looked up, and the ones nobody
+ * looks up again by a sweep that startSession runs at most once per
+ * {@link #SWEEP_INTERVAL_MILLIS}.
+ * 
+ * @author nramanathan
+ * 
+ */
+public class InMemorySessionStore implements SessionStore {
+	public static final long SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES
+			.toMillis(1);
+
+	private final ConcurrentHashMap<String, Session> sessionsById = new ConcurrentHashMap<String, Session>();
+	private final SecureRandom generator = new SecureRandom();
+	private final long maxAgeMillis;
+	private final long sweepIntervalMillis;
+	private final AtomicLong nextSweep = new AtomicLong();
+
+	private static final class Session {
+		final String username;
+		final long expiresAt;
+
+		Session(final String username, final long expiresAt) {
+			this.username = username;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	public InMemorySessionStore() {
+		this(TimeUnit.DAYS.toMillis(30));
+	}
+
+	/**
+	 * @param maxAgeMillis
+	 *            how long a session lasts after it was started
+	 */
+	public InMemorySessionStore(final long maxAgeMillis) {
+		this(maxAgeMillis, SWEEP_INTERVAL_MILLIS);
+	}
+
+	InMemorySessionStore(final long maxAgeMillis,
+			final long sweepIntervalMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+		this.sweepIntervalMillis = sweepIntervalMillis;
+	}
+
+	public String findUserNameBySessionId(String sessionId) {
+		if (sessionId == null) {
+			return null;
+		}
+		Session session = sessionsById.get(sessionId);
+		if (session == null) {
+			return null;
+		}
+		if (session.expiresAt <= System.currentTimeMillis()) {
+			sessionsById.remove(sessionId, session);
+			return null;
+		}
+		return session.username;
+	}
+
+	public String startSession(String username) {
+		byte randomBytes[] = new byte[32];
+		generator.nextBytes(randomBytes);
+
+		long now = System.currentTimeMillis();
+		sweep(now);
+		String sessionID = Base64.encodeBase64String(randomBytes);
+		sessionsById.put(sessionID, new Session(username, now + maxAgeMillis));
+		return sessionID;
+	}
+
+	// one thread at a time sweeps, the others go on
+	private void sweep(final long now) {
+		long due = nextSweep.get();
+		if (now < due
+				|| !nextSweep.compareAndSet(due, now + sweepIntervalMillis)) {
+			return;
+		}
+		Iterator<Session> it = sessionsById.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expiresAt <= now) {
+				it.remove();
+			}
+		}
+	}
+
+	public void endSession(String sessionID) {
+		if (sessionID != null) {
+			sessionsById.remove(sessionID);
+		}
+	}
+
+	public int size() {
+		return sessionsById.size();
+	}
+}
@@ -0,0 +1,71 @@
+package course;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+
+/**
+ * User accounts held in memory, keyed by username. Passwords are hashed
+ * exactly as UserDAO hashes them.
+ * 
+ * @author nramanathan
+ * 
+ */
+public class InMemoryUserStore implements UserStore {
+	private static final Logger logger = Logger
+			.getLogger(InMemoryUserStore.class.getName());
+	private final ConcurrentHashMap<String, Document> users = new ConcurrentHashMap<String, Document>();
+	private final PasswordHashing passwordHashing;
+
+	public InMemoryUserStore() {
+		this(new PasswordHashing());
+	}
+
+	public InMemoryUserStore(final PasswordHashing passwordHashing) {
+		this.passwordHashing = passwordHashing;
+	}
+
+	public boolean addUser(String username, String password, String email) {
+		String passwordHash = passwordHashing.hash(password);
+
+		Document user = new Document("_id", username).append("password",
+				passwordHash);
+		if (email != null && !email.equals("")) {
+			user.append("email", email);
+		}
+
+		if (users.putIfAbsent(username, user) != null) {
+			logger.log(Level.INFO, "Username already in use: {0}", username);
+			return false;
+		}
+		return true;
+	}
+
+	public Document validateLogin(String username, String password) {
+		Document user = users.get(username);
+		if (user == null) {
+			// as slow as a wrong password
+			passwordHashing.checkMissingUser(password);
+			return null;
+		}
+
+		String storedHash = user.getString("password");
+		String currentHash = passwordHashing.check(password, storedHash);
+
+		if (currentHash == null) {
+			logger.log(Level.INFO, "Submitted password is not a match for {0}",
+					username);
+			return null;
+		}
+
+		Document current = new Document(user);
+		if (!currentHash.equals(storedHash)) {
+			current.put("password", currentHash);
+			// only if nobody changed it in the meantime
+			users.replace(username, user, current);
+		}
+		return current;
+	}
+}
@@ -0,0 +1,114 @@
+package course;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, along the lines of
+ * HdrHistogram: values are kept in microseconds, exactly up to 64us and with
+ * 32 buckets per power of two above that, so any percentile is within about
+ * 3% of the true value. Recording is a handful of atomic increments and never
+ * allocates; percentiles are computed when read.
+ *
+ * @author nramanathan
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+	// 2^40us is about twelve days; anything slower lands in the last bucket
+	private static final int MAX_SHIFT = 40 - SUB_BUCKET_BITS + 1;
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + MAX_SHIFT
+			* HALF_SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sumNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 * Record one measurement
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMicros(nanos)));
+		count.incrementAndGet();
+		sumNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSumNanos() {
+		return sumNanos.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1, e.g. 0.99
+	 * Estimate a quantile from the recorded values
+	 *
+	 * @return the highest value in the bucket holding the quantile, in
+	 *         nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long[] snapshot = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(TimeUnit.MICROSECONDS.toNanos(highestValueIn(i)),
+						maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	static int bucketOf(final long micros) {
+		if (micros < SUB_BUCKET_COUNT) {
+			return (int) micros;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+		if (shift > MAX_SHIFT) {
+			return BUCKET_COUNT - 1;
+		}
+		// the top SUB_BUCKET_BITS bits, of which the highest is always set
+		int subBucket = (int) (micros >>> shift) - HALF_SUB_BUCKET_COUNT;
+		return SUB_BUCKET_COUNT + (shift - 1) * HALF_SUB_BUCKET_COUNT
+				+ subBucket;
+	}
+
+	static long highestValueIn(final int bucket) {
+		if (bucket < SUB_BUCKET_COUNT) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+		long subBucket = (bucket - SUB_BUCKET_COUNT) % HALF_SUB_BUCKET_COUNT
+				+ HALF_SUB_BUCKET_COUNT;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
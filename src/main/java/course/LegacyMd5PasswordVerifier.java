@@ -0,0 +1,59 @@
+package course;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * The original salted single-round MD5 scheme, stored as
+ * <code>hash,salt</code>. Kept only so that existing users can still log in
+ * and have their hash upgraded, so it only verifies and never produces new
+ * hashes.
+ * 
+ * @author nramanathan
+ * 
+ */
+public class LegacyMd5PasswordVerifier implements PasswordVerifier {
+
+	@Override
+	public boolean supports(final String storedHash) {
+		return storedHash.indexOf(',') > 0;
+	}
+
+	@Override
+	public boolean verify(final String password, final String storedHash) {
+		String salt = storedHash.substring(storedHash.lastIndexOf(',') + 1);
+		return MessageDigest.isEqual(storedHash.getBytes(),
+				makePasswordHash(password, salt).getBytes());
+	}
+
+	@Override
+	public boolean needsRehash(final String storedHash) {
+		return true;
+	}
+
+	/**
+	 * @param password
+	 * @param salt
+	 * Same encoding as the old sun.misc.BASE64Encoder based version; the
+	 * digest is short enough that its output never had line breaks.
+	 * 
+	 * @return Encoded Password String
+	 */
+	private String makePasswordHash(String password, String salt) {
+		try {
+			String saltedAndHashed = password + "," + salt;
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			digest.update(saltedAndHashed.getBytes());
+			byte hashedBytes[] = (new String(digest.digest(), "UTF-8"))
+					.getBytes();
+			return Base64.encodeBase64String(hashedBytes) + "," + salt;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("MD5 is not available", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("UTF-8 unavailable?  Not a chance", e);
+		}
+	}
+}
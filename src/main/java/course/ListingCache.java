@@ -0,0 +1,289 @@
+package course;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+/**
+ * Cache of the post listings behind the first page of the home page and of
+ * each tag page, along with the HTML rendered for anonymous visitors. Older
+ * pages are not cached, a keyset query makes them as cheap as the first.
+ * Entries are invalidated by
+ * the BlogPostDAO write methods; the max age only bounds how stale a listing
+ * can get when another application instance writes to the same database.
+ * The first refill of a key after an invalidation is read from the primary,
+ * see {@link #needsPrimaryRead(String)}, so a lagging secondary can not put
+ * back the listing from before the write.
+ * The ETag of a listing page is derived from the generation and the latest
+ * last_modified of the posts it is drawn from, read before the listing is
+ * found; {@link #validate(String, Date)} drops a listing cached before that
+ * changed, so a page is never older than the ETag it is sent with.
+ *
+ * @author nramanathan
+ *
+ */
+public class ListingCache {
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES
+			.toMillis(1);
+
+	private static final String HOME_PREFIX = "home:";
+	private static final String TAG_PREFIX = "tag:";
+
+	private final ConcurrentHashMap<String, Listing> listings = new ConcurrentHashMap<String, Listing>();
+	// bumped on every invalidation, so a query that raced with a write is
+	// not cached
+	private final AtomicLong generation = new AtomicLong();
+	// the generation each key was last cached in; one cached before the
+	// latest invalidation, or never, is refilled from the primary
+	private final ConcurrentHashMap<String, Long> cachedGenerations =
+			new ConcurrentHashMap<String, Long>();
+	// the latest last_modified last read for each key's ETag
+	private final ConcurrentHashMap<String, Long> validatedModified =
+			new ConcurrentHashMap<String, Long>();
+	private final int maxEntries;
+	private final long maxAgeMillis;
+
+	public ListingCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE_MILLIS);
+	}
+
+	public ListingCache(final int maxEntries, final long maxAgeMillis) {
+		this.maxEntries = maxEntries;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * An immutable page of posts and the cursor of the page after it, plus the
+	 * lazily rendered anonymous HTML for it and that HTML gzip compressed. The
+	 * HTML is kept for one variant of the page, named by the caller, such as
+	 * the version of the tag cloud shown with the posts.
+	 */
+	public static final class Listing {
+		private final List<Document> posts;
+		private final PageCursor nextCursor;
+		private final Set<String> permalinks;
+		private final long createdAt;
+		private final Date lastModified;
+		private volatile Rendering anonymous;
+
+		Listing(final List<Document> posts, final PageCursor nextCursor) {
+			this.posts = Collections.unmodifiableList(posts);
+			this.nextCursor = nextCursor;
+			this.permalinks = new HashSet<String>();
+			Date latest = null;
+			for (Document post : posts) {
+				permalinks.add(post.getString("permalink"));
+				Date modified = post.getDate("last_modified");
+				if (modified == null) {
+					modified = post.getDate("date");
+				}
+				if (modified != null
+						&& (latest == null || modified.after(latest))) {
+					latest = modified;
+				}
+			}
+			this.lastModified = latest;
+			this.createdAt = System.currentTimeMillis();
+		}
+
+		public List<Document> getPosts() {
+			return posts;
+		}
+
+		/**
+		 * @return cursor of the next, older page, or null if this is the last
+		 */
+		public PageCursor getNextCursor() {
+			return nextCursor;
+		}
+
+		/**
+		 * @return latest change to any of the posts, null if there are none
+		 */
+		public Date getLastModified() {
+			return lastModified;
+		}
+
+		boolean contains(final String permalink) {
+			return permalinks.contains(permalink);
+		}
+
+		/**
+		 * @param variant
+		 * @return HTML rendered for a visitor that is not logged in, or null
+		 *         if it has not been rendered yet for this variant
+		 */
+		public String getAnonymousHtml(final String variant) {
+			Rendering rendering = anonymous;
+			return rendering != null && rendering.variant.equals(variant) ? rendering.html
+					: null;
+		}
+
+		public void setAnonymousHtml(final String variant, final String html) {
+			anonymous = new Rendering(variant, html);
+		}
+
+		/**
+		 * @param variant
+		 * @return the anonymous HTML as UTF-8 gzip, or null if it has not been
+		 *         compressed yet for this variant
+		 */
+		public byte[] getAnonymousGzip(final String variant) {
+			Rendering rendering = anonymous;
+			return rendering != null && rendering.variant.equals(variant) ? rendering.gzip
+					: null;
+		}
+
+		public void setAnonymousGzip(final String variant, final byte[] gzip) {
+			Rendering rendering = anonymous;
+			if (rendering != null && rendering.variant.equals(variant)) {
+				rendering.gzip = gzip;
+			}
+		}
+	}
+
+	// the anonymous HTML of one variant and, once compressed, its gzip
+	private static final class Rendering {
+		final String variant;
+		final String html;
+		volatile byte[] gzip;
+
+		Rendering(final String variant, final String html) {
+			this.variant = variant;
+			this.html = html;
+		}
+	}
+
+	static String homeKey(final int limit) {
+		return HOME_PREFIX + limit;
+	}
+
+	static String tagKey(final String tag) {
+		return TAG_PREFIX + tag;
+	}
+
+	/**
+	 * @return the current generation, to be passed to {@link #put} once the
+	 *         query has completed
+	 */
+	public long generation() {
+		return generation.get();
+	}
+
+	/**
+	 * @param key
+	 *
+	 * @return true if the listing has not been cached since the latest
+	 *         invalidation, so a secondary may not have the write behind it
+	 *         yet and the query must go to the primary
+	 */
+	public boolean needsPrimaryRead(final String key) {
+		Long cached = cachedGenerations.get(key);
+		return cached == null || cached.longValue() != generation.get();
+	}
+
+	/**
+	 * @param key
+	 * @param lastModified
+	 *            latest last_modified of the posts the listing is drawn from,
+	 *            just read for its ETag; null if none has one
+	 * Drop the cached listing if this differs from what was read last time,
+	 * as after a write through another instance, so that the listing is
+	 * refilled, from the primary, before it is sent with the new ETag
+	 */
+	public void validate(final String key, final Date lastModified) {
+		Long modified = lastModified == null ? 0L : lastModified.getTime();
+		if (validatedModified.size() >= maxEntries) {
+			validatedModified.clear();
+		}
+		Long previous = validatedModified.put(key, modified);
+		if (!modified.equals(previous)) {
+			listings.remove(key);
+			cachedGenerations.remove(key);
+		}
+	}
+
+	public Listing get(final String key) {
+		Listing listing = listings.get(key);
+		if (listing != null
+				&& System.currentTimeMillis() - listing.createdAt >= maxAgeMillis) {
+			listings.remove(key, listing);
+			return null;
+		}
+		return listing;
+	}
+
+	/**
+	 * @param key
+	 * @param posts
+	 * @param nextCursor
+	 *            null if there are no older posts
+	 * @param generation
+	 *            value of {@link #generation()} read before running the query
+	 * Wrap the query result and cache it unless a write happened meanwhile
+	 *
+	 * @return the Listing for the posts
+	 */
+	public Listing put(final String key, final List<Document> posts,
+			final PageCursor nextCursor, final long generation) {
+		Listing listing = new Listing(posts, nextCursor);
+		if (this.generation.get() == generation) {
+			if (listings.size() >= maxEntries) {
+				// tag pages are the only unbounded key space; start over
+				// rather than tracking recency
+				listings.clear();
+				cachedGenerations.clear();
+			}
+			listings.put(key, listing);
+			cachedGenerations.put(key, generation);
+		}
+		return listing;
+	}
+
+	/**
+	 * @param tags
+	 * A new post changes the home page and the page of each of its tags
+	 */
+	public void invalidateForNewPost(final List<?> tags) {
+		generation.incrementAndGet();
+		Iterator<String> it = listings.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(HOME_PREFIX)) {
+				it.remove();
+			}
+		}
+		for (Object tag : tags) {
+			listings.remove(tagKey(tag.toString()));
+		}
+	}
+
+	/**
+	 * @param permalink
+	 * Drop every listing that shows the post
+	 */
+	public void invalidatePost(final String permalink) {
+		generation.incrementAndGet();
+		Iterator<Map.Entry<String, Listing>> it = listings.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue().contains(permalink)) {
+				it.remove();
+			}
+		}
+	}
+
+	public void clear() {
+		generation.incrementAndGet();
+		listings.clear();
+	}
+}
@@ -0,0 +1,79 @@
+package course;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+import java.util.regex.Pattern;
+
+/**
+ * Formats log records as logfmt lines, e.g.
+ * 
+ * time=2015-06-01T12:00:00.000Z level=INFO logger=course.BlogController
+ * msg="Signup: creating user alice"
+ * 
+ * followed by the stack trace, if any. Values of password, verify, secret and
+ * session fields are masked wherever they show up in a message or exception,
+ * as a last line of defence; the code should not be logging them at all.
+ * 
+ * @author nramanathan
+ * 
+ */
+public class LogfmtFormatter extends Formatter {
+	private static final Pattern SECRET_FIELD = Pattern.compile(
+			"\\b(password|passwd|verify|secret|session(?:id)?)(\\s*[=:]\\s*)(\"[^\"]*\"|\\S+)",
+			Pattern.CASE_INSENSITIVE);
+
+	private final SimpleDateFormat timestamp = new SimpleDateFormat(
+			"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+
+	public LogfmtFormatter() {
+		timestamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	@Override
+	public synchronized String format(final LogRecord record) {
+		StringBuilder line = new StringBuilder(128);
+		line.append("time=").append(timestamp.format(new Date(record.getMillis())));
+		line.append(" level=").append(record.getLevel().getName());
+		line.append(" logger=").append(record.getLoggerName());
+		line.append(" msg=").append(quote(redact(formatMessage(record))));
+
+		Throwable thrown = record.getThrown();
+		if (thrown != null) {
+			line.append(" error=").append(quote(redact(thrown.toString())));
+			line.append('\n');
+			StringWriter trace = new StringWriter();
+			thrown.printStackTrace(new PrintWriter(trace));
+			line.append(redact(trace.toString()));
+		} else {
+			line.append('\n');
+		}
+		return line.toString();
+	}
+
+	/**
+	 * @param text
+	 * Mask the values of password-like fields
+	 * 
+	 * @return text with those values replaced by ***
+	 */
+	static String redact(final String text) {
+		if (text == null) {
+			return null;
+		}
+		return SECRET_FIELD.matcher(text).replaceAll("$1$2***");
+	}
+
+	private static String quote(final String value) {
+		if (value == null) {
+			return "\"\"";
+		}
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n") + "\"";
+	}
+}
@@ -0,0 +1,372 @@
+package course;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide request and Mongo timings, rendered in the Prometheus text
+ * exposition format by {@link #toPrometheusText()}.
+ *
+ * Every FreemarkerBasedRoute records its request count, error count and
+ * latency, split into the time spent in Mongo (the DAO phase) and in
+ * template.process (the render phase). The DAO phase is the sum of the
+ * {@link MongoOperation} timings recorded on the request thread, so storage
+ * engines that do not talk to Mongo report it as zero.
+ *
+ * Values kept elsewhere, such as queue depths, are exported by registering a
+ * {@link Gauge} that is read on each scrape, and latencies measured
+ * elsewhere by registering their {@link LatencyHistogram}.
+ *
+ * @author nramanathan
+ *
+ */
+public final class Metrics {
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	// sorted, so that the output is stable between scrapes
+	private static final ConcurrentSkipListMap<String, RouteMetrics> ROUTES = new ConcurrentSkipListMap<String, RouteMetrics>();
+	private static final ConcurrentSkipListMap<String, MongoOperation> MONGO_OPERATIONS = new ConcurrentSkipListMap<String, MongoOperation>();
+	private static final ConcurrentSkipListMap<String, RegisteredGauge> GAUGES = new ConcurrentSkipListMap<String, RegisteredGauge>();
+	private static final ConcurrentSkipListMap<String, RegisteredSummary> SUMMARIES =
+			new ConcurrentSkipListMap<String, RegisteredSummary>();
+
+	private static final ThreadLocal<RequestTiming> REQUEST_TIMING = new ThreadLocal<RequestTiming>() {
+		@Override
+		protected RequestTiming initialValue() {
+			return new RequestTiming();
+		}
+	};
+
+	private Metrics() {
+	}
+
+	// per thread, reset at the start of each request
+	private static final class RequestTiming {
+		long daoNanos;
+		long renderNanos;
+		boolean failed;
+	}
+
+	/**
+	 * Counters and latencies of one route and HTTP method.
+	 */
+	public static final class RouteMetrics {
+		private final String method;
+		private final String route;
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LatencyHistogram daoLatency = new LatencyHistogram();
+		private final LatencyHistogram renderLatency = new LatencyHistogram();
+
+		RouteMetrics(final String method, final String route) {
+			this.method = method;
+			this.route = route;
+		}
+
+		/**
+		 * @param startNanos
+		 *            value of {@link Metrics#startRequest()}
+		 * Record a request that has just finished on this thread
+		 */
+		public void stop(final long startNanos) {
+			long elapsed = System.nanoTime() - startNanos;
+			RequestTiming timing = REQUEST_TIMING.get();
+			requests.incrementAndGet();
+			if (timing.failed) {
+				errors.incrementAndGet();
+			}
+			latency.record(elapsed);
+			daoLatency.record(timing.daoNanos);
+			renderLatency.record(timing.renderNanos);
+		}
+
+		public long getRequests() {
+			return requests.get();
+		}
+
+		public long getErrors() {
+			return errors.get();
+		}
+
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+	}
+
+	/**
+	 * Latency of one kind of Mongo round trip made by a DAO.
+	 */
+	public static final class MongoOperation {
+		private final String dao;
+		private final String operation;
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		MongoOperation(final String dao, final String operation) {
+			this.dao = dao;
+			this.operation = operation;
+		}
+
+		/**
+		 * @return start time to pass to {@link #stop(long)}
+		 */
+		public long start() {
+			return System.nanoTime();
+		}
+
+		/**
+		 * @param startNanos
+		 * Record the operation and add it to the DAO phase of the current
+		 * request
+		 */
+		public void stop(final long startNanos) {
+			long elapsed = System.nanoTime() - startNanos;
+			latency.record(elapsed);
+			REQUEST_TIMING.get().daoNanos += elapsed;
+		}
+
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+	}
+
+	/**
+	 * A value that is read when the metrics are scraped.
+	 */
+	public interface Gauge {
+		long getValue();
+	}
+
+	private static final class RegisteredGauge {
+		final String type;
+		final String help;
+		final Gauge gauge;
+
+		RegisteredGauge(final String type, final String help, final Gauge gauge) {
+			this.type = type;
+			this.help = help;
+			this.gauge = gauge;
+		}
+	}
+
+	private static final class RegisteredSummary {
+		final String help;
+		final LatencyHistogram latency;
+
+		RegisteredSummary(final String help, final LatencyHistogram latency) {
+			this.help = help;
+			this.latency = latency;
+		}
+	}
+
+	/**
+	 * @param name
+	 * @param type
+	 *            "gauge", or "counter" for a value that only goes up
+	 * @param help
+	 * @param gauge
+	 * Export a value kept elsewhere, replacing any registered under the same
+	 * name
+	 */
+	public static void register(final String name, final String type,
+			final String help, final Gauge gauge) {
+		GAUGES.put(name, new RegisteredGauge(type, help, gauge));
+	}
+
+	/**
+	 * @param name
+	 *            ending in _seconds
+	 * @param help
+	 * @param latency
+	 * Export a latency measured elsewhere as a summary, replacing any
+	 * registered under the same name
+	 */
+	public static void register(final String name, final String help,
+			final LatencyHistogram latency) {
+		SUMMARIES.put(name, new RegisteredSummary(help, latency));
+	}
+
+	/**
+	 * @param method
+	 * @param route
+	 * Look up or register the metrics of a route
+	 *
+	 * @return RouteMetrics, the same instance for the same method and route
+	 */
+	public static RouteMetrics route(final String method, final String route) {
+		String key = route + " " + method;
+		RouteMetrics metrics = ROUTES.get(key);
+		if (metrics == null) {
+			RouteMetrics created = new RouteMetrics(method, route);
+			metrics = ROUTES.putIfAbsent(key, created);
+			if (metrics == null) {
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * @param dao
+	 * @param operation
+	 * Look up or register a Mongo operation; meant to be kept in a static
+	 * field of the DAO
+	 *
+	 * @return MongoOperation, the same instance for the same dao and operation
+	 */
+	public static MongoOperation mongoOperation(final String dao,
+			final String operation) {
+		String key = dao + "." + operation;
+		MongoOperation metrics = MONGO_OPERATIONS.get(key);
+		if (metrics == null) {
+			MongoOperation created = new MongoOperation(dao, operation);
+			metrics = MONGO_OPERATIONS.putIfAbsent(key, created);
+			if (metrics == null) {
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Reset the per-request timings of this thread
+	 *
+	 * @return start time to pass to {@link RouteMetrics#stop(long)}
+	 */
+	public static long startRequest() {
+		RequestTiming timing = REQUEST_TIMING.get();
+		timing.daoNanos = 0;
+		timing.renderNanos = 0;
+		timing.failed = false;
+		return System.nanoTime();
+	}
+
+	/**
+	 * @param nanos
+	 * Add template rendering time to the current request
+	 */
+	public static void addRenderNanos(final long nanos) {
+		REQUEST_TIMING.get().renderNanos += nanos;
+	}
+
+	/**
+	 * Count the current request as an error
+	 */
+	public static void requestFailed() {
+		REQUEST_TIMING.get().failed = true;
+	}
+
+	/**
+	 * @return every metric in the Prometheus text format, version 0.0.4
+	 */
+	public static String toPrometheusText() {
+		StringBuilder out = new StringBuilder(16384);
+
+		header(out, "blog_http_requests_total", "counter",
+				"Requests handled, by route and method.");
+		for (RouteMetrics route : ROUTES.values()) {
+			sample(out, "blog_http_requests_total", routeLabels(route), null,
+					Long.toString(route.getRequests()));
+		}
+
+		header(out, "blog_http_errors_total", "counter",
+				"Requests that failed with an exception.");
+		for (RouteMetrics route : ROUTES.values()) {
+			sample(out, "blog_http_errors_total", routeLabels(route), null,
+					Long.toString(route.getErrors()));
+		}
+
+		header(out, "blog_http_request_duration_seconds", "summary",
+				"Time to handle a request.");
+		for (RouteMetrics route : ROUTES.values()) {
+			summary(out, "blog_http_request_duration_seconds",
+					routeLabels(route), route.latency);
+		}
+
+		header(out, "blog_http_phase_duration_seconds", "summary",
+				"Time per request spent in Mongo (dao) and in templates (render).");
+		for (RouteMetrics route : ROUTES.values()) {
+			summary(out, "blog_http_phase_duration_seconds",
+					routeLabels(route) + ",phase=\"dao\"", route.daoLatency);
+			summary(out, "blog_http_phase_duration_seconds",
+					routeLabels(route) + ",phase=\"render\"",
+					route.renderLatency);
+		}
+
+		header(out, "blog_mongo_operation_duration_seconds", "summary",
+				"Time of each Mongo round trip made by the DAOs.");
+		for (Map.Entry<String, MongoOperation> entry : MONGO_OPERATIONS
+				.entrySet()) {
+			MongoOperation operation = entry.getValue();
+			summary(out, "blog_mongo_operation_duration_seconds", "dao=\""
+					+ escape(operation.dao) + "\",operation=\""
+					+ escape(operation.operation) + "\"", operation.latency);
+		}
+
+		for (Map.Entry<String, RegisteredGauge> entry : GAUGES.entrySet()) {
+			RegisteredGauge gauge = entry.getValue();
+			header(out, entry.getKey(), gauge.type, gauge.help);
+			sample(out, entry.getKey(), "", null,
+					Long.toString(gauge.gauge.getValue()));
+		}
+
+		for (Map.Entry<String, RegisteredSummary> entry : SUMMARIES
+				.entrySet()) {
+			header(out, entry.getKey(), "summary", entry.getValue().help);
+			summary(out, entry.getKey(), "", entry.getValue().latency);
+		}
+
+		return out.toString();
+	}
+
+	private static String routeLabels(final RouteMetrics route) {
+		return "method=\"" + escape(route.method) + "\",route=\""
+				+ escape(route.route) + "\"";
+	}
+
+	private static void header(final StringBuilder out, final String name,
+			final String type, final String help) {
+		out.append("# HELP ").append(name).append(' ').append(help)
+				.append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type)
+				.append('\n');
+	}
+
+	private static void summary(final StringBuilder out, final String name,
+			final String labels, final LatencyHistogram histogram) {
+		for (double quantile : QUANTILES) {
+			sample(out, name, labels, "quantile=\"" + quantile + "\"",
+					seconds(histogram.getValueAtQuantile(quantile)));
+		}
+		sample(out, name + "_sum", labels, null,
+				seconds(histogram.getSumNanos()));
+		sample(out, name + "_count", labels, null,
+				Long.toString(histogram.getCount()));
+	}
+
+	private static void sample(final StringBuilder out, final String name,
+			final String labels, final String extraLabel, final String value) {
+		out.append(name);
+		if (!labels.isEmpty()) {
+			out.append('{').append(labels);
+			if (extraLabel != null) {
+				out.append(',').append(extraLabel);
+			}
+			out.append('}');
+		} else if (extraLabel != null) {
+			out.append('{').append(extraLabel).append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+
+	private static String seconds(final long nanos) {
+		return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+	}
+
+	private static String escape(final String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,81 @@
+package course;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Position in a listing ordered by date and then _id, both descending. The
+ * next page holds the posts that sort after the last one shown, which the
+ * (date, _id) indexes find with one seek however deep the page is.
+ *
+ * The token handed to the browser is the date and _id packed into 20 bytes
+ * and base64url encoded, so it is opaque and safe in a query string.
+ *
+ * @author nramanathan
+ *
+ */
+public final class PageCursor {
+	private static final int TOKEN_BYTES = 8 + 12;
+
+	private final Date date;
+	private final ObjectId id;
+
+	public PageCursor(final Date date, final ObjectId id) {
+		this.date = date;
+		this.id = id;
+	}
+
+	/**
+	 * @param post
+	 *            the last post shown on a page
+	 *
+	 * @return cursor for the page after it
+	 */
+	public static PageCursor after(final Document post) {
+		return new PageCursor(post.getDate("date"), post.getObjectId("_id"));
+	}
+
+	/**
+	 * @param token
+	 *            value of the before query parameter
+	 *
+	 * @return the cursor, or null if the token is missing or malformed
+	 */
+	public static PageCursor parse(final String token) {
+		if (token == null || token.isEmpty()) {
+			return null;
+		}
+		byte[] bytes = Base64.decodeBase64(token);
+		if (bytes.length != TOKEN_BYTES) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		long date = buffer.getLong();
+		byte[] id = new byte[12];
+		buffer.get(id);
+		return new PageCursor(new Date(date), new ObjectId(id));
+	}
+
+	public Date getDate() {
+		return date;
+	}
+
+	public ObjectId getId() {
+		return id;
+	}
+
+	/**
+	 * @return the opaque token for the before query parameter
+	 */
+	@Override
+	public String toString() {
+		ByteBuffer buffer = ByteBuffer.allocate(TOKEN_BYTES);
+		buffer.putLong(date.getTime());
+		buffer.put(id.toByteArray());
+		return Base64.encodeBase64URLSafeString(buffer.array());
+	}
+}
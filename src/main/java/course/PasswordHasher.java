@@ -0,0 +1,19 @@
+package course;
+
+/**
+ * Strategy for turning passwords into stored hashes and checking them again,
+ * the scheme new hashes are made with.
+ * 
+ * @author nramanathan
+ * 
+ */
+public interface PasswordHasher extends PasswordVerifier {
+
+	/**
+	 * @param password
+	 * Hash a password with a fresh salt
+	 * 
+	 * @return the string to store, including salt and cost parameters
+	 */
+	String hash(String password);
+}
@@ -0,0 +1,163 @@
+package course;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Password hashing is deliberately slow, so it runs on a small bounded
+ * executor rather than on the request thread: a burst of logins queues up
+ * there, and once the queue is full further logins are rejected instead of
+ * tying up the threads that serve pages.
+ * 
+ * Shared by the user stores so that every storage engine hashes the same way.
+ * 
+ * @author nramanathan
+ * 
+ */
+public class PasswordHashing {
+	public static final long DEFAULT_HASHING_TIMEOUT_MILLIS = 5000;
+
+	private final PasswordHasher passwordHasher;
+	private final PasswordVerifier legacyVerifier =
+			new LegacyMd5PasswordVerifier();
+	private final ExecutorService hashingExecutor;
+	private final long hashingTimeoutMillis;
+	// what checkMissingUser verifies against, made by its first call
+	private volatile String missingUserHash;
+
+	public PasswordHashing() {
+		this(new Pbkdf2PasswordHasher(), newHashingExecutor(Runtime
+				.getRuntime().availableProcessors(), 64),
+				DEFAULT_HASHING_TIMEOUT_MILLIS);
+	}
+
+	public PasswordHashing(final PasswordHasher passwordHasher,
+			final ExecutorService hashingExecutor,
+			final long hashingTimeoutMillis) {
+		this.passwordHasher = passwordHasher;
+		this.hashingExecutor = hashingExecutor;
+		this.hashingTimeoutMillis = hashingTimeoutMillis;
+	}
+
+	/**
+	 * @param threads
+	 * @param queueSize
+	 * Create an executor for password hashing that rejects work once
+	 * queueSize hashes are waiting
+	 * 
+	 * @return bounded ExecutorService
+	 */
+	public static ExecutorService newHashingExecutor(int threads, int queueSize) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						queueSize), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "password-hashing-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * @param password
+	 * Hash a new password on the hashing executor
+	 * 
+	 * @return the hash to store
+	 */
+	public String hash(final String password) {
+		return runHashing(new Callable<String>() {
+			@Override
+			public String call() {
+				return passwordHasher.hash(password);
+			}
+		});
+	}
+
+	/**
+	 * @param password
+	 * @param storedHash
+	 * Verify a password on the hashing executor. A hash from an older scheme
+	 * or with a lower cost than configured is recomputed in the same task.
+	 * 
+	 * @return null if the password does not match, otherwise the hash that
+	 *         should be stored, which differs from storedHash if it needs
+	 *         upgrading
+	 */
+	public String check(final String password, final String storedHash) {
+		return runHashing(new Callable<String>() {
+			@Override
+			public String call() {
+				PasswordVerifier verifier = passwordHasher
+						.supports(storedHash) ? passwordHasher : legacyVerifier;
+				if (!verifier.supports(storedHash)
+						|| !verifier.verify(password, storedHash)) {
+					return null;
+				}
+				if (passwordHasher.needsRehash(storedHash)) {
+					return passwordHasher.hash(password);
+				}
+				return storedHash;
+			}
+		});
+	}
+
+	/**
+	 * @param password
+	 * Do the work of checking a password for a login whose user does not
+	 * exist, so that the response takes as long as a wrong password and does
+	 * not tell which usernames exist. The first call hashes the password and
+	 * later ones verify against that hash, each one derivation like check.
+	 */
+	public void checkMissingUser(final String password) {
+		String storedHash = missingUserHash;
+		if (storedHash == null) {
+			missingUserHash = hash(password);
+		} else {
+			check(password, storedHash);
+		}
+	}
+
+	/**
+	 * Stop the hashing threads
+	 */
+	public void close() {
+		hashingExecutor.shutdown();
+	}
+
+	/**
+	 * @param task
+	 * Run a hashing task on the hashing executor and wait for it
+	 * 
+	 * @return result of the task
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             if too many hashes are already queued
+	 */
+	private <T> T runHashing(final Callable<T> task) {
+		Future<T> future = hashingExecutor.submit(task);
+		try {
+			return future.get(hashingTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while hashing password", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Password hashing failed",
+					e.getCause());
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			throw new RuntimeException("Password hashing timed out", e);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package course;
+
+/**
+ * Checks passwords against stored hashes of one scheme. Each implementation
+ * recognises its own stored format, so hashes written by an older scheme can
+ * still be verified and then upgraded by a {@link PasswordHasher}.
+ * 
+ * @author nramanathan
+ * 
+ */
+public interface PasswordVerifier {
+
+	/**
+	 * @param storedHash
+	 * 
+	 * @return true if the stored hash was produced by this scheme
+	 */
+	boolean supports(String storedHash);
+
+	/**
+	 * @param password
+	 * @param storedHash
+	 * 
+	 * @return true if the password matches the stored hash
+	 */
+	boolean verify(String password, String storedHash);
+
+	/**
+	 * @param storedHash
+	 * 
+	 * @return true if the stored hash should be replaced by a new one the
+	 *         next time the plain password is available
+	 */
+	boolean needsRehash(String storedHash);
+}
@@ -0,0 +1,109 @@
+package course;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * PBKDF2-HMAC-SHA256 password hashes, stored as
+ * <code>pbkdf2-sha256$iterations$salt$hash</code>. The iteration count is the
+ * cost knob; hashes with fewer iterations than configured are flagged for
+ * rehashing.
+ * 
+ * @author nramanathan
+ * 
+ */
+public class Pbkdf2PasswordHasher implements PasswordHasher {
+	public static final int DEFAULT_ITERATIONS = 100000;
+
+	private static final String PREFIX = "pbkdf2-sha256$";
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final int SALT_BYTES = 16;
+	private static final int KEY_BITS = 256;
+
+	private final int iterations;
+	private final SecureRandom random = new SecureRandom();
+
+	public Pbkdf2PasswordHasher() {
+		this(DEFAULT_ITERATIONS);
+	}
+
+	public Pbkdf2PasswordHasher(final int iterations) {
+		if (iterations < 1) {
+			throw new IllegalArgumentException("iterations must be positive");
+		}
+		this.iterations = iterations;
+		// fail at startup rather than on the first signup
+		derive("", new byte[SALT_BYTES], 1);
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	@Override
+	public String hash(final String password) {
+		byte salt[] = new byte[SALT_BYTES];
+		random.nextBytes(salt);
+		return PREFIX + iterations + "$"
+				+ Base64.encodeBase64String(salt) + "$"
+				+ Base64.encodeBase64String(derive(password, salt, iterations));
+	}
+
+	@Override
+	public boolean supports(final String storedHash) {
+		return storedHash.startsWith(PREFIX);
+	}
+
+	@Override
+	public boolean verify(final String password, final String storedHash) {
+		String parts[] = split(storedHash);
+		if (parts == null) {
+			return false;
+		}
+		byte expected[] = Base64.decodeBase64(parts[2]);
+		byte actual[] = derive(password, Base64.decodeBase64(parts[1]),
+				Integer.parseInt(parts[0]));
+		return MessageDigest.isEqual(expected, actual);
+	}
+
+	@Override
+	public boolean needsRehash(final String storedHash) {
+		String parts[] = split(storedHash);
+		return parts == null || Integer.parseInt(parts[0]) < iterations;
+	}
+
+	// iterations, salt, hash; or null if this is not one of ours
+	private String[] split(final String storedHash) {
+		if (!supports(storedHash)) {
+			return null;
+		}
+		String parts[] = storedHash.substring(PREFIX.length()).split("\\$");
+		if (parts.length != 3 || !parts[0].matches("[0-9]{1,9}")) {
+			return null;
+		}
+		return parts;
+	}
+
+	private static byte[] derive(final String password, final byte[] salt,
+			final int iterations) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
+				iterations, KEY_BITS);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM)
+					.generateSecret(spec).getEncoded();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(ALGORITHM + " is not available", e);
+		} catch (InvalidKeySpecException e) {
+			throw new RuntimeException("Could not hash password", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+}
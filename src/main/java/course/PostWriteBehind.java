@@ -0,0 +1,648 @@
+package course;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Write-behind pipeline for comments and likes. Like increments are coalesced
+ * per (permalink, ordinal) and new comments are grouped per post, then both
+ * are flushed periodically in two ordered bulkWrites, comments and then
+ * likes. Likes reach the
+ * pipeline once CommentLikes has recorded them, so a burst of likes on one
+ * comment, each from a different user, is still a single $inc. The likes are
+ * confirmed in CommentLikes once their $inc is applied, and removed from it
+ * when the comment does not exist or the $inc is dropped.
+ *
+ * Both buffers are bounded. When one is full the caller gets false back and
+ * is expected to write synchronously, which slows producers down to the speed
+ * of the database instead of dropping writes or growing the heap.
+ *
+ * Writes are acknowledged before they reach Mongo, so a reader can miss a
+ * comment or like for up to one flush interval. A write that fails is retried
+ * on the next flushes and dropped with a log entry after three attempts. The
+ * bulkWrite stops at a failed write; the writes before it were applied, and
+ * the ones after it are sent again at once, except those for the same post,
+ * which wait so that a post's comments stay in order.
+ *
+ * When the whole bulkWrite fails, e.g. on a lost connection, some of its
+ * writes may have been applied. Each queued comment carries a write_id, and
+ * a comment write only matches a post that does not have its first comment
+ * yet, so sending it again is safe; it is never added to once sent. A like
+ * increment sent again may count twice.
+ *
+ * The bulkWrites only match posts that still embed their comments. When they
+ * match fewer posts than they were sent for, the posts that have been moved to
+ * comment buckets meanwhile, e.g. by CommentBucketMigration, get their writes
+ * replayed one at a time through CommentBuckets, so the pipeline is still
+ * meant for the embedded layout but loses nothing to a migration.
+ *
+ * @author nramanathan
+ *
+ */
+public class PostWriteBehind {
+	private static final Logger logger = Logger.getLogger(PostWriteBehind.class
+			.getName());
+
+	private static final int MAX_ATTEMPTS = 3;
+	// the field that tells a comment queued here from any other, which makes
+	// sending its write again safe
+	static final String WRITE_ID = "write_id";
+
+	private static final Metrics.MongoOperation BULK_WRITE = Metrics
+			.mongoOperation("PostWriteBehind", "flush");
+
+	private final MongoCollection<Document> postsCollection;
+	private final CommentBuckets commentBuckets;
+	private final CommentLikes commentLikes;
+	private final ListingCache listingCache;
+	private final int maxPendingLikes;
+	private final int maxBatchSize;
+
+	private final ConcurrentHashMap<LikeKey, PendingLikes> pendingLikes = new ConcurrentHashMap<LikeKey, PendingLikes>();
+	private final ArrayBlockingQueue<PendingComment> pendingComments;
+	private final ScheduledExecutorService flusher;
+	private final Object flushLock = new Object();
+	// writes that failed or waited for one that did, in the order they were
+	// queued; guarded by flushLock
+	private final List<QueuedWrite> retryComments = new ArrayList<QueuedWrite>();
+	private final Map<LikeKey, QueuedWrite> retryLikes = new LinkedHashMap<LikeKey, QueuedWrite>();
+	private volatile int retrying;
+	private volatile boolean closed;
+
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong flushedWrites = new AtomicLong();
+	private final AtomicLong flushFailures = new AtomicLong();
+	private final AtomicLong rejectedWrites = new AtomicLong();
+	private final AtomicLong droppedWrites = new AtomicLong();
+	private final AtomicLong lastFlushNanos = new AtomicLong();
+	private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+	public PostWriteBehind(final MongoCollection<Document> postsCollection,
+			final CommentBuckets commentBuckets,
+			final CommentLikes commentLikes, final ListingCache listingCache,
+			final long flushIntervalMillis,
+			final int maxPendingComments, final int maxPendingLikes) {
+		this.postsCollection = postsCollection;
+		this.commentBuckets = commentBuckets;
+		this.commentLikes = commentLikes;
+		this.listingCache = listingCache;
+		this.maxPendingLikes = maxPendingLikes;
+		this.maxBatchSize = Math.max(maxPendingComments, 1);
+		this.pendingComments = new ArrayBlockingQueue<PendingComment>(
+				maxBatchSize);
+
+		flusher = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "post-write-behind");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private static final class LikeKey {
+		final String permalink;
+		final int ordinal;
+
+		LikeKey(final String permalink, final int ordinal) {
+			this.permalink = permalink;
+			this.ordinal = ordinal;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof LikeKey)) {
+				return false;
+			}
+			LikeKey other = (LikeKey) o;
+			return ordinal == other.ordinal && permalink.equals(other.permalink);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * permalink.hashCode() + ordinal;
+		}
+	}
+
+	// a write built at flush time, either the comments for one post or the
+	// likes for one comment, kept with its failures until it is applied
+	private static final class QueuedWrite {
+		final String permalink;
+		final List<Document> comments;
+		final LikeKey likeKey;
+		// one like per user
+		final List<String> users;
+		int failures;
+		// sent when the whole bulkWrite failed, so it may have been applied
+		boolean uncertain;
+
+		QueuedWrite(final String permalink, final List<Document> comments,
+				final LikeKey likeKey) {
+			this.permalink = permalink;
+			this.comments = comments;
+			this.likeKey = likeKey;
+			this.users = likeKey == null ? null : new ArrayList<String>();
+		}
+
+		Object firstWriteId() {
+			return comments.get(0).get(WRITE_ID);
+		}
+
+		List<Document> likeKeys() {
+			return CommentLikes.keys(permalink, likeKey.ordinal, users);
+		}
+
+		WriteModel<Document> model() {
+			if (comments != null) {
+				return new UpdateOneModel<Document>(embeddedFilter(permalink)
+						.append("comments", new Document("$not", new Document(
+								"$elemMatch", new Document(WRITE_ID,
+										firstWriteId())))),
+						BlogPostDAO.versioned(new Document("$push",
+								new Document("comments", new Document("$each",
+										comments))).append("$inc",
+								new Document("num_comments", comments.size()))));
+			}
+			return new UpdateOneModel<Document>(embeddedFilter(permalink)
+					.append("comments." + likeKey.ordinal, new Document(
+							"$exists", true)), BlogPostDAO.versioned(new Document(
+					"$inc", new Document("comments." + likeKey.ordinal
+							+ ".num_likes", users.size()))));
+		}
+
+		@Override
+		public String toString() {
+			return comments != null ? comments.size() + " comments on "
+					+ permalink : users.size() + " likes on comment " + likeKey.ordinal
+					+ " of " + permalink;
+		}
+	}
+
+	// the users who liked one comment since the last flush; a flush retires
+	// it, after which it takes no more likes
+	private static final class PendingLikes {
+		final List<String> users = new ArrayList<String>();
+		boolean retired;
+	}
+
+	private static final class PendingComment {
+		final String permalink;
+		final Document comment;
+
+		PendingComment(final String permalink, final Document comment) {
+			this.permalink = permalink;
+			this.comment = comment;
+		}
+	}
+
+	/**
+	 * @param permalink
+	 * @param ordinal
+	 * @param username
+	 * Queue the user's like on the comment in position ordinal, which
+	 * CommentLikes has recorded
+	 *
+	 * @return false if the buffer is full and the caller must write directly
+	 */
+	public boolean like(final String permalink, final int ordinal,
+			final String username) {
+		if (closed) {
+			return false;
+		}
+		LikeKey key = new LikeKey(permalink, ordinal);
+		while (true) {
+			PendingLikes likes = pendingLikes.get(key);
+			if (likes == null) {
+				if (pendingLikes.size() >= maxPendingLikes) {
+					rejectedWrites.incrementAndGet();
+					return false;
+				}
+				pendingLikes.putIfAbsent(key, new PendingLikes());
+				continue;
+			}
+			synchronized (likes) {
+				if (!likes.retired) {
+					likes.users.add(username);
+					return true;
+				}
+			}
+			// being flushed, make way for a fresh one
+			pendingLikes.remove(key, likes);
+		}
+	}
+
+	/**
+	 * @param permalink
+	 * @param comment
+	 * Queue a comment to be pushed onto the post, a copy of it with a
+	 * write_id added
+	 *
+	 * @return false if the buffer is full and the caller must write directly
+	 */
+	public boolean addComment(final String permalink, final Document comment) {
+		if (closed || !pendingComments.offer(new PendingComment(permalink,
+				new Document(comment).append(WRITE_ID, new ObjectId())))) {
+			rejectedWrites.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write everything buffered so far, and retry what failed last time.
+	 * Called by the background thread, and on close.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			long start = System.nanoTime();
+
+			// new comments go after the retried writes, which keeps a post's
+			// comments in order; a retried like takes the new likes for the
+			// same comment
+			List<QueuedWrite> comments = new ArrayList<QueuedWrite>(
+					retryComments);
+			retryComments.clear();
+			Map<String, QueuedWrite> added = new LinkedHashMap<String, QueuedWrite>();
+			List<PendingComment> drained = new ArrayList<PendingComment>();
+			pendingComments.drainTo(drained, maxBatchSize);
+			for (PendingComment pending : drained) {
+				QueuedWrite write = added.get(pending.permalink);
+				if (write == null) {
+					write = new QueuedWrite(pending.permalink,
+							new ArrayList<Document>(), null);
+					added.put(pending.permalink, write);
+				}
+				write.comments.add(pending.comment);
+			}
+			comments.addAll(added.values());
+
+			Map<LikeKey, QueuedWrite> likes = new LinkedHashMap<LikeKey, QueuedWrite>(
+					retryLikes);
+			retryLikes.clear();
+			Iterator<Map.Entry<LikeKey, PendingLikes>> it = pendingLikes
+					.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<LikeKey, PendingLikes> entry = it.next();
+				PendingLikes pending = entry.getValue();
+				// once retired it takes no more likes, so no like can be
+				// lost between reading and removing it
+				List<String> users;
+				synchronized (pending) {
+					pending.retired = true;
+					users = pending.users;
+				}
+				pendingLikes.remove(entry.getKey(), pending);
+				if (!users.isEmpty()) {
+					QueuedWrite write = likes.get(entry.getKey());
+					if (write == null) {
+						write = new QueuedWrite(entry.getKey().permalink, null,
+								entry.getKey());
+						likes.put(entry.getKey(), write);
+					}
+					write.users.addAll(users);
+				}
+			}
+
+			if (comments.isEmpty() && likes.isEmpty()) {
+				return;
+			}
+
+			// comments first, so that likes on them have something to hit
+			Set<String> failedPosts = write(comments,
+					Collections.<String> emptySet());
+			write(likes.values(), failedPosts);
+			retrying = retryComments.size() + retryLikes.size();
+
+			for (QueuedWrite write : comments) {
+				listingCache.invalidatePost(write.permalink);
+			}
+
+			long elapsed = System.nanoTime() - start;
+			flushCount.incrementAndGet();
+			lastFlushNanos.set(elapsed);
+			flushLatency.record(elapsed);
+		}
+	}
+
+	// ordered bulkWrites, resumed after a failed write with the writes for
+	// other posts; returns the posts that had a write fail or wait
+	private Set<String> write(final Collection<QueuedWrite> writes,
+			final Set<String> deferredPosts) {
+		Set<String> failedPosts = new HashSet<String>();
+		List<QueuedWrite> batch = new ArrayList<QueuedWrite>(writes.size());
+		for (QueuedWrite write : writes) {
+			if (deferredPosts.contains(write.permalink)) {
+				// wait for the comments of the post to go in first
+				retry(write);
+			} else {
+				batch.add(write);
+			}
+		}
+
+		List<QueuedWrite> applied = new ArrayList<QueuedWrite>(batch.size());
+		int matched = 0;
+		while (!batch.isEmpty()) {
+			List<WriteModel<Document>> models = new ArrayList<WriteModel<Document>>(
+					batch.size());
+			for (QueuedWrite write : batch) {
+				models.add(write.model());
+			}
+			long bulkStart = BULK_WRITE.start();
+			try {
+				matched += postsCollection.bulkWrite(models,
+						new BulkWriteOptions().ordered(true)).getMatchedCount();
+				applied.addAll(batch);
+				batch = Collections.emptyList();
+			} catch (MongoBulkWriteException e) {
+				flushFailures.incrementAndGet();
+				matched += e.getWriteResult().getMatchedCount();
+				if (e.getWriteErrors().isEmpty()) {
+					// applied, but not acknowledged as the write concern asks
+					logger.log(Level.WARNING, "Write-behind writes were not "
+							+ "replicated as requested", e);
+					applied.addAll(batch);
+					batch = Collections.emptyList();
+					continue;
+				}
+				int index = e.getWriteErrors().get(0).getIndex();
+				logger.log(Level.WARNING, "Write-behind could not apply "
+						+ batch.get(index), e);
+				applied.addAll(batch.subList(0, index));
+				failed(batch.get(index), failedPosts);
+				List<QueuedWrite> rest = new ArrayList<QueuedWrite>();
+				for (QueuedWrite write : batch.subList(index + 1, batch.size())) {
+					if (failedPosts.contains(write.permalink)) {
+						retry(write);
+					} else {
+						rest.add(write);
+					}
+				}
+				batch = rest;
+			} catch (RuntimeException e) {
+				// no telling which writes were applied; the comment writes
+				// are guarded by their write_id, a like may count twice
+				flushFailures.incrementAndGet();
+				logger.log(Level.WARNING, "Write-behind flush of "
+						+ batch.size() + " writes failed", e);
+				for (QueuedWrite write : batch) {
+					write.uncertain = true;
+					failed(write, failedPosts);
+				}
+				batch = Collections.emptyList();
+			} finally {
+				BULK_WRITE.stop(bulkStart);
+			}
+		}
+		if (applied.isEmpty()) {
+			return failedPosts;
+		}
+
+		flushedWrites.addAndGet(applied.size());
+		if (matched < applied.size()) {
+			replayBucketed(applied, failedPosts);
+		} else {
+			List<Document> counted = new ArrayList<Document>();
+			for (QueuedWrite write : applied) {
+				if (write.likeKey != null) {
+					counted.addAll(write.likeKeys());
+				}
+			}
+			settleLikes(counted, Collections.<Document> emptyList());
+		}
+		return failedPosts;
+	}
+
+	// writes that matched nothing because their post was migrated
+	// after they were queued, or because it has no such comment
+	private void replayBucketed(final List<QueuedWrite> writes,
+			final Set<String> failedPosts) {
+		Set<String> permalinks = new HashSet<String>();
+		for (QueuedWrite write : writes) {
+			permalinks.add(write.permalink);
+		}
+		Set<String> bucketed = new HashSet<String>();
+		try {
+			for (Document post : postsCollection
+					.find(new Document("permalink", new Document("$in",
+							new ArrayList<String>(permalinks))).append(
+							CommentBuckets.LAYOUT_FIELD, CommentBuckets.BUCKETED))
+					.projection(new Document("permalink", 1))) {
+				bucketed.add(post.getString("permalink"));
+			}
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Write-behind could not look up "
+					+ "migrated posts", e);
+			for (QueuedWrite write : writes) {
+				// some of them were applied
+				write.uncertain = true;
+				failed(write, failedPosts);
+			}
+			return;
+		}
+
+		List<Document> counted = new ArrayList<Document>();
+		List<Document> uncounted = new ArrayList<Document>();
+		for (QueuedWrite write : writes) {
+			try {
+				if (!bucketed.contains(write.permalink)) {
+					// applied, or no such post or comment as a synchronous
+					// write would find
+					if (write.likeKey == null) {
+						continue;
+					} else if (hasEmbeddedComment(write.likeKey)) {
+						counted.addAll(write.likeKeys());
+					} else {
+						uncounted.addAll(write.likeKeys());
+					}
+				} else if (write.comments != null) {
+					if (write.uncertain
+							&& commentBuckets.containsWrite(write.permalink,
+									write.firstWriteId())) {
+						// applied before the post was migrated
+						continue;
+					}
+					// one at a time, so a retry only has the rest to add
+					while (!write.comments.isEmpty()) {
+						commentBuckets.addComment(write.permalink,
+								write.comments.get(0));
+						write.comments.remove(0);
+					}
+				} else if (commentBuckets.like(write.permalink,
+						write.likeKey.ordinal, write.users.size())) {
+					counted.addAll(write.likeKeys());
+				} else {
+					uncounted.addAll(write.likeKeys());
+				}
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Write-behind could not replay "
+						+ write + " on its comment buckets", e);
+				failed(write, failedPosts);
+			}
+		}
+		settleLikes(counted, uncounted);
+	}
+
+	private boolean hasEmbeddedComment(final LikeKey likeKey) {
+		return postsCollection.count(embeddedFilter(likeKey.permalink).append(
+				"comments." + likeKey.ordinal,
+				new Document("$exists", true))) > 0;
+	}
+
+	// confirm the likes that were counted and take back the ones that can
+	// not be; if this fails the likes stay pending, for
+	// BlogPostDAO.recoverPendingLikes to count
+	private void settleLikes(final List<Document> counted,
+			final List<Document> uncounted) {
+		try {
+			commentLikes.confirm(counted);
+			commentLikes.remove(uncounted);
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Write-behind could not settle "
+					+ (counted.size() + uncounted.size()) + " likes", e);
+		}
+	}
+
+	private void failed(final QueuedWrite write, final Set<String> failedPosts) {
+		failedPosts.add(write.permalink);
+		if (++write.failures < MAX_ATTEMPTS) {
+			retry(write);
+		} else {
+			droppedWrites.incrementAndGet();
+			logger.severe("Write-behind gave up on " + write + " after "
+					+ MAX_ATTEMPTS + " attempts");
+			if (write.likeKey != null) {
+				// so the users can like the comment again
+				settleLikes(Collections.<Document> emptyList(),
+						write.likeKeys());
+			}
+		}
+	}
+
+	private void retry(final QueuedWrite write) {
+		if (write.comments != null) {
+			retryComments.add(write);
+		} else {
+			retryLikes.put(write.likeKey, write);
+		}
+	}
+
+	// only posts with embedded comments; the pipeline does not write to
+	// comment buckets
+	private static Document embeddedFilter(final String permalink) {
+		return new Document("permalink", permalink).append(
+				CommentBuckets.LAYOUT_FIELD, new Document("$exists", false));
+	}
+
+	/**
+	 * Stop accepting writes, stop the background thread and flush what is
+	 * left.
+	 */
+	public void close() {
+		closed = true;
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		// a buffer that was bigger than one batch, or writes to retry
+		while (!pendingComments.isEmpty() || retrying > 0) {
+			flush();
+		}
+	}
+
+	public int getPendingComments() {
+		return pendingComments.size();
+	}
+
+	public int getPendingLikes() {
+		return pendingLikes.size();
+	}
+
+	public int getRetryingWrites() {
+		return retrying;
+	}
+
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+
+	public long getFlushedWrites() {
+		return flushedWrites.get();
+	}
+
+	public long getFlushFailures() {
+		return flushFailures.get();
+	}
+
+	public long getRejectedWrites() {
+		return rejectedWrites.get();
+	}
+
+	public long getDroppedWrites() {
+		return droppedWrites.get();
+	}
+
+	public long getLastFlushMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lastFlushNanos.get());
+	}
+
+	public long getMaxFlushMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(flushLatency.getMaxNanos());
+	}
+
+	/**
+	 * @return how long each flush took, from draining the buffers to the
+	 *         last write
+	 */
+	public LatencyHistogram getFlushLatency() {
+		return flushLatency;
+	}
+
+	@Override
+	public String toString() {
+		return "PostWriteBehind{pendingComments=" + getPendingComments()
+				+ ", pendingLikes=" + getPendingLikes() + ", retrying="
+				+ getRetryingWrites() + ", flushes="
+				+ getFlushCount() + ", flushedWrites=" + getFlushedWrites()
+				+ ", failures=" + getFlushFailures() + ", rejected="
+				+ getRejectedWrites() + ", dropped=" + getDroppedWrites()
+				+ ", lastFlushMillis="
+				+ getLastFlushMillis() + ", maxFlushMillis="
+				+ getMaxFlushMillis() + "}";
+	}
+}
@@ -0,0 +1,370 @@
+package course;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.Document;
+
+/**
+ * In-process inverted index over the title, tags, body and comments of every
+ * post, behind /search. Posts are numbered in the order they are added, and
+ * each term maps to a posting list of (post number, weight) pairs where the
+ * weight counts the occurrences of the term, those in the title and tags
+ * counting extra.
+ *
+ * A posting list is a byte array of varints: the difference to the previous
+ * post number, zigzag encoded since a comment on an older post appends a
+ * smaller number, followed by the weight. Posts added in order mostly take
+ * two bytes per term, and nothing but the title, author, date and permalink
+ * of a post is kept to render the results.
+ *
+ * Results are ranked by the sum over the query terms of a saturating weight
+ * times the term's inverse document frequency, newest first on a tie. A post
+ * a comment adds a term to again is counted once in that frequency, its
+ * weights summed before saturating.
+ *
+ * The index is per process: it holds what was read from Mongo when it was
+ * built and the posts and comments written through this process since.
+ * With several instances, writes made through the others are not found
+ * until the index is rebuilt, which blog.search.refreshMinutes does
+ * periodically.
+ *
+ * @author nramanathan
+ *
+ */
+public class SearchIndex {
+	private static final int TITLE_WEIGHT = 3;
+	private static final int TAG_WEIGHT = 2;
+	private static final int TEXT_WEIGHT = 1;
+
+	// how quickly repeating a term stops raising a post's score
+	private static final float SATURATION = 1.2f;
+
+	private static final int MIN_TERM_LENGTH = 2;
+	private static final int MAX_TERM_LENGTH = 40;
+	private static final int MAX_QUERY_TERMS = 10;
+	// the longest HTML entity the escaped bodies contain, e.g. &quot;
+	private static final int MAX_ENTITY_LENGTH = 8;
+
+	private static final Set<String> STOP_WORDS = new HashSet<String>(
+			Arrays.asList("an", "and", "are", "as", "at", "be", "by", "for",
+					"from", "has", "in", "is", "it", "of", "on", "or", "that",
+					"the", "this", "to", "was", "were", "will", "with"));
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<String, PostingList> postings = new HashMap<String, PostingList>();
+	private final List<Post> posts = new ArrayList<Post>();
+	private final Map<String, Integer> numbersByPermalink = new HashMap<String, Integer>();
+
+	// what a result needs to link to the post
+	private static final class Post {
+		final String permalink;
+		final String title;
+		final String author;
+		final Date date;
+
+		Post(final String permalink, final String title, final String author,
+				final Date date) {
+			this.permalink = permalink;
+			this.title = title;
+			this.author = author;
+			this.date = date;
+		}
+	}
+
+	private static final class PostingList {
+		byte[] bytes = new byte[8];
+		int length;
+		int lastNumber;
+
+		void add(final int number, final int weight) {
+			if (bytes.length - length < 10) {
+				bytes = Arrays.copyOf(bytes, bytes.length + (bytes.length >> 1)
+						+ 10);
+			}
+			int delta = number - lastNumber;
+			writeVarint((delta << 1) ^ (delta >> 31));
+			writeVarint(weight);
+			lastNumber = number;
+		}
+
+		private void writeVarint(int value) {
+			while ((value & ~0x7f) != 0) {
+				bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			bytes[length++] = (byte) value;
+		}
+	}
+
+	/**
+	 * @param post
+	 *            with permalink, title, author, date, tags and body, and
+	 *            optionally an embedded comments array
+	 * Index a post, replacing nothing: a permalink that is already indexed
+	 * is ignored
+	 */
+	public void addPost(final Document post) {
+		Map<String, Integer> weights = new HashMap<String, Integer>();
+		addTerms(weights, post.getString("title"), TITLE_WEIGHT);
+		Object tags = post.get("tags");
+		if (tags instanceof List) {
+			for (Object tag : (List<?>) tags) {
+				addTerms(weights, String.valueOf(tag), TAG_WEIGHT);
+			}
+		}
+		addTerms(weights, post.getString("body"), TEXT_WEIGHT);
+		Object comments = post.get("comments");
+		if (comments instanceof List) {
+			for (Object comment : (List<?>) comments) {
+				addTerms(weights, ((Document) comment).getString("body"),
+						TEXT_WEIGHT);
+			}
+		}
+
+		String permalink = post.getString("permalink");
+		lock.writeLock().lock();
+		try {
+			if (numbersByPermalink.containsKey(permalink)) {
+				return;
+			}
+			int number = posts.size();
+			posts.add(new Post(permalink, post.getString("title"), post
+					.getString("author"), post.getDate("date")));
+			numbersByPermalink.put(permalink, number);
+			addPostings(number, weights);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param permalink
+	 * @param body
+	 * Index the body of a comment as part of its post
+	 *
+	 * @return false if no post with the permalink is indexed
+	 */
+	public boolean addComment(final String permalink, final String body) {
+		Map<String, Integer> weights = new HashMap<String, Integer>();
+		addTerms(weights, body, TEXT_WEIGHT);
+
+		lock.writeLock().lock();
+		try {
+			Integer number = numbersByPermalink.get(permalink);
+			if (number == null) {
+				return false;
+			}
+			addPostings(number, weights);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void addPostings(final int number, final Map<String, Integer> weights) {
+		for (Map.Entry<String, Integer> term : weights.entrySet()) {
+			PostingList list = postings.get(term.getKey());
+			if (list == null) {
+				list = new PostingList();
+				postings.put(term.getKey(), list);
+			}
+			list.add(number, term.getValue());
+		}
+	}
+
+	/**
+	 * @param query
+	 * @param limit
+	 * Find the posts matching any of the words in the query, best first
+	 *
+	 * @return up to limit Documents with permalink, title, author and date
+	 */
+	public List<Document> search(final String query, final int limit) {
+		Map<String, Integer> terms = new LinkedHashMap<String, Integer>();
+		addTerms(terms, query, 1);
+		if (terms.isEmpty() || limit <= 0) {
+			return Collections.emptyList();
+		}
+
+		lock.readLock().lock();
+		try {
+			int postTotal = posts.size();
+			float[] scores = new float[postTotal];
+			int[] matched = new int[16];
+			int matchedCount = 0;
+			// a term's weight in each post, summed over the post and the
+			// comments that added the term again
+			int[] termWeights = new int[postTotal];
+			int[] termPosts = new int[16];
+
+			int termCount = 0;
+			for (String term : terms.keySet()) {
+				if (termCount++ == MAX_QUERY_TERMS) {
+					break;
+				}
+				PostingList list = postings.get(term);
+				if (list == null) {
+					continue;
+				}
+				int termPostCount = 0;
+				byte[] bytes = list.bytes;
+				int number = 0;
+				for (int i = 0; i < list.length;) {
+					int zigzag = 0;
+					for (int shift = 0;; shift += 7) {
+						byte b = bytes[i++];
+						zigzag |= (b & 0x7f) << shift;
+						if (b >= 0) {
+							break;
+						}
+					}
+					int weight = 0;
+					for (int shift = 0;; shift += 7) {
+						byte b = bytes[i++];
+						weight |= (b & 0x7f) << shift;
+						if (b >= 0) {
+							break;
+						}
+					}
+					number += (zigzag >>> 1) ^ -(zigzag & 1);
+
+					if (termWeights[number] == 0) {
+						if (termPostCount == termPosts.length) {
+							termPosts = Arrays.copyOf(termPosts,
+									termPostCount * 2);
+						}
+						termPosts[termPostCount++] = number;
+					}
+					termWeights[number] += weight;
+				}
+
+				float idf = (float) Math.log(1 + postTotal
+						/ (double) termPostCount);
+				for (int j = 0; j < termPostCount; j++) {
+					int post = termPosts[j];
+					int weight = termWeights[post];
+					termWeights[post] = 0;
+					if (scores[post] == 0) {
+						if (matchedCount == matched.length) {
+							matched = Arrays.copyOf(matched, matchedCount * 2);
+						}
+						matched[matchedCount++] = post;
+					}
+					scores[post] += idf * weight / (weight + SATURATION);
+				}
+			}
+
+			final float[] finalScores = scores;
+			// the worst of the best so far on top
+			PriorityQueue<Integer> best = new PriorityQueue<Integer>(limit + 1,
+					new Comparator<Integer>() {
+						public int compare(Integer a, Integer b) {
+							int byScore = Float.compare(finalScores[a],
+									finalScores[b]);
+							return byScore != 0 ? byScore : a.compareTo(b);
+						}
+					});
+			for (int i = 0; i < matchedCount; i++) {
+				best.add(matched[i]);
+				if (best.size() > limit) {
+					best.poll();
+				}
+			}
+
+			Document[] results = new Document[best.size()];
+			for (int i = results.length - 1; i >= 0; i--) {
+				int number = best.poll();
+				Post post = posts.get(number);
+				results[i] = new Document("permalink", post.permalink)
+						.append("title", post.title)
+						.append("author", post.author)
+						.append("date", post.date);
+			}
+			return Arrays.asList(results);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of posts indexed
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return posts.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// splits on anything but letters and digits, lower cases, and skips the
+	// HTML entities the stored text is escaped with
+	private static void addTerms(final Map<String, Integer> weights,
+			final String text, final int weight) {
+		if (text == null) {
+			return;
+		}
+		int start = -1;
+		for (int i = 0, n = text.length(); i <= n; i++) {
+			char c = i < n ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				if (start < 0) {
+					start = i;
+				}
+				continue;
+			}
+			if (start >= 0) {
+				addTerm(weights, text.substring(start, i), weight);
+				start = -1;
+			}
+			if (c == '&') {
+				i = skipEntity(text, i);
+			}
+		}
+	}
+
+	// index of the ; ending the entity at i, or i if there is none
+	private static int skipEntity(final String text, final int i) {
+		for (int j = i + 1, n = Math.min(text.length(), i
+				+ MAX_ENTITY_LENGTH); j < n; j++) {
+			char c = text.charAt(j);
+			if (c == ';') {
+				return j > i + 1 ? j : i;
+			}
+			if (!Character.isLetterOrDigit(c) && c != '#') {
+				return i;
+			}
+		}
+		return i;
+	}
+
+	private static void addTerm(final Map<String, Integer> weights,
+			final String word, final int weight) {
+		// single digits are kept, e.g. for "part 2"
+		if (word.length() > MAX_TERM_LENGTH || word.length() < MIN_TERM_LENGTH
+				&& !Character.isDigit(word.charAt(0))) {
+			return;
+		}
+		String term = word.toLowerCase(Locale.ROOT);
+		if (STOP_WORDS.contains(term)) {
+			return;
+		}
+		Integer current = weights.get(term);
+		weights.put(term, current == null ? weight : current + weight);
+	}
+}
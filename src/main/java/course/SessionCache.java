@@ -0,0 +1,191 @@
+package course;
+
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, concurrent cache of session ID to username lookups that sits in
+ * front of the sessions collection.
+ *
+ * Unknown or forged session IDs are cached as negative entries with a shorter
+ * time to live, so a client replaying a bad cookie does not cost a Mongo round
+ * trip on every page view.
+ *
+ * @author nramanathan
+ *
+ */
+public class SessionCache {
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	public static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS
+			.toMillis(5);
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+	private final Clock clock;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public SessionCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS,
+				DEFAULT_NEGATIVE_TTL_MILLIS);
+	}
+
+	public SessionCache(final int maxEntries, final long ttlMillis,
+			final long negativeTtlMillis) {
+		this(maxEntries, ttlMillis, negativeTtlMillis, Clock.systemUTC());
+	}
+
+	// with a clock that tests can move forward
+	SessionCache(final int maxEntries, final long ttlMillis,
+			final long negativeTtlMillis, final Clock clock) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+		this.clock = clock;
+	}
+
+	/**
+	 * A cached lookup. A null username means the session is known not to
+	 * exist.
+	 */
+	public static final class Entry {
+		private final String username;
+		private final long expiresAt;
+
+		Entry(final String username, final long expiresAt) {
+			this.username = username;
+			this.expiresAt = expiresAt;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		boolean isExpired(final long now) {
+			return now >= expiresAt;
+		}
+	}
+
+	/**
+	 * @param sessionId
+	 * Look up a session ID in the cache
+	 *
+	 * @return the cached Entry, or null if the caller has to go to the database
+	 */
+	public Entry get(final String sessionId) {
+		Entry entry = entries.get(sessionId);
+		if (entry != null && entry.isExpired(clock.millis())) {
+			if (entries.remove(sessionId, entry)) {
+				evictions.incrementAndGet();
+			}
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * @param sessionId
+	 * @param username
+	 * Cache the result of a database lookup. Does not overwrite an entry
+	 * written in the meantime by {@link #put} or {@link #invalidate}, so a slow
+	 * read cannot resurrect a session that was just ended.
+	 */
+	public void putLookup(final String sessionId, final String username) {
+		entries.putIfAbsent(sessionId, newEntry(username));
+		evictIfFull();
+	}
+
+	/**
+	 * @param sessionId
+	 * @param username
+	 * Cache a freshly started session
+	 */
+	public void put(final String sessionId, final String username) {
+		entries.put(sessionId, newEntry(username));
+		evictIfFull();
+	}
+
+	/**
+	 * @param sessionId
+	 * Invalidate a session. A negative entry is left behind rather than
+	 * removing the key, so that lookups still in flight cannot re-populate it.
+	 */
+	public void invalidate(final String sessionId) {
+		entries.put(sessionId, newEntry(null));
+		evictIfFull();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "SessionCache{size=" + size() + ", hits=" + getHitCount()
+				+ ", misses=" + getMissCount() + ", evictions="
+				+ getEvictionCount() + "}";
+	}
+
+	private Entry newEntry(final String username) {
+		long ttl = username == null ? negativeTtlMillis : ttlMillis;
+		return new Entry(username, clock.millis() + ttl);
+	}
+
+	// drops expired entries first, then arbitrary ones, until we are back
+	// under 90% of capacity so that we do not sweep on every insert
+	private void evictIfFull() {
+		if (entries.size() <= maxEntries) {
+			return;
+		}
+		long now = clock.millis();
+		int target = maxEntries - maxEntries / 10;
+
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue().isExpired(now)) {
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		it = entries.entrySet().iterator();
+		while (entries.size() > target && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+}
@@ -2,23 +2,96 @@ package course;
 
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoCollection;
-import sun.misc.BASE64Encoder;
+import com.mongodb.client.model.IndexOptions;
 
+import org.apache.commons.codec.binary.Base64;
 import org.bson.Document;
 
 import java.security.SecureRandom;
+import java.util.Date;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static com.mongodb.client.model.Filters.eq;
 
 /**
+ * Sessions are either stored in the sessions collection (the default), or,
+ * when constructed with a {@link SessionTokenSigner}, carried entirely in a
+ * signed cookie so that resolving the user needs no database I/O. In token
+ * mode logout records the token in an in-memory revocation set until it
+ * expires.
+ * 
  * @author nramanathan
  * 
  */
-public class SessionDAO {
+public class SessionDAO implements SessionStore {
+	private static final Metrics.MongoOperation FIND_SESSION = Metrics
+			.mongoOperation("SessionDAO", "getSession");
+	private static final Metrics.MongoOperation INSERT_SESSION = Metrics
+			.mongoOperation("SessionDAO", "startSession");
+	private static final Metrics.MongoOperation DELETE_SESSION = Metrics
+			.mongoOperation("SessionDAO", "endSession");
+
 	private final MongoCollection<Document> sessionsCollection;
+	private final SessionCache sessionCache;
+	private final SessionTokenSigner tokenSigner;
+	// revoked token -> its expiry, only used in token mode
+	private final ConcurrentHashMap<String, Long> revokedTokens = new ConcurrentHashMap<String, Long>();
+	// the same revocations soonest to expire first, so pruning only looks at
+	// the ones it removes; guarded by itself
+	private final PriorityQueue<Revocation> revocationsByExpiry = new PriorityQueue<Revocation>();
+
+	private static final class Revocation implements Comparable<Revocation> {
+		final String token;
+		final long expiresAt;
+
+		Revocation(final String token, final long expiresAt) {
+			this.token = token;
+			this.expiresAt = expiresAt;
+		}
+
+		public int compareTo(Revocation other) {
+			return Long.compare(expiresAt, other.expiresAt);
+		}
+	}
 
 	public SessionDAO(final MongoDatabase blogDatabase) {
+		this(blogDatabase, new SessionCache());
+	}
+
+	public SessionDAO(final MongoDatabase blogDatabase,
+			final SessionCache sessionCache) {
+		this(blogDatabase, sessionCache, null);
+	}
+
+	public SessionDAO(final MongoDatabase blogDatabase,
+			final SessionCache sessionCache,
+			final SessionTokenSigner tokenSigner) {
 		sessionsCollection = blogDatabase.getCollection("sessions");
+		this.sessionCache = sessionCache;
+		this.tokenSigner = tokenSigner;
+	}
+
+	/**
+	 * @param maxAgeDays
+	 * Create a TTL index so that the server deletes sessions older than
+	 * maxAgeDays. Sessions started before the created field was recorded are
+	 * left alone.
+	 */
+	public void ensureIndexes(long maxAgeDays) {
+		if (isTokenMode()) {
+			return;
+		}
+		sessionsCollection.createIndex(new Document("created", 1),
+				new IndexOptions().expireAfter(maxAgeDays, TimeUnit.DAYS));
+	}
+
+	/**
+	 * @return true if sessions are signed tokens rather than Mongo documents
+	 */
+	public boolean isTokenMode() {
+		return tokenSigner != null;
 	}
 
 	/**
@@ -28,13 +101,32 @@ public class SessionDAO {
 	 * @return username
 	 */
 	public String findUserNameBySessionId(String sessionId) {
+		if (sessionId == null) {
+			return null;
+		}
+
+		if (isTokenMode()) {
+			if (revokedTokens.containsKey(sessionId)) {
+				return null;
+			}
+			return tokenSigner.verify(sessionId);
+		}
+
+		SessionCache.Entry cached = sessionCache.get(sessionId);
+		if (cached != null) {
+			return cached.getUsername();
+		}
+
 		Document session = getSession(sessionId);
 
-		if (session == null) {
-			return null;
-		} else {
-			return session.get("username").toString();
+		String username = null;
+		if (session != null) {
+			username = session.get("username").toString();
 		}
+
+		// remember misses too, so forged cookies don't hit the database
+		sessionCache.putLookup(sessionId, username);
+		return username;
 	}
 
 	// starts a new session in the sessions table
@@ -46,20 +138,28 @@ public class SessionDAO {
 	 */
 	public String startSession(String username) {
 
+		if (isTokenMode()) {
+			return tokenSigner.sign(username);
+		}
+
 		// get 32 byte random number. that's a lot of bits.
 		SecureRandom generator = new SecureRandom();
 		byte randomBytes[] = new byte[32];
 		generator.nextBytes(randomBytes);
 
-		BASE64Encoder encoder = new BASE64Encoder();
-
-		String sessionID = encoder.encode(randomBytes);
+		String sessionID = Base64.encodeBase64String(randomBytes);
 
 		// build the BSON object
 		Document session = new Document("username", username).append("_id",
-				sessionID);
+				sessionID).append("created", new Date());
 
-		sessionsCollection.insertOne(session);
+		long start = INSERT_SESSION.start();
+		try {
+			sessionsCollection.insertOne(session);
+		} finally {
+			INSERT_SESSION.stop(start);
+		}
+		sessionCache.put(sessionID, username);
 
 		return session.getString("_id");
 	}
@@ -70,7 +170,27 @@ public class SessionDAO {
 	 * End the session for the provided Session ID
 	 */
 	public void endSession(String sessionID) {
-		sessionsCollection.deleteOne(eq("_id", sessionID));
+		if (isTokenMode()) {
+			revokeToken(sessionID);
+			return;
+		}
+
+		long start = DELETE_SESSION.start();
+		try {
+			sessionsCollection.deleteOne(eq("_id", sessionID));
+		} finally {
+			DELETE_SESSION.stop(start);
+		}
+		sessionCache.invalidate(sessionID);
+	}
+
+	/**
+	 * Obtain the session cache, e.g. to report its hit/miss/eviction counters
+	 * 
+	 * @return the SessionCache in front of the sessions collection
+	 */
+	public SessionCache getSessionCache() {
+		return sessionCache;
 	}
 
 	// retrieves the session from the sessions table
@@ -81,6 +201,45 @@ public class SessionDAO {
 	 * @return Document of the Session Object
 	 */
 	public Document getSession(String sessionID) {
-		return sessionsCollection.find(eq("_id", sessionID)).first();
+		if (isTokenMode()) {
+			String username = findUserNameBySessionId(sessionID);
+			if (username == null) {
+				return null;
+			}
+			return new Document("username", username).append("_id", sessionID);
+		}
+		long start = FIND_SESSION.start();
+		try {
+			return sessionsCollection.find(eq("_id", sessionID)).first();
+		} finally {
+			FIND_SESSION.stop(start);
+		}
+	}
+
+	// remembers a token until it would have expired anyway, which keeps the
+	// revocation set as small as the number of recent logouts; each logout
+	// drops the revocations that have expired since the last one
+	private void revokeToken(String token) {
+		long expiresAt = tokenSigner.getExpiry(token);
+		long now = System.currentTimeMillis();
+		if (expiresAt <= now || tokenSigner.verify(token) == null) {
+			return;
+		}
+		revokedTokens.put(token, expiresAt);
+
+		synchronized (revocationsByExpiry) {
+			revocationsByExpiry.add(new Revocation(token, expiresAt));
+			while (revocationsByExpiry.peek().expiresAt <= now) {
+				revokedTokens.remove(revocationsByExpiry.poll().token);
+			}
+		}
+	}
+
+	/**
+	 * @return number of revoked tokens that have not expired yet, or not been
+	 *         dropped since
+	 */
+	public int getRevokedTokenCount() {
+		return revokedTokens.size();
 	}
 }
@@ -0,0 +1,32 @@
+package course;
+
+/**
+ * Storage for login sessions, keyed by the value of the session cookie.
+ * 
+ * @author nramanathan
+ * 
+ */
+public interface SessionStore {
+
+	/**
+	 * @param sessionId
+	 * Obtain the username from the session object
+	 * 
+	 * @return username, or null if the session does not exist
+	 */
+	String findUserNameBySessionId(String sessionId);
+
+	/**
+	 * @param username
+	 * Create a New Session for the correspoding username
+	 * 
+	 * @return Session ID
+	 */
+	String startSession(String username);
+
+	/**
+	 * @param sessionID
+	 * End the session for the provided Session ID
+	 */
+	void endSession(String sessionID);
+}
@@ -0,0 +1,149 @@
+package course;
+
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Issues and verifies self-contained session tokens of the form
+ * <code>base64url(username).expiryMillis.base64url(hmac)</code>, signed with
+ * HMAC-SHA256. A valid token identifies the user without any database I/O.
+ *
+ * @author nramanathan
+ *
+ */
+public class SessionTokenSigner {
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int MAC_POOL_SIZE = 64;
+
+	private final SecretKeySpec key;
+	private final long ttlMillis;
+	// Mac instances are not thread safe. They are pooled rather than kept
+	// per thread, since with virtual threads every request is a new thread.
+	private final ArrayBlockingQueue<Mac> macs = new ArrayBlockingQueue<Mac>(
+			MAC_POOL_SIZE);
+
+	public SessionTokenSigner(final byte[] secret, final long ttlMillis) {
+		if (secret == null || secret.length < 16) {
+			throw new IllegalArgumentException(
+					"session secret must be at least 16 bytes");
+		}
+		this.key = new SecretKeySpec(secret, ALGORITHM);
+		this.ttlMillis = ttlMillis;
+		// fail at startup rather than on the first login
+		macs.offer(newMac());
+	}
+
+	/**
+	 * @return a random 32 byte secret, for when none has been configured
+	 */
+	public static byte[] randomSecret() {
+		byte secret[] = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		return secret;
+	}
+
+	/**
+	 * @param username
+	 * Create a signed token for the username that expires after the configured
+	 * time to live
+	 *
+	 * @return token to be used as the session cookie
+	 */
+	public String sign(final String username) {
+		String payload = Base64.encodeBase64URLSafeString(utf8(username))
+				+ "." + (System.currentTimeMillis() + ttlMillis);
+		return payload + "." + Base64.encodeBase64URLSafeString(hmac(payload));
+	}
+
+	/**
+	 * @param token
+	 * Check the signature and expiry of a token
+	 *
+	 * @return the username carried by the token, or null if it is malformed,
+	 *         forged or expired
+	 */
+	public String verify(final String token) {
+		long expiresAt = getExpiry(token);
+		if (expiresAt < 0 || expiresAt <= System.currentTimeMillis()) {
+			return null;
+		}
+
+		int signatureStart = token.lastIndexOf('.');
+		String payload = token.substring(0, signatureStart);
+		byte signature[] = Base64.decodeBase64(token
+				.substring(signatureStart + 1));
+		if (!MessageDigest.isEqual(signature, hmac(payload))) {
+			return null;
+		}
+
+		try {
+			return new String(Base64.decodeBase64(payload.substring(0,
+					payload.indexOf('.'))), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("UTF-8 unavailable?  Not a chance", e);
+		}
+	}
+
+	/**
+	 * @param token
+	 * Read the expiry of a token without verifying its signature
+	 *
+	 * @return expiry in milliseconds since the epoch, or -1 if the token is
+	 *         malformed
+	 */
+	public long getExpiry(final String token) {
+		if (token == null) {
+			return -1;
+		}
+		int first = token.indexOf('.');
+		int last = token.lastIndexOf('.');
+		if (first <= 0 || last <= first + 1 || last == token.length() - 1) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(token.substring(first + 1, last));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private byte[] hmac(final String payload) {
+		Mac mac = macs.poll();
+		if (mac == null) {
+			mac = newMac();
+		}
+		// doFinal leaves the Mac ready for the next payload
+		byte[] result = mac.doFinal(utf8(payload));
+		macs.offer(mac);
+		return result;
+	}
+
+	private Mac newMac() {
+		try {
+			Mac result = Mac.getInstance(ALGORITHM);
+			result.init(key);
+			return result;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(ALGORITHM + " is not available", e);
+		} catch (InvalidKeyException e) {
+			throw new RuntimeException("Invalid session secret", e);
+		}
+	}
+
+	private static byte[] utf8(final String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("UTF-8 unavailable?  Not a chance", e);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package course;
+
+import static com.mongodb.client.model.Filters.eq;
+
+import org.bson.Document;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+
+/**
+ * Hands out unique permalinks. Every permalink derived from a title has a
+ * counter in the slugs collection; allocating bumps it with a single upserting
+ * findOneAndUpdate, so concurrent posts with the same title each get their own
+ * number without reading the posts collection. The first post keeps the bare
+ * permalink, later ones get -2, -3 and so on. Titles never produce a '-', so a
+ * suffixed permalink cannot collide with another title's.
+ * 
+ * @author nramanathan
+ * 
+ */
+public class SlugAllocator {
+	private static final int DUPLICATE_KEY = 11000;
+
+	private static final Metrics.MongoOperation ALLOCATE = Metrics
+			.mongoOperation("SlugAllocator", "allocate");
+
+	private static final FindOneAndUpdateOptions INCREMENT_OPTIONS = new FindOneAndUpdateOptions()
+			.upsert(true).returnDocument(ReturnDocument.AFTER)
+			.projection(Projections.include("n"));
+
+	private final MongoCollection<Document> slugsCollection;
+
+	public SlugAllocator(final MongoDatabase blogDatabase) {
+		slugsCollection = blogDatabase.getCollection("slugs");
+	}
+
+	/**
+	 * @param base
+	 * Reserve the next permalink for base, the permalink derived from a title
+	 * 
+	 * @return base itself the first time, base-n after that
+	 */
+	public String allocate(String base) {
+		long start = ALLOCATE.start();
+		try {
+			return withSuffix(base, increment(base));
+		} finally {
+			ALLOCATE.stop(start);
+		}
+	}
+
+	/**
+	 * @param base
+	 * @param n
+	 * Build the n-th permalink for base
+	 * 
+	 * @return permalink
+	 */
+	static String withSuffix(String base, long n) {
+		return n <= 1 ? base : base + "-" + n;
+	}
+
+	private long increment(String base) {
+		Document update = new Document("$inc", new Document("n", 1L));
+		try {
+			return slugsCollection
+					.findOneAndUpdate(eq("_id", base), update, INCREMENT_OPTIONS)
+					.getLong("n");
+		} catch (MongoCommandException e) {
+			if (e.getCode() != DUPLICATE_KEY) {
+				throw e;
+			}
+			// two upserts raced to create the counter; it exists now, so the
+			// second attempt is a plain update
+			return slugsCollection
+					.findOneAndUpdate(eq("_id", base), update, INCREMENT_OPTIONS)
+					.getLong("n");
+		}
+	}
+}
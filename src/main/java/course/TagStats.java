@@ -0,0 +1,213 @@
+package course;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
+import static com.mongodb.client.model.Sorts.orderBy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.Document;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Number of posts filed under each tag, kept in the tag_stats collection as
+ * { _id: tag, count: n } and bumped by BlogPostDAO.addPost, so the tag cloud
+ * never has to look at the posts themselves.
+ *
+ * The counts are read as one list, most used first, and held in memory until
+ * a post is added here or {@link #MAX_AGE_MILLIS} has passed; the collection
+ * has one small document per tag, so reloading it is cheap, and the max age
+ * only bounds how stale the list gets when another instance adds posts. Each
+ * load gets a digest of the counts as its version, which instances that have
+ * loaded the same counts agree on.
+ *
+ * @author nramanathan
+ *
+ */
+public class TagStats {
+	private static final Logger logger = Logger.getLogger(TagStats.class
+			.getName());
+
+	public static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private static final Metrics.MongoOperation INCREMENT = Metrics
+			.mongoOperation("TagStats", "increment");
+	private static final Metrics.MongoOperation FIND_ALL = Metrics
+			.mongoOperation("TagStats", "findAll");
+
+	private final MongoCollection<Document> tagStatsCollection;
+	private final MongoCollection<Document> readTagStatsCollection;
+	private final MongoCollection<Document> postsCollection;
+	private volatile Counts counts;
+	// bumped on every increment, so a load that raced with one is not kept
+	private final AtomicLong generation = new AtomicLong();
+
+	// an immutable snapshot of the collection
+	private static final class Counts {
+		final List<Document> tags;
+		final String version;
+		final long loadedAt;
+
+		Counts(final List<Document> tags, final long loadedAt) {
+			this.tags = Collections.unmodifiableList(tags);
+			this.version = DigestUtils.sha1Hex(tags.toString());
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	/**
+	 * @param blogDatabase
+	 * @param readDatabase
+	 *            the same database with the read preference and read concern
+	 *            for loading the counts; increments use blogDatabase
+	 */
+	public TagStats(final MongoDatabase blogDatabase,
+			final MongoDatabase readDatabase) {
+		tagStatsCollection = blogDatabase.getCollection("tag_stats");
+		readTagStatsCollection = readDatabase.getCollection("tag_stats");
+		postsCollection = blogDatabase.getCollection("posts");
+	}
+
+	/**
+	 * Count the tags of the existing posts if tag_stats is empty, so the
+	 * collection can be introduced on a blog that already has posts. Called
+	 * once at startup; a post added by another instance while this runs may
+	 * be counted twice.
+	 */
+	public void backfill() {
+		if (tagStatsCollection.count() > 0) {
+			return;
+		}
+		List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>();
+		// the first group counts a tag listed twice on a post once, like
+		// increment does
+		for (Document tag : postsCollection.aggregate(Arrays.asList(
+				new Document("$unwind", "$tags"),
+				new Document("$group", new Document("_id", new Document(
+						"post", "$_id").append("tag", "$tags"))),
+				new Document("$group", new Document("_id", "$_id.tag").append(
+						"count", new Document("$sum", 1)))))) {
+			writes.add(new UpdateOneModel<Document>(eq("_id", tag.get("_id")),
+					new Document("$inc", new Document("count", tag
+							.getInteger("count"))), new UpdateOptions()
+							.upsert(true)));
+		}
+		if (!writes.isEmpty()) {
+			tagStatsCollection.bulkWrite(writes,
+					new BulkWriteOptions().ordered(false));
+		}
+		logger.info("Counted " + writes.size() + " tags into tag_stats");
+		generation.incrementAndGet();
+		counts = null;
+	}
+
+	/**
+	 * @param tags
+	 * Count a new post under each of its tags, in one round trip
+	 */
+	public void increment(final List<?> tags) {
+		// a tag listed twice is still one post
+		Set<Object> distinct = new LinkedHashSet<Object>(tags);
+		if (distinct.isEmpty()) {
+			return;
+		}
+		List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>();
+		for (Object tag : distinct) {
+			writes.add(incrementOne(tag));
+		}
+
+		long start = INCREMENT.start();
+		try {
+			tagStatsCollection.bulkWrite(writes,
+					new BulkWriteOptions().ordered(false));
+		} catch (MongoBulkWriteException e) {
+			if (e.getWriteErrors().isEmpty()) {
+				throw e;
+			}
+			// upserts that raced with another post creating the same tag;
+			// the documents exist now, so retrying just increments them
+			List<WriteModel<Document>> retries = new ArrayList<WriteModel<Document>>();
+			for (BulkWriteError error : e.getWriteErrors()) {
+				if (!error.getCategory().equals(ErrorCategory.DUPLICATE_KEY)) {
+					throw e;
+				}
+				retries.add(writes.get(error.getIndex()));
+			}
+			tagStatsCollection.bulkWrite(retries,
+					new BulkWriteOptions().ordered(false));
+		} finally {
+			INCREMENT.stop(start);
+		}
+		generation.incrementAndGet();
+		counts = null;
+	}
+
+	private static WriteModel<Document> incrementOne(final Object tag) {
+		return new UpdateOneModel<Document>(eq("_id", tag), new Document(
+				"$inc", new Document("count", 1)),
+				new UpdateOptions().upsert(true));
+	}
+
+	/**
+	 * @param limit
+	 * Obtain the most used tags
+	 *
+	 * @return up to limit Documents with tag and count, most used first
+	 */
+	public List<Document> findPopular(final int limit) {
+		List<Document> tags = load().tags;
+		return tags.size() <= limit ? tags : tags.subList(0, limit);
+	}
+
+	/**
+	 * @return digest of the counts findPopular returns from
+	 */
+	public String getVersion() {
+		return load().version;
+	}
+
+	private Counts load() {
+		Counts current = counts;
+		long now = System.currentTimeMillis();
+		if (current != null && now - current.loadedAt < MAX_AGE_MILLIS) {
+			return current;
+		}
+
+		long loadGeneration = generation.get();
+		List<Document> tags = new ArrayList<Document>();
+		long start = FIND_ALL.start();
+		try {
+			for (Document stat : readTagStatsCollection.find().sort(
+					orderBy(descending("count"), ascending("_id")))) {
+				tags.add(new Document("tag", stat.get("_id")).append("count",
+						stat.getInteger("count")));
+			}
+		} finally {
+			FIND_ALL.stop(start);
+		}
+		current = new Counts(tags, now);
+		if (generation.get() == loadGeneration) {
+			counts = current;
+		}
+		return current;
+	}
+}
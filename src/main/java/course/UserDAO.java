@@ -4,43 +4,53 @@ import com.mongodb.ErrorCategory;
 import com.mongodb.MongoWriteException;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoCollection;
-import sun.misc.BASE64Encoder;
 
 import org.bson.Document;
 
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
 
 /**
  * @author nramanathan
- * 
+ *
  */
-@SuppressWarnings("restriction")
-public class UserDAO {
+public class UserDAO implements UserStore {
+	private static final Logger logger = Logger.getLogger(UserDAO.class
+			.getName());
+	private static final Metrics.MongoOperation INSERT_USER = Metrics
+			.mongoOperation("UserDAO", "addUser");
+	private static final Metrics.MongoOperation FIND_USER = Metrics
+			.mongoOperation("UserDAO", "validateLogin");
+	private static final Metrics.MongoOperation UPDATE_PASSWORD = Metrics
+			.mongoOperation("UserDAO", "updatePasswordHash");
+
 	private final MongoCollection<Document> usersCollection;
-	private final ThreadLocal<Random> random = new ThreadLocal<Random>();
+	private final PasswordHashing passwordHashing;
 
 	public UserDAO(final MongoDatabase blogDatabase) {
+		this(blogDatabase, new PasswordHashing());
+	}
+
+	public UserDAO(final MongoDatabase blogDatabase,
+			final PasswordHashing passwordHashing) {
 		usersCollection = blogDatabase.getCollection("users");
+		this.passwordHashing = passwordHashing;
 	}
 
-	
 	/**
 	 * @param username
 	 * @param password
 	 * @param email
 	 * Validates that username is unique and insert into db
-	 * 
+	 *
 	 * @return status if the user is added or not
 	 */
 	public boolean addUser(String username, String password, String email) {
 
-		String passwordHash = makePasswordHash(password,
-				Integer.toString(getRandom().nextInt()));
+		String passwordHash = passwordHashing.hash(password);
 
 		Document user = new Document();
 
@@ -51,74 +61,70 @@ public class UserDAO {
 			user.append("email", email);
 		}
 
+		long start = INSERT_USER.start();
 		try {
 			usersCollection.insertOne(user);
 			return true;
 		} catch (MongoWriteException e) {
 			if (e.getError().getCategory().equals(ErrorCategory.DUPLICATE_KEY)) {
-				System.out.println("Username already in use: " + username);
+				logger.log(Level.INFO, "Username already in use: {0}", username);
 				return false;
 			}
 			throw e;
+		} finally {
+			INSERT_USER.stop(start);
 		}
 	}
 
 	/**
 	 * @param username
 	 * @param password
-	 * Validates the Login
-	 * 
+	 * Validates the Login. A hash from an older scheme or with a lower cost
+	 * than configured is replaced once the password has been verified.
+	 *
 	 * @return User Record or Document
 	 */
 	public Document validateLogin(String username, String password) {
 		Document user;
 
-		user = usersCollection.find(eq("_id", username)).first();
+		long start = FIND_USER.start();
+		try {
+			user = usersCollection.find(eq("_id", username)).first();
+		} finally {
+			FIND_USER.stop(start);
+		}
 
 		if (user == null) {
+			// as slow as a wrong password
+			passwordHashing.checkMissingUser(password);
 			return null;
 		}
 
-		String hashedAndSalted = user.get("password").toString();
+		String storedHash = user.get("password").toString();
 
-		String salt = hashedAndSalted.split(",")[1];
+		// null on mismatch, otherwise the hash that should be stored
+		String currentHash = passwordHashing.check(password, storedHash);
 
-		if (!hashedAndSalted.equals(makePasswordHash(password, salt))) {
-			System.out.println("Submitted password is not a match");
+		if (currentHash == null) {
+			logger.log(Level.INFO, "Submitted password is not a match for {0}",
+					username);
 			return null;
 		}
 
-		return user;
-	}
-
-	/**
-	 * @param password
-	 * @param salt
-	 * 
-	 * @return Encoded Password String
-	 */
-	private String makePasswordHash(String password, String salt) {
-		try {
-			String saltedAndHashed = password + "," + salt;
-			MessageDigest digest = MessageDigest.getInstance("MD5");
-			digest.update(saltedAndHashed.getBytes());
-			BASE64Encoder encoder = new BASE64Encoder();
-			byte hashedBytes[] = (new String(digest.digest(), "UTF-8"))
-					.getBytes();
-			return encoder.encode(hashedBytes) + "," + salt;
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("MD5 is not available", e);
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException("UTF-8 unavailable?  Not a chance", e);
+		if (!currentHash.equals(storedHash)) {
+			// only if nobody changed it in the meantime
+			start = UPDATE_PASSWORD.start();
+			try {
+				usersCollection.updateOne(
+						and(eq("_id", username), eq("password", storedHash)),
+						new Document("$set", new Document("password",
+								currentHash)));
+			} finally {
+				UPDATE_PASSWORD.stop(start);
+			}
+			user.put("password", currentHash);
 		}
-	}
 
-	private Random getRandom() {
-		Random result = random.get();
-		if (result == null) {
-			result = new Random();
-			random.set(result);
-		}
-		return result;
+		return user;
 	}
 }
@@ -0,0 +1,31 @@
+package course;
+
+import org.bson.Document;
+
+/**
+ * Storage for user accounts.
+ * 
+ * @author nramanathan
+ * 
+ */
+public interface UserStore {
+
+	/**
+	 * @param username
+	 * @param password
+	 * @param email
+	 * Validates that username is unique and stores the user
+	 * 
+	 * @return false if the username is already taken
+	 */
+	boolean addUser(String username, String password, String email);
+
+	/**
+	 * @param username
+	 * @param password
+	 * Validates the Login
+	 * 
+	 * @return User Record or Document, null if the login is invalid
+	 */
+	Document validateLogin(String username, String password);
+}
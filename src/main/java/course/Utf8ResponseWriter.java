@@ -0,0 +1,242 @@
+package course;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Buffered UTF-8 writer that encodes straight into a servlet response's
+ * output stream, optionally gzip compressed. Instances, along with their char
+ * and byte buffers and their Deflater, are pooled and reused across requests,
+ * so streaming a page does not allocate anything proportional to its size.
+ *
+ * Not thread safe; a writer belongs to one request between
+ * {@link #acquire(HttpServletResponse)} and {@link #release()}.
+ *
+ * @author nramanathan
+ *
+ */
+public class Utf8ResponseWriter extends Writer {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 8192;
+	private static final int POOL_SIZE = 256;
+
+	private static final ArrayBlockingQueue<Utf8ResponseWriter> POOL = new ArrayBlockingQueue<Utf8ResponseWriter>(
+			POOL_SIZE);
+
+	// magic, deflate, no flags, no mtime, no extra flags, unknown OS
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b,
+			Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final CharsetEncoder encoder = UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+	private final ByteBuffer bytes = ByteBuffer
+			.allocate((int) (BUFFER_SIZE * encoder.maxBytesPerChar()));
+
+	// raw deflate; the gzip header and trailer are written here
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION,
+			true);
+	private final CRC32 crc = new CRC32();
+	private final byte[] deflated = new byte[BUFFER_SIZE];
+
+	private HttpServletResponse response;
+	private boolean gzip;
+	// fetched on the first flush, so a route that only redirects never
+	// touches it, nor gets a Content-Encoding
+	private OutputStream out;
+
+	private Utf8ResponseWriter() {
+	}
+
+	/**
+	 * @param response
+	 * Take a writer from the pool, or create one if the pool is empty
+	 *
+	 * @return writer bound to the response
+	 */
+	public static Utf8ResponseWriter acquire(final HttpServletResponse response) {
+		return acquire(response, false);
+	}
+
+	/**
+	 * @param response
+	 * @param gzip
+	 *            true to compress the page, which the client must accept
+	 * Take a writer from the pool, or create one if the pool is empty
+	 *
+	 * @return writer bound to the response
+	 */
+	public static Utf8ResponseWriter acquire(final HttpServletResponse response,
+			final boolean gzip) {
+		Utf8ResponseWriter writer = POOL.poll();
+		if (writer == null) {
+			writer = new Utf8ResponseWriter();
+		}
+		writer.response = response;
+		writer.gzip = gzip;
+		return writer;
+	}
+
+	/**
+	 * Unbind the writer from its response and return it to the pool. Anything
+	 * not yet written by {@link #finish()} is dropped.
+	 */
+	public void release() {
+		discard();
+		deflater.reset();
+		crc.reset();
+		response = null;
+		gzip = false;
+		out = null;
+		POOL.offer(this);
+	}
+
+	/**
+	 * Drop buffered output that has not reached the response yet, e.g.
+	 * because rendering failed halfway.
+	 */
+	public void discard() {
+		chars.clear();
+		bytes.clear();
+		encoder.reset();
+	}
+
+	/**
+	 * Encode whatever is left and push it to the response. Does not close the
+	 * servlet output stream; the container does that.
+	 */
+	public void finish() throws IOException {
+		encodeChars(true);
+		while (encoder.flush(bytes).isOverflow()) {
+			drainBytes();
+		}
+		drainBytes();
+		if (out == null) {
+			return;
+		}
+		if (gzip) {
+			deflater.finish();
+			while (!deflater.finished()) {
+				out.write(deflated, 0, deflater.deflate(deflated));
+			}
+			writeIntLE((int) crc.getValue());
+			writeIntLE((int) deflater.getBytesRead());
+		}
+		out.flush();
+	}
+
+	@Override
+	public void write(final int c) throws IOException {
+		if (!chars.hasRemaining()) {
+			encodeChars(false);
+		}
+		chars.put((char) c);
+	}
+
+	@Override
+	public void write(final char[] cbuf, int off, int len) throws IOException {
+		while (len > 0) {
+			if (!chars.hasRemaining()) {
+				encodeChars(false);
+			}
+			int n = Math.min(len, chars.remaining());
+			chars.put(cbuf, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void write(final String str, int off, int len) throws IOException {
+		while (len > 0) {
+			if (!chars.hasRemaining()) {
+				encodeChars(false);
+			}
+			int n = Math.min(len, chars.remaining());
+			chars.put(str, off, off + n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		encodeChars(false);
+		drainBytes();
+		if (out != null) {
+			if (gzip) {
+				// so what was written so far can be decompressed; a full
+				// buffer means there is more
+				int n;
+				do {
+					n = deflater.deflate(deflated, 0, deflated.length,
+							Deflater.SYNC_FLUSH);
+					out.write(deflated, 0, n);
+				} while (n == deflated.length);
+			}
+			out.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+	}
+
+	// a dangling high surrogate at the end of the buffer is kept for the
+	// next round
+	private void encodeChars(final boolean endOfInput) throws IOException {
+		chars.flip();
+		CoderResult result = encoder.encode(chars, bytes, endOfInput);
+		while (result.isOverflow()) {
+			drainBytes();
+			result = encoder.encode(chars, bytes, endOfInput);
+		}
+		chars.compact();
+	}
+
+	private void drainBytes() throws IOException {
+		if (bytes.position() == 0) {
+			return;
+		}
+		if (out == null) {
+			if (gzip) {
+				response.setHeader("Content-Encoding", "gzip");
+			}
+			out = response.getOutputStream();
+			if (gzip) {
+				out.write(GZIP_HEADER);
+			}
+		}
+		if (gzip) {
+			crc.update(bytes.array(), 0, bytes.position());
+			deflater.setInput(bytes.array(), 0, bytes.position());
+			while (!deflater.needsInput()) {
+				out.write(deflated, 0, deflater.deflate(deflated));
+			}
+		} else {
+			out.write(bytes.array(), 0, bytes.position());
+		}
+		bytes.clear();
+	}
+
+	private void writeIntLE(final int value) throws IOException {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+}
@@ -0,0 +1,108 @@
+package course;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Jetty thread pool for blog.server.threads=virtual that handles each request
+ * on a new virtual thread. A request that blocks on Mongo then parks its
+ * virtual thread instead of holding one of a fixed number of platform
+ * threads, so the number of requests in flight is bounded by the Mongo
+ * connection pool rather than by the size of this pool.
+ *
+ * Jetty's selector loops have to stay on platform threads: Selector.select
+ * pins the carrier thread on Java 21, and with as many carriers as cores a
+ * pinned selector can starve every request. Jetty starts those loops from
+ * outside the pool when the server starts, while the work it reads off a
+ * connection is submitted from the selector's own thread or from a request
+ * that is already running here. So tasks submitted by one of the pool's
+ * threads run on virtual threads, and everything else gets a platform thread.
+ *
+ * @author nramanathan
+ *
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+	private static final long STOP_TIMEOUT_SECONDS = 30;
+
+	private final ExecutorService virtualThreads;
+	private final ExecutorService platformThreads;
+	private final AtomicInteger running = new AtomicInteger();
+
+	// marks the platform threads started by this pool
+	private static final class LoopThread extends Thread {
+		LoopThread(final Runnable task, final String name) {
+			super(task, name);
+		}
+	}
+
+	public VirtualThreadPool(final String name) {
+		virtualThreads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+				.name(name + "-", 0).factory());
+		platformThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger next = new AtomicInteger();
+
+			public Thread newThread(final Runnable task) {
+				return new LoopThread(task, name + "-loop-"
+						+ next.getAndIncrement());
+			}
+		});
+	}
+
+	public void execute(final Runnable task) {
+		Thread current = Thread.currentThread();
+		ExecutorService executor = current.isVirtual()
+				|| current instanceof LoopThread ? virtualThreads
+				: platformThreads;
+		executor.execute(new Runnable() {
+			public void run() {
+				running.incrementAndGet();
+				try {
+					task.run();
+				} finally {
+					running.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	public void join() throws InterruptedException {
+		virtualThreads.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		platformThreads.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return number of tasks running, Jetty's own loops included
+	 */
+	public int getThreads() {
+		return running.get();
+	}
+
+	// a thread is started per request, so none are ever waiting for work
+	public int getIdleThreads() {
+		return 0;
+	}
+
+	public boolean isLowOnThreads() {
+		return false;
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		virtualThreads.shutdown();
+		platformThreads.shutdown();
+		if (!virtualThreads.awaitTermination(STOP_TIMEOUT_SECONDS,
+				TimeUnit.SECONDS)) {
+			virtualThreads.shutdownNow();
+		}
+		if (!platformThreads.awaitTermination(STOP_TIMEOUT_SECONDS,
+				TimeUnit.SECONDS)) {
+			platformThreads.shutdownNow();
+		}
+	}
+}
@@ -12,14 +12,26 @@
 	<p></#if>
 	<h1>My Blog</h1>
 
+	<form action="/search" method="GET">
+		<input type="text" name="q"> <input type="submit" value="Search">
+	</form>
+
+	<#if tag_cloud?? && tag_cloud?size != 0>
+	<p>
+		<#list tag_cloud as tag>
+		<a href="/tag/${tag["tag"]}" style="font-size: ${tag["size"]?c}%">${tag["tag"]}</a>
+		</#list>
+		<a href="/tags">All tags</a>
+	</p>
+	</#if>
+
 	<#list myposts as post>
 	<h2>
 		<a href="/post/${post["permalink"]}">${post["title"]}</a>
 	</h2>
 	Posted ${post["date"]?datetime}
 	<i>By ${post["author"]}</i>
-	<br> Comments: <#if post["comments"]??> <#assign numComments =
-	post["comments"]?size> <#else> <#assign numComments = 0> </#if>
+	<br> Comments: <#assign numComments = post["num_comments"]!0>
 
 	<a href="/post/${post["permalink"]}">${numComments}</a>
 	<hr>
@@ -29,6 +41,12 @@
 		<em>Filed Under</em>: <#if post["tags"]??> <#list post["tags"] as tag>
 		<a href="/tag/${tag}">${tag}</a> </#list> </#if>
 	<p></#list>
+	<#if first_page??>
+	<a href="${first_page}">Newest posts</a>
+	</#if>
+	<#if next_page??>
+	<a href="${next_page}">Older posts</a>
+	</#if>
 </body>
 </html>
 
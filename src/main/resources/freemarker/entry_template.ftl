@@ -27,14 +27,19 @@
 		<#list 0 .. (numComments -1) as i>
 		<form action="/like" method="POST">
 			<input type="hidden" name="permalink" , value="${post["permalink"]}">
-			<input type="hidden" name="comment_ordinal" , value="${i}">
+			<input type="hidden" name="comment_ordinal" , value="${(post["comments"][i]["_id"]!((comment_offset!0) + i))?c}">
 			Author: ${post["comments"][i]["author"]}<br> Likes:
-			${post["comments"][i]["num_likes"]} <input type="submit" value="Like">
+			${post["comments"][i]["num_likes"]!0} <input type="submit" value="Like">
 		</form>
 		<br> ${post["comments"][i]["body"]}
 		<br>
 		<hr>
 		</#list> </#if>
+		<#if has_previous_comments!false>
+		<a href="/post/${post["permalink"]}?cpage=${(comment_page - 1)?c}">Previous comments</a>
+		</#if> <#if has_next_comments!false>
+		<a href="/post/${post["permalink"]}?cpage=${(comment_page + 1)?c}">More comments</a>
+		</#if>
 		<h3>Add a comment</h3>
 
 		<form action="/newcomment" method="POST">
@@ -0,0 +1,33 @@
+<!DOCTYPE html>
+<html>
+<head>
+<title>Search</title>
+</head>
+<body>
+
+	<#if username??> Welcome ${username}
+	<a href="/logout">Logout</a> |
+	<a href="/newpost">New Post</a>
+
+	<p></#if>
+	<h1><a href="/">My Blog</a></h1>
+
+	<form action="/search" method="GET">
+		<input type="text" name="q" value="${q}"> <input type="submit"
+			value="Search">
+	</form>
+
+	<#if q != "">
+	<#if results?size == 0>
+	<p>No posts match ${q}</p>
+	</#if>
+	<#list results as post>
+	<h2>
+		<a href="/post/${post["permalink"]}">${post["title"]}</a>
+	</h2>
+	Posted ${post["date"]?datetime}
+	<i>By ${post["author"]}</i>
+	<p></#list>
+	</#if>
+</body>
+</html>
@@ -0,0 +1,22 @@
+<!DOCTYPE html>
+<html>
+<head>
+<title>Tags</title>
+</head>
+<body>
+
+	<#if username??> Welcome ${username}
+	<a href="/logout">Logout</a> |
+	<a href="/newpost">New Post</a>
+
+	<p></#if>
+	<h1><a href="/">My Blog</a></h1>
+
+	<h2>Tags</h2>
+	<ul>
+		<#list tags as tag>
+		<li><a href="/tag/${tag["tag"]}">${tag["tag"]}</a> (${tag["count"]?c})</li>
+		</#list>
+	</ul>
+</body>
+</html>
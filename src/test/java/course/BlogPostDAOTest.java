@@ -0,0 +1,217 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Walking a listing page by page with BlogPostDAO's keyset cursor shows every
+ * post once, in date and then _id order, even when many posts share a
+ * millisecond or new ones arrive during the walk.
+ *
+ * @author nramanathan
+ *
+ */
+public class BlogPostDAOTest {
+	private static final long BASE_DATE = 1500000000000L;
+
+	@Rule
+	public final InProcessMongo mongo = new InProcessMongo();
+
+	private MongoDatabase blogDatabase;
+	private BlogPostDAO dao;
+
+	@Before
+	public void setUp() {
+		blogDatabase = mongo.getDatabase();
+		dao = new BlogPostDAO(blogDatabase, new ListingCache(), false);
+		dao.ensureIndexes();
+	}
+
+	// posts three to a millisecond, so most page boundaries fall on a tie;
+	// a higher first number makes newer posts
+	private List<Document> insertPosts(final int first, final int count,
+			final String tag) {
+		List<Document> posts = new ArrayList<Document>();
+		for (int i = first; i < first + count; i++) {
+			Date date = new Date(BASE_DATE + i / 3);
+			posts.add(new Document("_id", new ObjectId())
+					.append("title", "Post " + i).append("author", "author")
+					.append("body", "Body").append("permalink", "post_" + i)
+					.append("tags", Arrays.asList(tag, "post" + i % 2))
+					.append("comments", new ArrayList<Document>())
+					.append("num_comments", 0).append("date", date));
+		}
+		blogDatabase.getCollection("posts").insertMany(posts);
+		return posts;
+	}
+
+	private static List<ObjectId> newestFirst(final List<Document> posts) {
+		List<Document> sorted = new ArrayList<Document>(posts);
+		Collections.sort(sorted, new Comparator<Document>() {
+			public int compare(Document a, Document b) {
+				int byDate = b.getDate("date").compareTo(a.getDate("date"));
+				return byDate != 0 ? byDate : b.getObjectId("_id").compareTo(
+						a.getObjectId("_id"));
+			}
+		});
+		return ids(sorted);
+	}
+
+	private static List<ObjectId> ids(final List<Document> posts) {
+		List<ObjectId> ids = new ArrayList<ObjectId>();
+		for (Document post : posts) {
+			ids.add(post.getObjectId("_id"));
+		}
+		return ids;
+	}
+
+	private List<ObjectId> walkHome(final int pageSize) {
+		List<ObjectId> shown = new ArrayList<ObjectId>();
+		PageCursor cursor = null;
+		do {
+			ListingCache.Listing page = dao.findListingByDateDescending(
+					pageSize, cursor);
+			shown.addAll(ids(page.getPosts()));
+			// through the token, as the next request would
+			cursor = page.getNextCursor() == null ? null : PageCursor
+					.parse(page.getNextCursor().toString());
+		} while (cursor != null);
+		return shown;
+	}
+
+	@Test
+	public void pagesCoverEveryPostOnceAcrossTies() {
+		List<Document> posts = insertPosts(0, 23, "java");
+
+		for (int pageSize : new int[] { 1, 2, 3, 4, 7, 23, 50 }) {
+			assertEquals("page size " + pageSize, newestFirst(posts),
+					walkHome(pageSize));
+		}
+	}
+
+	@Test
+	public void lastPageHasNoCursor() {
+		insertPosts(0, 6, "java");
+
+		ListingCache.Listing first = dao.findListingByDateDescending(3, null);
+		ListingCache.Listing second = dao.findListingByDateDescending(3,
+				first.getNextCursor());
+		assertEquals(3, second.getPosts().size());
+		assertNull(second.getNextCursor());
+	}
+
+	@Test
+	public void newerPostsDoNotShiftLaterPages() {
+		List<Document> posts = insertPosts(0, 9, "java");
+		List<ObjectId> expected = newestFirst(posts);
+
+		ListingCache.Listing first = dao.findListingByDateDescending(4, null);
+		insertPosts(9, 5, "java");
+		ListingCache.Listing second = dao.findListingByDateDescending(4,
+				first.getNextCursor());
+		assertEquals(expected.subList(4, 8), ids(second.getPosts()));
+	}
+
+	@Test
+	public void tagPagesCoverEveryTaggedPostOnce() {
+		insertPosts(0, 2 * BlogPostDAO.PAGE_SIZE + 5, "java");
+		List<Document> tagged = new ArrayList<Document>();
+		for (Document post : blogDatabase.getCollection("posts").find(
+				new Document("tags", "post1"))) {
+			tagged.add(post);
+		}
+
+		List<ObjectId> shown = new ArrayList<ObjectId>();
+		PageCursor cursor = null;
+		do {
+			ListingCache.Listing page = dao.findListingByTagDateDescending(
+					"post1", cursor);
+			shown.addAll(ids(page.getPosts()));
+			cursor = page.getNextCursor();
+		} while (cursor != null);
+		assertEquals(newestFirst(tagged), shown);
+	}
+
+	@Test
+	public void missingCommentCountsAreBackfilledOnce() {
+		List<Document> posts = insertPosts(0, 3, "java");
+		blogDatabase.getCollection("posts").updateMany(new Document(),
+				new Document("$unset", new Document("num_comments", ""))
+						.append("$set", new Document("comments", Arrays
+								.asList(new Document("body", "Comment")))));
+		// caches the listing without the counts
+		dao.findListingByDateDescending(10, null);
+
+		assertEquals(3, dao.backfillMissingCommentCounts());
+		assertEquals(0, dao.backfillMissingCommentCounts());
+		List<Document> listed = dao.findListingByDateDescending(10, null)
+				.getPosts();
+		assertEquals(posts.size(), listed.size());
+		for (Document post : listed) {
+			assertEquals(Integer.valueOf(1), post.getInteger("num_comments"));
+		}
+	}
+
+	@Test
+	public void rebuildFindsPostsWrittenElsewhere() {
+		dao.buildSearchIndex();
+		dao.addPost("Local post", "Written here", Arrays.asList("java"),
+				"author");
+		// as another instance would write it
+		insertPosts(0, 1, "java");
+		assertEquals(0, dao.search("body", 10).size());
+
+		dao.buildSearchIndex();
+		assertEquals(1, dao.search("body", 10).size());
+		assertEquals(1, dao.search("written", 10).size());
+	}
+
+	@Test
+	public void listingVersionSeesWritesFromOtherInstances() {
+		insertPosts(0, 3, "java");
+		String version = dao.findListingVersion(null, null).getString(
+				"version");
+		List<Document> cached = dao.findListingByDateDescending(
+				BlogPostDAO.PAGE_SIZE, null).getPosts();
+		assertEquals(version, dao.findListingVersion(null, null).getString(
+				"version"));
+		assertEquals(version, dao.findListingVersion("java", null)
+				.getString("version"));
+
+		// a comment counted by another instance
+		blogDatabase.getCollection("posts").updateOne(
+				new Document("permalink", "post_1"),
+				BlogPostDAO.versioned(new Document("$inc", new Document(
+						"num_comments", 1))));
+		Document changed = dao.findListingVersion(null, null);
+		assertFalse(version.equals(changed.getString("version")));
+		assertFalse(version.equals(dao.findListingVersion("java", null)
+				.getString("version")));
+		assertNotNull(changed.getDate("last_modified"));
+
+		List<Document> refilled = dao.findListingByDateDescending(
+				BlogPostDAO.PAGE_SIZE, null).getPosts();
+		assertEquals(cached.size(), refilled.size());
+		for (Document post : refilled) {
+			assertEquals("post_1".equals(post.getString("permalink")) ? 1 : 0,
+					post.getInteger("num_comments").intValue());
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Comment ids and counts of bucketed posts stay consistent when a bucket
+ * write fails, and the migration switches posts over by their version.
+ *
+ * @author nramanathan
+ *
+ */
+public class CommentBucketsTest {
+	@Rule
+	public final InProcessMongo mongo = new InProcessMongo();
+
+	private MongoCollection<Document> postsCollection;
+	private MongoCollection<Document> commentsCollection;
+	private CommentBuckets commentBuckets;
+
+	@Before
+	public void setUp() {
+		MongoDatabase blogDatabase = mongo.getDatabase();
+		postsCollection = blogDatabase.getCollection("posts");
+		commentsCollection = blogDatabase.getCollection("comments");
+		commentBuckets = new CommentBuckets(blogDatabase);
+		commentBuckets.ensureIndexes();
+	}
+
+	private Document post(final String permalink) {
+		return postsCollection.find(new Document("permalink", permalink))
+				.first();
+	}
+
+	@Test
+	public void failedBucketWriteIsNotCounted() {
+		postsCollection.insertOne(new Document("permalink", "post").append(
+				CommentBuckets.LAYOUT_FIELD, CommentBuckets.BUCKETED).append(
+				"next_comment_id", 0L).append("num_comments", 0));
+		assertTrue(commentBuckets.addComment("post", new Document("body",
+				"first")));
+		// $push fails on a bucket whose comments are not an array
+		commentsCollection.updateOne(new Document("permalink", "post"),
+				new Document("$set", new Document("comments", "none")));
+		try {
+			commentBuckets.addComment("post", new Document("body", "lost"));
+			fail("bucket write should fail");
+		} catch (MongoWriteException expected) {
+		}
+
+		Document post = post("post");
+		assertEquals(1L, post.get("next_comment_id"));
+		assertEquals(1, post.get("num_comments"));
+	}
+
+	@Test
+	public void migrationSwitchesPostsWithAndWithoutVersion() {
+		postsCollection.insertOne(new Document("permalink", "old").append(
+				"comments", Arrays.asList(new Document("body", "a"))));
+		postsCollection.insertOne(new Document("permalink", "versioned")
+				.append("version", 3L).append(
+						"comments",
+						Arrays.asList(new Document("body", "a"), new Document(
+								"body", "b"))));
+
+		assertEquals(2, commentBuckets.migrateAll());
+
+		assertEquals(CommentBuckets.BUCKETED,
+				post("old").get(CommentBuckets.LAYOUT_FIELD));
+		Document versioned = post("versioned");
+		assertEquals(2L, versioned.get("next_comment_id"));
+		assertEquals(4L, versioned.get("version"));
+		assertEquals("b", commentBuckets.findComments("versioned", 0, 10)
+				.get(1).getString("body"));
+		// nothing left to move
+		assertEquals(0, commentBuckets.migrateAll());
+	}
+}
@@ -0,0 +1,108 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Test;
+
+/**
+ * InMemoryBlogPostStore behaves like BlogPostDAO where the pages can tell.
+ *
+ * @author nramanathan
+ *
+ */
+public class InMemoryBlogPostStoreTest {
+	private final InMemoryBlogPostStore store = new InMemoryBlogPostStore();
+
+	@Test
+	public void popularTagsVersionChangesWithTheCounts() {
+		store.addPost("First", "Body", Arrays.asList("java", "mongo"), "author");
+		String version = store.findPopularTagsVersion();
+		assertEquals(version, store.findPopularTagsVersion());
+
+		store.addPost("Second", "Body", Arrays.asList("java"), "author");
+		assertNotEquals(version, store.findPopularTagsVersion());
+		List<Document> popular = store.findPopularTags(1);
+		assertEquals(1, popular.size());
+		assertEquals("java", popular.get(0).getString("tag"));
+		assertEquals(Integer.valueOf(2), popular.get(0).getInteger("count"));
+	}
+
+	@Test
+	public void pageVersionFollowsTheCommentsOfThePage() {
+		String permalink = store.addPost("Paged", "Body", Arrays.asList("java"),
+				"author");
+		for (int i = 0; i < 4; i++) {
+			store.addPostComment("commenter", "", "Comment " + i, permalink);
+		}
+		Object firstPage = store.findPostVersion(permalink, 0, 2).get("version");
+		Object secondPage = store.findPostVersion(permalink, 2, 2).get(
+				"version");
+		assertEquals(firstPage, store.findPostByPermalink(permalink, 0, 2).get(
+				"page_version"));
+
+		store.likePost(permalink, 3, "reader");
+		assertEquals(firstPage, store.findPostVersion(permalink, 0, 2).get(
+				"version"));
+		assertNotEquals(secondPage,
+				store.findPostVersion(permalink, 2, 2).get("version"));
+		assertEquals(store.findPostVersion(permalink, 2, 2).get("version"),
+				store.findPostByPermalink(permalink, 2, 2).get("page_version"));
+
+		store.addPostComment("commenter", "", "Comment 4", permalink);
+		assertNotEquals(firstPage, store.findPostVersion(permalink, 0, 2).get(
+				"version"));
+	}
+
+	@Test
+	public void listingsLeaveTheCommentsOut() {
+		String permalink = store.addPost("Listed", "Body", Arrays.asList("java"),
+				"author");
+		store.addPostComment("commenter", "", "Comment", permalink);
+		store.likePost(permalink, 0, "reader");
+
+		Document listed = store.findByDateDescending(10).get(0);
+		assertEquals(null, listed.get("comments"));
+		assertEquals(Integer.valueOf(1), listed.getInteger("num_comments"));
+	}
+
+	@Test
+	public void pagesCoverEveryPostOnceInCursorOrder() {
+		// added within a few milliseconds, so many share a date
+		for (int i = 0; i < 23; i++) {
+			store.addPost("Post " + i, "Body", Arrays.asList("java"), "author");
+		}
+
+		List<Document> shown = new ArrayList<Document>();
+		PageCursor cursor = null;
+		do {
+			ListingCache.Listing page = store.findListingByDateDescending(4,
+					cursor);
+			shown.addAll(page.getPosts());
+			cursor = page.getNextCursor() == null ? null : PageCursor
+					.parse(page.getNextCursor().toString());
+		} while (cursor != null);
+
+		assertEquals(23, shown.size());
+		HashSet<Object> ids = new HashSet<Object>();
+		for (int i = 0; i < shown.size(); i++) {
+			assertTrue(ids.add(shown.get(i).get("_id")));
+			if (i > 0) {
+				Document newer = shown.get(i - 1);
+				Document older = shown.get(i);
+				int byDate = newer.getDate("date").compareTo(
+						older.getDate("date"));
+				assertTrue(byDate > 0 || byDate == 0
+						&& newer.getObjectId("_id").compareTo(
+								older.getObjectId("_id")) > 0);
+			}
+		}
+	}
+}
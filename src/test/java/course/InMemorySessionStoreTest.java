@@ -0,0 +1,40 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Sessions in InMemorySessionStore expire like those in the sessions
+ * collection.
+ *
+ * @author nramanathan
+ *
+ */
+public class InMemorySessionStoreTest {
+
+	@Test
+	public void sessionLastsUntilItExpires() throws InterruptedException {
+		InMemorySessionStore store = new InMemorySessionStore(200);
+		String sessionId = store.startSession("alice");
+		assertEquals("alice", store.findUserNameBySessionId(sessionId));
+
+		Thread.sleep(250);
+		assertNull(store.findUserNameBySessionId(sessionId));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void expiredSessionsAreSweptWithoutBeingLookedUp()
+			throws InterruptedException {
+		InMemorySessionStore store = new InMemorySessionStore(50, 0);
+		for (int i = 0; i < 10; i++) {
+			store.startSession("user" + i);
+		}
+		Thread.sleep(100);
+		String late = store.startSession("late");
+		assertEquals(1, store.size());
+		assertEquals("late", store.findUserNameBySessionId(late));
+	}
+}
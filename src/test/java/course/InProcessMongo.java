@@ -0,0 +1,52 @@
+package course;
+
+import java.net.InetSocketAddress;
+
+import org.junit.rules.ExternalResource;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * An in-memory Mongo server and a client connected to it, started before
+ * each test and shut down after it, so the DAO tests run without a database:
+ *
+ * <pre>
+ * &#064;Rule
+ * public final InProcessMongo mongo = new InProcessMongo();
+ * </pre>
+ *
+ * The server implements enough of the query language for the DAOs, with a
+ * few gaps, e.g. a $slice projection on its own acts as an inclusion.
+ *
+ * @author nramanathan
+ *
+ */
+public class InProcessMongo extends ExternalResource {
+	private MongoServer server;
+	private MongoClient mongoClient;
+
+	@Override
+	protected void before() {
+		server = new MongoServer(new MemoryBackend());
+		InetSocketAddress address = server.bind();
+		mongoClient = new MongoClient(new ServerAddress(address));
+	}
+
+	@Override
+	protected void after() {
+		mongoClient.close();
+		server.shutdown();
+	}
+
+	/**
+	 * @return the database the test works in, empty when the test starts
+	 */
+	public MongoDatabase getDatabase() {
+		return mongoClient.getDatabase("blog_test");
+	}
+}
@@ -0,0 +1,266 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * BlogPostDAO.likePost counts a like once per user, in both comment layouts
+ * and through the write-behind pipeline, against an in-process Mongo server.
+ *
+ * @author nramanathan
+ *
+ */
+public class LikePostTest {
+	@Rule
+	public final InProcessMongo mongo = new InProcessMongo();
+
+	private MongoDatabase blogDatabase;
+
+	@Before
+	public void setUp() {
+		blogDatabase = mongo.getDatabase();
+	}
+
+	private BlogPostDAO dao(final boolean bucketedComments) {
+		BlogPostDAO dao = new BlogPostDAO(blogDatabase, new ListingCache(),
+				bucketedComments);
+		dao.ensureIndexes();
+		return dao;
+	}
+
+	private static String postWithComments(final BlogPostDAO dao,
+			final int comments) {
+		String permalink = dao.addPost("Liked post", "Body",
+				Arrays.asList("java"), "author");
+		for (int i = 0; i < comments; i++) {
+			dao.addPostComment("commenter", "", "Comment " + i, permalink);
+		}
+		return permalink;
+	}
+
+	private int embeddedLikes(final String permalink, final int ordinal) {
+		Document post = blogDatabase.getCollection("posts")
+				.find(new Document("permalink", permalink)).first();
+		List<?> comments = (List<?>) post.get("comments");
+		// a write-behind $inc leaves a long
+		Number likes = (Number) ((Document) comments.get(ordinal))
+				.get("num_likes");
+		return likes == null ? 0 : likes.intValue();
+	}
+
+	private int bucketedLikes(final String permalink, final long id) {
+		Document bucket = blogDatabase.getCollection("comments")
+				.find(new Document("permalink", permalink).append("bucket",
+						id / CommentBuckets.BUCKET_SIZE)).first();
+		for (Object o : (List<?>) bucket.get("comments")) {
+			Document comment = (Document) o;
+			if (((Number) comment.get("_id")).longValue() == id) {
+				Number likes = (Number) comment.get("num_likes");
+				return likes == null ? 0 : likes.intValue();
+			}
+		}
+		throw new AssertionError("no comment " + id);
+	}
+
+	@Test
+	public void repeatedLikeIsCountedOnce() {
+		BlogPostDAO dao = dao(false);
+		String permalink = postWithComments(dao, 2);
+
+		assertTrue(dao.likePost(permalink, 1, "alice"));
+		assertTrue(dao.likePost(permalink, 1, "alice"));
+		assertTrue(dao.likePost(permalink, 1, "bob"));
+		assertTrue(dao.likePost(permalink, 0, "alice"));
+
+		assertEquals(2, embeddedLikes(permalink, 1));
+		assertEquals(1, embeddedLikes(permalink, 0));
+		assertEquals(3, blogDatabase.getCollection("comment_likes").count());
+		assertEquals(0, pendingLikes());
+	}
+
+	@Test
+	public void likeOnMissingPostOrCommentIsNotRecorded() {
+		BlogPostDAO dao = dao(false);
+		String permalink = postWithComments(dao, 1);
+
+		assertFalse(dao.likePost("no_such_post", 0, "alice"));
+		assertFalse(dao.likePost(permalink, 5, "alice"));
+
+		List<?> comments = (List<?>) blogDatabase.getCollection("posts")
+				.find(new Document("permalink", permalink)).first()
+				.get("comments");
+		assertEquals(1, comments.size());
+		assertEquals(0, blogDatabase.getCollection("comment_likes").count());
+	}
+
+	@Test
+	public void bucketedLikeIsCountedOnce() {
+		BlogPostDAO dao = dao(true);
+		String permalink = postWithComments(dao, 3);
+
+		assertTrue(dao.likePost(permalink, 2, "alice"));
+		assertTrue(dao.likePost(permalink, 2, "alice"));
+		assertTrue(dao.likePost(permalink, 2, "bob"));
+
+		assertEquals(2, bucketedLikes(permalink, 2));
+		assertEquals(0, bucketedLikes(permalink, 1));
+	}
+
+	@Test
+	public void likesSurviveTheMigrationToBuckets() {
+		BlogPostDAO dao = dao(false);
+		String permalink = postWithComments(dao, 2);
+		dao.likePost(permalink, 0, "alice");
+
+		assertEquals(1, dao.migrateCommentsToBuckets());
+		assertTrue(dao.likePost(permalink, 0, "alice"));
+		assertTrue(dao.likePost(permalink, 0, "bob"));
+
+		assertEquals(2, bucketedLikes(permalink, 0));
+	}
+
+	@Test
+	public void writeBehindCoalescesDistinctLikes() {
+		BlogPostDAO dao = dao(false);
+		String permalink = postWithComments(dao, 1);
+		// flushed by hand only
+		PostWriteBehind writeBehind = dao.startWriteBehind(
+				Long.MAX_VALUE / 2, 10, 10);
+		try {
+			dao.likePost(permalink, 0, "alice");
+			dao.likePost(permalink, 0, "bob");
+			dao.likePost(permalink, 0, "alice");
+			dao.likePost(permalink, 0, "carol");
+			assertEquals(1, writeBehind.getPendingLikes());
+
+			writeBehind.flush();
+			assertEquals(3, embeddedLikes(permalink, 0));
+			assertEquals(1, writeBehind.getFlushedWrites());
+		} finally {
+			writeBehind.close();
+		}
+	}
+
+	private long pendingLikes() {
+		return blogDatabase.getCollection("comment_likes").count(
+				new Document("pending", true));
+	}
+
+	@Test
+	public void likeLeftPendingByACrashIsCountedOnRestart() {
+		BlogPostDAO crashed = dao(false);
+		String permalink = postWithComments(crashed, 1);
+		// never flushed, as if the process died with the like buffered
+		crashed.startWriteBehind(Long.MAX_VALUE / 2, 10, 10);
+		assertTrue(crashed.likePost(permalink, 0, "alice"));
+		assertEquals(1, pendingLikes());
+
+		BlogPostDAO restarted = dao(false);
+		assertEquals(1, restarted.recoverPendingLikes(0));
+		assertEquals(0, restarted.recoverPendingLikes(0));
+		assertTrue(restarted.likePost(permalink, 0, "alice"));
+
+		assertEquals(1, embeddedLikes(permalink, 0));
+		assertEquals(0, pendingLikes());
+	}
+
+	@Test
+	public void recentPendingLikeIsLeftToItsProcess() {
+		BlogPostDAO dao = dao(false);
+		String permalink = postWithComments(dao, 1);
+		PostWriteBehind writeBehind = dao.startWriteBehind(
+				Long.MAX_VALUE / 2, 10, 10);
+		try {
+			dao.likePost(permalink, 0, "alice");
+			assertEquals(0, dao(false).recoverPendingLikes());
+
+			writeBehind.flush();
+			assertEquals(1, embeddedLikes(permalink, 0));
+			assertEquals(0, pendingLikes());
+		} finally {
+			writeBehind.close();
+		}
+	}
+
+	@Test
+	public void droppedLikeCanBeRepeated() {
+		BlogPostDAO dao = dao(false);
+		String permalink = postWithComments(dao, 1);
+		// $inc fails on a count that is not a number
+		blogDatabase.getCollection("posts").updateOne(
+				new Document("permalink", permalink),
+				new Document("$set", new Document("comments.0.num_likes",
+						"many")));
+		PostWriteBehind writeBehind = dao.startWriteBehind(
+				Long.MAX_VALUE / 2, 10, 10);
+		try {
+			dao.likePost(permalink, 0, "alice");
+			for (int i = 0; i < 3; i++) {
+				writeBehind.flush();
+			}
+			assertEquals(1, writeBehind.getDroppedWrites());
+			assertEquals(0, blogDatabase.getCollection("comment_likes")
+					.count());
+
+			blogDatabase.getCollection("posts").updateOne(
+					new Document("permalink", permalink),
+					new Document("$set", new Document("comments.0.num_likes",
+							0)));
+			dao.likePost(permalink, 0, "alice");
+			writeBehind.flush();
+			assertEquals(1, embeddedLikes(permalink, 0));
+			assertEquals(0, pendingLikes());
+		} finally {
+			writeBehind.close();
+		}
+	}
+
+	@Test
+	public void writeBehindLikeOnMissingCommentIsTakenBack() {
+		BlogPostDAO dao = dao(false);
+		String permalink = postWithComments(dao, 1);
+		PostWriteBehind writeBehind = dao.startWriteBehind(
+				Long.MAX_VALUE / 2, 10, 10);
+		try {
+			assertTrue(dao.likePost(permalink, 0, "alice"));
+			assertTrue(dao.likePost(permalink, 4, "alice"));
+			writeBehind.flush();
+
+			assertEquals(1, embeddedLikes(permalink, 0));
+			assertEquals(1, blogDatabase.getCollection("comment_likes")
+					.count());
+			assertEquals(0, pendingLikes());
+		} finally {
+			writeBehind.close();
+		}
+	}
+
+	@Test
+	public void inMemoryStoreCountsOncePerUser() {
+		InMemoryBlogPostStore store = new InMemoryBlogPostStore();
+		String permalink = store.addPost("Liked post", "Body",
+				Arrays.asList("java"), "author");
+		store.addPostComment("commenter", "", "Comment", permalink);
+
+		assertTrue(store.likePost(permalink, 0, "alice"));
+		assertTrue(store.likePost(permalink, 0, "alice"));
+		assertTrue(store.likePost(permalink, 0, "bob"));
+		assertFalse(store.likePost(permalink, 1, "alice"));
+
+		List<?> comments = (List<?>) store.findPostByPermalink(permalink).get(
+				"comments");
+		assertEquals(Integer.valueOf(2),
+				((Document) comments.get(0)).getInteger("num_likes"));
+	}
+}
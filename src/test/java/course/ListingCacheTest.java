@@ -0,0 +1,69 @@
+package course;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bson.Document;
+import org.junit.Test;
+
+/**
+ * A listing is refilled from the primary the first time after a write, and
+ * from wherever the reads go after that.
+ *
+ * @author nramanathan
+ *
+ */
+public class ListingCacheTest {
+	private final ListingCache cache = new ListingCache();
+
+	private void fill(final String key) {
+		cache.put(key, new ArrayList<Document>(), null, cache.generation());
+	}
+
+	@Test
+	public void firstRefillAfterAWriteGoesToThePrimary() {
+		String home = ListingCache.homeKey(10);
+		String tag = ListingCache.tagKey("java");
+		assertTrue(cache.needsPrimaryRead(home));
+		fill(home);
+		fill(tag);
+		assertFalse(cache.needsPrimaryRead(home));
+
+		cache.invalidateForNewPost(Arrays.asList("mongo"));
+		assertTrue(cache.needsPrimaryRead(home));
+		assertTrue(cache.needsPrimaryRead(tag));
+		fill(home);
+		assertFalse(cache.needsPrimaryRead(home));
+		assertTrue(cache.needsPrimaryRead(tag));
+	}
+
+	@Test
+	public void listingThatRacedWithAWriteIsNotTakenForFresh() {
+		String home = ListingCache.homeKey(10);
+		long generation = cache.generation();
+		cache.invalidatePost("some_post");
+		cache.put(home, new ArrayList<Document>(), null, generation);
+
+		assertTrue(cache.needsPrimaryRead(home));
+	}
+
+	@Test
+	public void listingOlderThanItsValidatorIsDropped() {
+		String home = ListingCache.homeKey(10);
+		cache.validate(home, new Date(1000));
+		fill(home);
+		cache.validate(home, new Date(1000));
+		assertNotNull(cache.get(home));
+
+		// as after a write through another instance
+		cache.validate(home, new Date(2000));
+		assertNull(cache.get(home));
+		assertTrue(cache.needsPrimaryRead(home));
+	}
+}
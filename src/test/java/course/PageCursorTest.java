@@ -0,0 +1,56 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+/**
+ * A PageCursor survives the trip through its token, and a token that did not
+ * come from one is turned away rather than failing the request.
+ *
+ * @author nramanathan
+ *
+ */
+public class PageCursorTest {
+	@Test
+	public void tokenRoundTrips() {
+		ObjectId id = new ObjectId();
+		PageCursor cursor = new PageCursor(new Date(1234567890123L), id);
+
+		String token = cursor.toString();
+		assertTrue(token, token.matches("[A-Za-z0-9_-]+"));
+		PageCursor parsed = PageCursor.parse(token);
+		assertEquals(new Date(1234567890123L), parsed.getDate());
+		assertEquals(id, parsed.getId());
+	}
+
+	@Test
+	public void afterPostRoundTrips() {
+		Document post = new Document("_id", new ObjectId()).append("date",
+				new Date());
+
+		PageCursor parsed = PageCursor.parse(PageCursor.after(post).toString());
+		assertEquals(post.getDate("date"), parsed.getDate());
+		assertEquals(post.getObjectId("_id"), parsed.getId());
+	}
+
+	@Test
+	public void malformedTokensAreRejected() {
+		assertNull(PageCursor.parse(null));
+		assertNull(PageCursor.parse(""));
+		assertNull(PageCursor.parse("not a cursor"));
+		assertNull(PageCursor.parse("!!!!"));
+		// valid base64url, one byte short and one byte over
+		assertNull(PageCursor.parse(Base64
+				.encodeBase64URLSafeString(new byte[19])));
+		assertNull(PageCursor.parse(Base64
+				.encodeBase64URLSafeString(new byte[21])));
+	}
+}
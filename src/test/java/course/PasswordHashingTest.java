@@ -0,0 +1,81 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * A login for a user that does not exist costs the same key derivations as a
+ * wrong password, and a legacy MD5 hash is verified and then upgraded.
+ *
+ * @author nramanathan
+ *
+ */
+public class PasswordHashingTest {
+	// counts the derivations of a real hasher
+	private final AtomicInteger derivations = new AtomicInteger();
+	private final PasswordHasher counting = new PasswordHasher() {
+		private final PasswordHasher hasher = new Pbkdf2PasswordHasher();
+
+		public String hash(String password) {
+			derivations.incrementAndGet();
+			return hasher.hash(password);
+		}
+
+		public boolean supports(String storedHash) {
+			return hasher.supports(storedHash);
+		}
+
+		public boolean verify(String password, String storedHash) {
+			derivations.incrementAndGet();
+			return hasher.verify(password, storedHash);
+		}
+
+		public boolean needsRehash(String storedHash) {
+			return hasher.needsRehash(storedHash);
+		}
+	};
+	private final PasswordHashing passwordHashing = new PasswordHashing(
+			counting, PasswordHashing.newHashingExecutor(1, 4),
+			PasswordHashing.DEFAULT_HASHING_TIMEOUT_MILLIS);
+
+	@After
+	public void tearDown() {
+		passwordHashing.close();
+	}
+
+	@Test
+	public void missingUserCostsOneDerivationLikeAWrongPassword() {
+		InMemoryUserStore users = new InMemoryUserStore(passwordHashing);
+		users.addUser("alice", "s3cret", "");
+		derivations.set(0);
+
+		assertNull(users.validateLogin("alice", "wrong"));
+		assertEquals(1, derivations.getAndSet(0));
+		for (int i = 0; i < 3; i++) {
+			assertNull(users.validateLogin("nobody", "wrong"));
+			assertEquals(1, derivations.getAndSet(0));
+		}
+	}
+
+	@Test
+	public void legacyHashIsVerifiedAndUpgraded() throws Exception {
+		// as the original UserDAO stored it
+		MessageDigest digest = MessageDigest.getInstance("MD5");
+		digest.update("s3cret,1234".getBytes());
+		String legacyHash = Base64.encodeBase64String(new String(digest
+				.digest(), "UTF-8").getBytes()) + ",1234";
+
+		assertNull(passwordHashing.check("wrong", legacyHash));
+		String upgraded = passwordHashing.check("s3cret", legacyHash);
+		assertTrue(upgraded, counting.supports(upgraded));
+		assertEquals(upgraded, passwordHashing.check("s3cret", upgraded));
+	}
+}
@@ -0,0 +1,203 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * A write-behind flush applies what it can, retries what failed without
+ * applying any comment twice, gives up after its last attempt and follows
+ * posts that moved to comment buckets.
+ *
+ * @author nramanathan
+ *
+ */
+public class PostWriteBehindTest {
+	@Rule
+	public final InProcessMongo mongo = new InProcessMongo();
+
+	private MongoDatabase blogDatabase;
+	private MongoCollection<Document> postsCollection;
+	private PostWriteBehind writeBehind;
+
+	@Before
+	public void setUp() {
+		blogDatabase = mongo.getDatabase();
+		postsCollection = blogDatabase.getCollection("posts");
+		postsCollection.insertOne(post("good"));
+		// $push fails on a post whose comments are not an array
+		postsCollection.insertOne(post("broken").append("comments", "none"));
+		// flushed by hand only
+		writeBehind = new PostWriteBehind(postsCollection, new CommentBuckets(
+				blogDatabase), new CommentLikes(blogDatabase),
+				new ListingCache(), Long.MAX_VALUE / 2, 10, 10);
+	}
+
+	private static Document post(final String permalink) {
+		return new Document("permalink", permalink).append("comments",
+				new ArrayList<Document>()).append("num_comments", 0);
+	}
+
+	private static Document comment(final String body) {
+		return new Document("author", "commenter").append("body", body);
+	}
+
+	private List<?> comments(final String permalink) {
+		return (List<?>) postsCollection.find(
+				new Document("permalink", permalink)).first().get("comments");
+	}
+
+	@Test
+	public void failedWriteDoesNotStopTheOthersAndIsRetried() {
+		writeBehind.addComment("broken", comment("first"));
+		writeBehind.addComment("good", comment("applied"));
+		writeBehind.like("broken", 0, "alice");
+		writeBehind.flush();
+
+		assertEquals(1, comments("good").size());
+		assertEquals(1, writeBehind.getFlushFailures());
+		// the like waits for the comment it is on
+		assertEquals(2, writeBehind.getRetryingWrites());
+
+		postsCollection.updateOne(new Document("permalink", "broken"),
+				new Document("$set", new Document("comments",
+						new ArrayList<Document>())));
+		writeBehind.addComment("broken", comment("second"));
+		writeBehind.flush();
+
+		List<?> comments = comments("broken");
+		assertEquals(2, comments.size());
+		assertEquals("first", ((Document) comments.get(0)).getString("body"));
+		assertEquals("second", ((Document) comments.get(1)).getString("body"));
+		assertEquals(1, ((Number) ((Document) comments.get(0))
+				.get("num_likes")).intValue());
+		assertEquals(0, writeBehind.getRetryingWrites());
+		assertEquals(0, writeBehind.getDroppedWrites());
+	}
+
+	@Test
+	public void writeIsDroppedAfterItsLastAttempt() {
+		writeBehind.addComment("broken", comment("never"));
+		writeBehind.close();
+
+		assertEquals(Arrays.asList(3L, 1L, 0), Arrays.<Object> asList(
+				writeBehind.getFlushFailures(), writeBehind.getDroppedWrites(),
+				writeBehind.getRetryingWrites()));
+		assertEquals("none", postsCollection.find(
+				new Document("permalink", "broken")).first().get("comments"));
+	}
+
+	@Test
+	public void writesQueuedBeforeMigrationReachTheBuckets() {
+		writeBehind.addComment("good", comment("embedded"));
+		writeBehind.flush();
+		writeBehind.addComment("good", comment("queued"));
+		writeBehind.like("good", 0, "alice");
+		writeBehind.like("good", 0, "bob");
+		CommentBuckets commentBuckets = new CommentBuckets(blogDatabase);
+		assertTrue(commentBuckets.migratePost(postsCollection.find(
+				new Document("permalink", "good")).first().get("_id")));
+		writeBehind.flush();
+
+		List<Document> comments = commentBuckets.findComments("good", 0, 10);
+		assertEquals(2, comments.size());
+		assertEquals("queued", comments.get(1).getString("body"));
+		assertEquals(2, ((Number) comments.get(0).get("num_likes")).intValue());
+		assertEquals(0, writeBehind.getRetryingWrites());
+	}
+
+	@Test
+	public void gaugesAreExported() {
+		Metrics.register("blog_test_pending_comments", "gauge",
+				"Comments queued in the test.", new Metrics.Gauge() {
+					public long getValue() {
+						return writeBehind.getPendingComments();
+					}
+				});
+		writeBehind.addComment("good", comment("queued"));
+
+		assertTrue(Metrics.toPrometheusText().contains(
+				"# TYPE blog_test_pending_comments gauge\n"
+						+ "blog_test_pending_comments 1\n"));
+	}
+
+	// applies the first bulkWrite and then loses the reply, as a dropped
+	// connection would
+	@SuppressWarnings("unchecked")
+	private MongoCollection<Document> losingFirstReply() {
+		return (MongoCollection<Document>) Proxy.newProxyInstance(
+				MongoCollection.class.getClassLoader(),
+				new Class<?>[] { MongoCollection.class },
+				new InvocationHandler() {
+					private boolean lost;
+
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						Object result;
+						try {
+							result = method.invoke(postsCollection, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+						if (method.getName().equals("bulkWrite") && !lost) {
+							lost = true;
+							throw new MongoSocketReadException(
+									"connection reset", new ServerAddress());
+						}
+						return result;
+					}
+				});
+	}
+
+	@Test
+	public void writeWithALostReplyIsNotAppliedTwice() {
+		PostWriteBehind losing = new PostWriteBehind(losingFirstReply(),
+				new CommentBuckets(blogDatabase), new CommentLikes(
+						blogDatabase), new ListingCache(), Long.MAX_VALUE / 2,
+				10, 10);
+		losing.addComment("good", comment("once"));
+		losing.flush();
+		assertEquals(1, losing.getRetryingWrites());
+
+		losing.addComment("good", comment("after"));
+		losing.flush();
+
+		List<?> comments = comments("good");
+		assertEquals(2, comments.size());
+		assertEquals("once", ((Document) comments.get(0)).getString("body"));
+		assertEquals("after", ((Document) comments.get(1)).getString("body"));
+		assertEquals(2, postsCollection.find(new Document("permalink", "good"))
+				.first().get("num_comments"));
+		assertEquals(0, losing.getRetryingWrites());
+	}
+
+	@Test
+	public void flushLatencyIsExported() {
+		Metrics.register("blog_test_flush_duration_seconds", "Test flushes.",
+				writeBehind.getFlushLatency());
+		writeBehind.addComment("good", comment("timed"));
+		writeBehind.flush();
+
+		assertTrue(Metrics.toPrometheusText().contains(
+				"blog_test_flush_duration_seconds_count 1\n"));
+		assertTrue(Metrics.toPrometheusText().contains(
+				"blog_test_flush_duration_seconds{quantile=\"0.5\"} "));
+	}
+}
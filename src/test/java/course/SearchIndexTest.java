@@ -0,0 +1,57 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Test;
+
+/**
+ * A post counts once in the frequency of a term, however many of its comments
+ * repeat the term.
+ *
+ * @author nramanathan
+ *
+ */
+public class SearchIndexTest {
+	private final SearchIndex index = new SearchIndex();
+
+	private void addPost(final String permalink, final String body) {
+		index.addPost(new Document("permalink", permalink)
+				.append("title", "Post").append("author", "author")
+				.append("date", new Date())
+				.append("tags", Arrays.asList("misc")).append("body", body));
+	}
+
+	private List<String> permalinks(final List<Document> results) {
+		List<String> permalinks = new ArrayList<String>();
+		for (Document result : results) {
+			permalinks.add(result.getString("permalink"));
+		}
+		return permalinks;
+	}
+
+	@Test
+	public void repeatedCommentsDoNotLowerATermsWeight() {
+		addPost("commented", "alpha");
+		addPost("older", "beta");
+		addPost("other", "beta");
+		addPost("newer", "alpha");
+		for (int i = 0; i < 5; i++) {
+			assertTrue(index.addComment("commented", "alpha again"));
+		}
+
+		// alpha and beta are in two posts each, so the tie between the
+		// posts holding either once goes to the newer one
+		List<String> found = permalinks(index.search("alpha beta", 10));
+		assertEquals(4, found.size());
+		assertEquals("commented", found.get(0));
+		assertTrue(found.toString(),
+				found.indexOf("newer") < found.indexOf("older"));
+	}
+}
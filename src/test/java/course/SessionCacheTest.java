@@ -0,0 +1,111 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import org.junit.Test;
+
+/**
+ * Entries of the session cache live for their time to live, negative ones for
+ * the shorter one, an ended session stays ended and the cache keeps to its
+ * bound. Time is moved by hand.
+ *
+ * @author nramanathan
+ *
+ */
+public class SessionCacheTest {
+	private static final long TTL = 1000;
+	private static final long NEGATIVE_TTL = 100;
+
+	private long now = 1000000;
+	private final Clock clock = new Clock() {
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		public Instant instant() {
+			return Instant.ofEpochMilli(now);
+		}
+	};
+
+	private SessionCache cache(final int maxEntries) {
+		return new SessionCache(maxEntries, TTL, NEGATIVE_TTL, clock);
+	}
+
+	@Test
+	public void entryIsHitUntilItsTimeToLive() {
+		SessionCache cache = cache(10);
+		assertNull(cache.get("session"));
+		cache.putLookup("session", "alice");
+
+		now += TTL - 1;
+		assertEquals("alice", cache.get("session").getUsername());
+		now += 1;
+		assertNull(cache.get("session"));
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void unknownSessionIsCachedForTheNegativeTimeToLive() {
+		SessionCache cache = cache(10);
+		cache.putLookup("forged", null);
+
+		now += NEGATIVE_TTL - 1;
+		assertNull(cache.get("forged").getUsername());
+		now += 1;
+		assertNull(cache.get("forged"));
+	}
+
+	@Test
+	public void invalidatedSessionIsNotPutBackByALookup() {
+		SessionCache cache = cache(10);
+		cache.put("session", "alice");
+		cache.invalidate("session");
+		// a lookup that read the session before it was ended
+		cache.putLookup("session", "alice");
+
+		assertNull(cache.get("session").getUsername());
+	}
+
+	@Test
+	public void fullCacheDropsExpiredEntriesFirst() {
+		SessionCache cache = cache(10);
+		for (int i = 0; i < 5; i++) {
+			cache.putLookup("forged" + i, null);
+		}
+		now += NEGATIVE_TTL;
+		for (int i = 0; i < 6; i++) {
+			cache.put("session" + i, "user" + i);
+		}
+
+		assertEquals(6, cache.size());
+		assertEquals(5, cache.getEvictionCount());
+		for (int i = 0; i < 6; i++) {
+			assertEquals("user" + i, cache.get("session" + i).getUsername());
+		}
+	}
+
+	@Test
+	public void cacheStaysWithinItsBound() {
+		SessionCache cache = cache(10);
+		for (int i = 0; i < 100; i++) {
+			cache.put("session" + i, "user" + i);
+			assertTrue(cache.size() <= 10);
+		}
+		assertEquals(100 - cache.size(), cache.getEvictionCount());
+	}
+}
@@ -0,0 +1,81 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Logging out of a token session revokes that token only, and revocations are
+ * forgotten once the token would have expired anyway.
+ *
+ * @author nramanathan
+ *
+ */
+public class SessionDAOTest {
+	private static final byte[] SECRET = "0123456789abcdef0123456789abcdef"
+			.getBytes();
+
+	@Rule
+	public final InProcessMongo mongo = new InProcessMongo();
+
+	private MongoDatabase blogDatabase;
+
+	@Before
+	public void setUp() {
+		blogDatabase = mongo.getDatabase();
+	}
+
+	private SessionDAO tokenSessions(final long ttlMillis) {
+		return new SessionDAO(blogDatabase, new SessionCache(),
+				new SessionTokenSigner(SECRET, ttlMillis));
+	}
+
+	@Test
+	public void logoutRevokesOnlyThatToken() {
+		SessionDAO sessions = tokenSessions(60000);
+		String first = sessions.startSession("alice");
+		String second = sessions.startSession("bob");
+		assertEquals("alice", sessions.findUserNameBySessionId(first));
+
+		sessions.endSession(first);
+		assertNull(sessions.findUserNameBySessionId(first));
+		assertEquals("bob", sessions.findUserNameBySessionId(second));
+		assertEquals(1, sessions.getRevokedTokenCount());
+	}
+
+	@Test
+	public void expiredRevocationsAreDropped() throws InterruptedException {
+		SessionDAO sessions = tokenSessions(100);
+		for (int i = 0; i < 5; i++) {
+			sessions.endSession(sessions.startSession("user" + i));
+		}
+		assertEquals(5, sessions.getRevokedTokenCount());
+
+		Thread.sleep(150);
+		sessions.endSession(sessions.startSession("late"));
+		assertEquals(1, sessions.getRevokedTokenCount());
+	}
+
+	@Test
+	public void forgedOrExpiredTokenIsNotRemembered() {
+		SessionDAO sessions = tokenSessions(60000);
+		sessions.endSession("forged.99999999999999.c2lnbmF0dXJl");
+		sessions.endSession(null);
+		assertEquals(0, sessions.getRevokedTokenCount());
+	}
+
+	@Test
+	public void storedSessionEndsOnLogout() {
+		SessionDAO sessions = new SessionDAO(blogDatabase);
+		String sessionId = sessions.startSession("alice");
+		assertEquals("alice", sessions.findUserNameBySessionId(sessionId));
+
+		sessions.endSession(sessionId);
+		assertNull(sessions.findUserNameBySessionId(sessionId));
+	}
+}
@@ -0,0 +1,83 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tokens from SessionTokenSigner verify only unchanged, unexpired and under the
+ * secret that signed them.
+ *
+ * @author nramanathan
+ *
+ */
+public class SessionTokenSignerTest {
+	private static final byte[] SECRET = "0123456789abcdef0123456789abcdef"
+			.getBytes();
+
+	private final SessionTokenSigner signer = new SessionTokenSigner(SECRET,
+			60000);
+
+	@Test
+	public void signedTokenVerifies() {
+		for (String username : Arrays.asList("alice", "a.b.c",
+				"\u00E9l\u00E8ve", "bob-42_x")) {
+			assertEquals(username, signer.verify(signer.sign(username)));
+		}
+	}
+
+	@Test
+	public void tamperedTokenIsRejected() {
+		String token = signer.sign("alice");
+		int firstDot = token.indexOf('.');
+		int lastDot = token.lastIndexOf('.');
+
+		String otherUser = signer.sign("mallory");
+		// alice's signature on mallory's payload
+		assertNull(signer.verify(otherUser.substring(0,
+				otherUser.lastIndexOf('.'))
+				+ token.substring(lastDot)));
+		// a later expiry under the old signature
+		long expiry = signer.getExpiry(token);
+		assertNull(signer.verify(token.substring(0, firstDot + 1)
+				+ (expiry + 1000) + token.substring(lastDot)));
+		// a flipped signature character; the first, as the low bits of the
+		// last are padding the decoder drops
+		char first = token.charAt(lastDot + 1);
+		assertNull(signer.verify(token.substring(0, lastDot + 1)
+				+ (first == 'A' ? 'B' : 'A') + token.substring(lastDot + 2)));
+	}
+
+	@Test
+	public void otherSecretIsRejected() {
+		SessionTokenSigner other = new SessionTokenSigner(
+				"fedcba9876543210fedcba9876543210".getBytes(), 60000);
+		assertNull(other.verify(signer.sign("alice")));
+	}
+
+	@Test
+	public void expiredTokenIsRejected() throws InterruptedException {
+		SessionTokenSigner shortLived = new SessionTokenSigner(SECRET, 20);
+		String token = shortLived.sign("alice");
+		Thread.sleep(50);
+		assertNull(shortLived.verify(token));
+	}
+
+	@Test
+	public void malformedTokenIsRejected() {
+		for (String token : Arrays.asList("", ".", "..", "abc", "abc.def",
+				"abc.123.", ".123.abc", "abc..abc", "abc.notanumber.abc")) {
+			assertTrue(token, signer.getExpiry(token) < 0);
+			assertNull(token, signer.verify(token));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shortSecretIsRefused() {
+		new SessionTokenSigner("too short".getBytes(), 60000);
+	}
+}
@@ -0,0 +1,210 @@
+package course;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Checks the single-pass text scanners against the regex code they replaced,
+ * which is kept here as the reference. Inputs are generated from a seeded
+ * Random, so a failure names a seed and an input that reproduce it.
+ *
+ * @author nramanathan
+ *
+ */
+public class TextProcessingTest {
+	private static final int RUNS = 20000;
+	private static final int MAX_LENGTH = 40;
+
+	// \s and its neighbours: the six regex whitespace characters, then
+	// Unicode spaces that \s does not match and control characters
+	private static final String WHITESPACE = " \t\n\u000B\f\r"
+			+ "\u00A0\u0085\u2003\u3000\u001C\u0000";
+	private static final String WORD = "aZz09_";
+	private static final String PUNCTUATION = ",,.-@!&;'\"<>$^\\";
+	// non-ASCII letters, one that lower cases to two chars, and a
+	// surrogate pair
+	private static final String NON_ASCII = "\u00E9\u00DF\u0130\u03A9\uD83D\uDE00";
+
+	private static final String[] ALPHABETS = { WHITESPACE, WORD, PUNCTUATION,
+			NON_ASCII };
+
+	private static List<String> oldExtractTags(String tags) {
+		tags = tags.replaceAll("\\s", "");
+		String tagArray[] = tags.split(",");
+
+		ArrayList<String> cleaned = new ArrayList<String>();
+		for (String tag : tagArray) {
+			if (!tag.equals("") && !cleaned.contains(tag)) {
+				cleaned.add(tag);
+			}
+		}
+		return cleaned;
+	}
+
+	private static String oldToParagraphs(String body) {
+		return body.replaceAll("\\r?\\n", "<p>");
+	}
+
+	private static String oldMakePermalink(String title) {
+		String permalink = title.replaceAll("\\s", "_");
+		permalink = permalink.replaceAll("\\W", "");
+		return permalink.toLowerCase();
+	}
+
+	private static boolean oldValidateSignup(String username, String password,
+			String verify, String email, HashMap<String, String> errors) {
+		String USER_RE = "^[a-zA-Z0-9_-]{3,20}$";
+		String PASS_RE = "^.{3,20}$";
+		String EMAIL_RE = "^[\\S]+@[\\S]+\\.[\\S]+$";
+
+		errors.put("username_error", "");
+		errors.put("password_error", "");
+		errors.put("verify_error", "");
+		errors.put("email_error", "");
+
+		if (!username.matches(USER_RE)) {
+			errors.put("username_error",
+					"invalid username. try just letters and numbers");
+			return false;
+		}
+
+		if (!password.matches(PASS_RE)) {
+			errors.put("password_error", "invalid password.");
+			return false;
+		}
+
+		if (!password.equals(verify)) {
+			errors.put("verify_error", "password must match");
+			return false;
+		}
+
+		if (!email.equals("")) {
+			if (!email.matches(EMAIL_RE)) {
+				errors.put("email_error", "Invalid Email Address");
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// a random mix of the alphabets, each run favouring some over others
+	private static String randomString(final Random random,
+			final String extra) {
+		int length = random.nextInt(MAX_LENGTH + 1);
+		String alphabet = extra;
+		for (String candidate : ALPHABETS) {
+			if (random.nextBoolean()) {
+				alphabet += candidate;
+			}
+		}
+		if (alphabet.isEmpty()) {
+			alphabet = WORD;
+		}
+		StringBuilder s = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			s.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return s.toString();
+	}
+
+	private static String describe(final long seed, final String input) {
+		StringBuilder escaped = new StringBuilder();
+		for (int i = 0; i < input.length(); i++) {
+			char c = input.charAt(i);
+			if (c < 0x20 || c > 0x7e) {
+				escaped.append(String.format("\\u%04X", (int) c));
+			} else {
+				escaped.append(c);
+			}
+		}
+		return "seed " + seed + ", input \"" + escaped + "\"";
+	}
+
+	@Test
+	public void extractTagsMatchesRegexVersion() {
+		Random random = new Random(1);
+		for (int run = 0; run < RUNS; run++) {
+			long seed = random.nextLong();
+			String tags = randomString(new Random(seed), ",,,");
+			assertEquals(describe(seed, tags), oldExtractTags(tags),
+					BlogController.extractTags(tags));
+		}
+	}
+
+	@Test
+	public void toParagraphsMatchesRegexVersion() {
+		Random random = new Random(2);
+		for (int run = 0; run < RUNS; run++) {
+			long seed = random.nextLong();
+			String body = randomString(new Random(seed), "\r\n\r\n");
+			assertEquals(describe(seed, body), oldToParagraphs(body),
+					BlogController.toParagraphs(body));
+		}
+	}
+
+	@Test
+	public void makePermalinkMatchesRegexVersion() {
+		Random random = new Random(3);
+		for (int run = 0; run < RUNS; run++) {
+			long seed = random.nextLong();
+			String title = randomString(new Random(seed), "");
+			assertEquals(describe(seed, title), oldMakePermalink(title),
+					BlogPostDAO.makePermalink(title));
+		}
+	}
+
+	@Test
+	public void isRegexWhitespaceMatchesRegex() {
+		Pattern whitespace = Pattern.compile("\\s");
+		for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+			assertEquals("char " + c,
+					whitespace.matcher(String.valueOf((char) c)).matches(),
+					BlogController.isRegexWhitespace((char) c));
+		}
+	}
+
+	@Test
+	public void validateSignupMatchesRegexVersion() {
+		Random random = new Random(4);
+		for (int run = 0; run < RUNS; run++) {
+			long seed = random.nextLong();
+			Random fields = new Random(seed);
+			String username = randomString(fields, "-");
+			String password = randomString(fields, "");
+			// mostly matching, so the email check is reached
+			String verify = fields.nextInt(4) == 0 ? randomString(fields, "")
+					: password;
+			String email = fields.nextInt(4) == 0 ? "" : randomString(fields,
+					"@@..");
+
+			HashMap<String, String> expectedErrors = new HashMap<String, String>();
+			HashMap<String, String> errors = new HashMap<String, String>();
+			String input = describe(seed, Arrays.asList(username, password,
+					verify, email).toString());
+			assertEquals(input, oldValidateSignup(username, password, verify,
+					email, expectedErrors), BlogController.validateSignup(
+					username, password, verify, email, errors));
+			assertEquals(input, expectedErrors, errors);
+		}
+	}
+
+	@Test
+	public void validateSignupAcceptsValidInput() {
+		HashMap<String, String> errors = new HashMap<String, String>();
+		List<Boolean> results = new ArrayList<Boolean>();
+		results.add(BlogController.validateSignup("some_user-42", "s3cret!",
+				"s3cret!", "some.user@example.com", errors));
+		results.add(BlogController.validateSignup("abc", "abc", "abc", "",
+				errors));
+		assertEquals(Arrays.asList(true, true), results);
+	}
+}